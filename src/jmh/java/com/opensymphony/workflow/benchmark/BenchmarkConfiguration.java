@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.workflow.FactoryException;
+import com.opensymphony.workflow.config.Configuration;
+import com.opensymphony.workflow.loader.WorkflowDescriptor;
+import com.opensymphony.workflow.spi.WorkflowStore;
+import com.opensymphony.workflow.spi.memory.MemoryWorkflowStore;
+import com.opensymphony.workflow.util.DefaultVariableResolver;
+import com.opensymphony.workflow.util.VariableResolver;
+
+import java.net.URL;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A configuration serving a single workflow descriptor from memory, with its
+ * own {@link MemoryWorkflowStore}, so that benchmarks measure the engine rather
+ * than descriptor loading.
+ */
+public class BenchmarkConfiguration implements Configuration {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final MemoryWorkflowStore store = new MemoryWorkflowStore(false);
+	private final String name;
+	private final VariableResolver variableResolver = new DefaultVariableResolver();
+	private final WorkflowDescriptor descriptor;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public BenchmarkConfiguration(String name, WorkflowDescriptor descriptor) {
+		this.name = name;
+		this.descriptor = descriptor;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public boolean isInitialized() {
+		return true;
+	}
+
+	public boolean isModifiable(String name) {
+		return false;
+	}
+
+	public String getPersistence() {
+		return MemoryWorkflowStore.class.getName();
+	}
+
+	public Map getPersistenceArgs() {
+		return Collections.EMPTY_MAP;
+	}
+
+	public VariableResolver getVariableResolver() {
+		return variableResolver;
+	}
+
+	public WorkflowDescriptor getWorkflow(String name) throws FactoryException {
+		if (!this.name.equals(name)) {
+			throw new FactoryException("Unknown workflow name");
+		}
+
+		return descriptor;
+	}
+
+	public String[] getWorkflowNames() {
+		return new String[] {name};
+	}
+
+	public WorkflowStore getWorkflowStore() {
+		return store;
+	}
+
+	public void load(URL url) {
+	}
+
+	public boolean removeWorkflow(String workflow) throws FactoryException {
+		throw new FactoryException("Benchmark workflows cannot be removed");
+	}
+
+	public boolean saveWorkflow(String name, WorkflowDescriptor descriptor, boolean replace) throws FactoryException {
+		throw new FactoryException("Benchmark workflows cannot be saved");
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.workflow.Condition;
+import com.opensymphony.workflow.Workflow;
+import com.opensymphony.workflow.util.beanshell.BeanShellCondition;
+import com.opensymphony.workflow.util.jsr223.JSR223Condition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks checking the same script condition through the
+ * <code>beanshell</code> type and through the <code>jsr223</code> type with
+ * the engine named by {@link #language}, which must be on the class path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ScriptConditionBenchmark {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	/**
+	 * Valid in BeanShell as well as in JavaScript.
+	 */
+	private static final String SCRIPT = "transientVars.containsKey(\"amount\") && propertySet == null";
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	@Param({"javascript"})
+	public String language;
+
+	private Condition beanShell;
+	private Condition jsr223;
+	private Map beanShellArgs;
+	private Map jsr223Args;
+	private Map transientVars;
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	@Setup
+	public void prepare() throws Exception {
+		beanShell = new BeanShellCondition();
+		beanShellArgs = new HashMap();
+		beanShellArgs.put(Workflow.BSH_SCRIPT, SCRIPT);
+		jsr223 = new JSR223Condition();
+		jsr223Args = new HashMap();
+		jsr223Args.put(Workflow.JSR223_LANGUAGE, language);
+		jsr223Args.put(Workflow.JSR223_SCRIPT, SCRIPT);
+		transientVars = new HashMap();
+		transientVars.put("amount", new Integer(100));
+
+		if (!beanShell.passesCondition(transientVars, beanShellArgs, null) || !jsr223.passesCondition(transientVars, jsr223Args, null)) {
+			throw new IllegalStateException("Benchmark script does not pass");
+		}
+	}
+
+	@Benchmark
+	public boolean beanShell() throws Exception {
+		return beanShell.passesCondition(transientVars, beanShellArgs, null);
+	}
+
+	@Benchmark
+	public boolean jsr223() throws Exception {
+		return jsr223.passesCondition(transientVars, jsr223Args, null);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.workflow.Condition;
+import com.opensymphony.workflow.FunctionProvider;
+import com.opensymphony.workflow.Stateless;
+import com.opensymphony.workflow.loader.WorkflowDescriptor;
+import com.opensymphony.workflow.loader.WorkflowLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.util.Map;
+
+/**
+ * Generates workflow descriptors of a given size for the benchmarks.
+ * <p>
+ * The workflow has one initial action, {@link #INITIAL_ACTION}, leading to
+ * step 1. Step <i>n</i> has <code>actions</code> actions with ids
+ * <i>n</i>*1000+1 onwards, each restricted by <code>conditions</code>
+ * conditions that always pass and running one pre-function. Every action leads
+ * to the next step, and the last step leads back to step 1, so an entry can be
+ * moved along indefinitely.
+ */
+public class SyntheticWorkflow {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	public static final String NAME = "synthetic";
+	public static final int INITIAL_ACTION = 100;
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final int actions;
+	private final int conditions;
+	private final int steps;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public SyntheticWorkflow(int steps, int actions, int conditions) {
+		this.steps = steps;
+		this.actions = actions;
+		this.conditions = conditions;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the id of the first action of the given step
+	 */
+	public static int firstAction(int step) {
+		return (step * 1000) + 1;
+	}
+
+	/**
+	 * @return the step reached by taking any action of the given step
+	 */
+	public int nextStep(int step) {
+		return (step % steps) + 1;
+	}
+
+	public WorkflowDescriptor load() throws Exception {
+		return WorkflowLoader.load(new ByteArrayInputStream(toBytes()), false);
+	}
+
+	public byte[] toBytes() {
+		try {
+			return toXml().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	public String toXml() {
+		StringBuffer xml = new StringBuffer(1024 * steps * actions);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<workflow>\n");
+		xml.append("  <initial-actions>\n");
+		xml.append("    <action id=\"").append(INITIAL_ACTION).append("\" name=\"Start\">\n");
+		appendResult(xml, "      ", 1);
+		xml.append("    </action>\n");
+		xml.append("  </initial-actions>\n");
+		xml.append("  <steps>\n");
+
+		for (int step = 1; step <= steps; step++) {
+			xml.append("    <step id=\"").append(step).append("\" name=\"Step ").append(step).append("\">\n");
+			xml.append("      <actions>\n");
+
+			for (int i = 0; i < actions; i++) {
+				int id = firstAction(step) + i;
+				xml.append("        <action id=\"").append(id).append("\" name=\"Action ").append(id).append("\">\n");
+				xml.append("          <restrict-to><conditions type=\"AND\">\n");
+
+				for (int c = 0; c < conditions; c++) {
+					xml.append("            <condition type=\"class\"><arg name=\"class.name\">").append(PassCondition.class.getName()).append("</arg>");
+					xml.append("<arg name=\"value\">${caller}-").append(c).append("</arg></condition>\n");
+				}
+
+				xml.append("          </conditions></restrict-to>\n");
+				xml.append("          <pre-functions><function type=\"class\"><arg name=\"class.name\">").append(NoopFunction.class.getName()).append("</arg>");
+				xml.append("<arg name=\"message\">${caller} took ").append(id).append(" on ${entry.workflowName}</arg></function></pre-functions>\n");
+				appendResult(xml, "          ", nextStep(step));
+				xml.append("        </action>\n");
+			}
+
+			xml.append("      </actions>\n");
+			xml.append("    </step>\n");
+		}
+
+		xml.append("  </steps>\n</workflow>\n");
+
+		return xml.toString();
+	}
+
+	private void appendResult(StringBuffer xml, String indent, int step) {
+		xml.append(indent).append("<results><unconditional-result old-status=\"Finished\" status=\"Queued\" step=\"").append(step).append("\"/></results>\n");
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	public static class PassCondition implements Condition, Stateless {
+		public boolean passesCondition(Map transientVars, Map args, PropertySet ps) {
+			return args.get("value") != null;
+		}
+	}
+
+	public static class NoopFunction implements FunctionProvider, Stateless {
+		public void execute(Map transientVars, Map args, PropertySet ps) {
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.workflow.Condition;
+import com.opensymphony.workflow.FunctionProvider;
+import com.opensymphony.workflow.TypeResolver;
+import com.opensymphony.workflow.Workflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks resolving condition and function types through
+ * {@link TypeResolver}, with and without its caching mode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TypeResolverBenchmark {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	@Param({"false", "true"})
+	public boolean caching;
+
+	private Map conditionArgs;
+	private Map functionArgs;
+	private TypeResolver resolver;
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	@Setup
+	public void prepare() {
+		resolver = new TypeResolver();
+		resolver.setCaching(caching);
+		conditionArgs = new HashMap();
+		conditionArgs.put(Workflow.CLASS_NAME, SyntheticWorkflow.PassCondition.class.getName());
+		functionArgs = new HashMap();
+		functionArgs.put(Workflow.CLASS_NAME, SyntheticWorkflow.NoopFunction.class.getName());
+	}
+
+	@Benchmark
+	public Condition getCondition() throws Exception {
+		return resolver.getCondition("class", conditionArgs);
+	}
+
+	@Benchmark
+	public FunctionProvider getFunction() throws Exception {
+		return resolver.getFunction("class", functionArgs);
+	}
+}
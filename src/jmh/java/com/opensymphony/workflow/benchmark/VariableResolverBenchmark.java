@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.workflow.spi.SimpleWorkflowEntry;
+import com.opensymphony.workflow.spi.WorkflowEntry;
+import com.opensymphony.workflow.util.DefaultVariableResolver;
+import com.opensymphony.workflow.util.VariableTemplate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link DefaultVariableResolver#translateVariables} on a source
+ * string and on its precompiled {@link VariableTemplate}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class VariableResolverBenchmark {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	@Param({"${caller}", "${caller} took ${actionId} on ${entry.workflowName}", "no variables here"})
+	public String source;
+
+	private DefaultVariableResolver resolver;
+	private Map transientVars;
+	private VariableTemplate template;
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	@Setup
+	public void prepare() {
+		resolver = new DefaultVariableResolver();
+		template = VariableTemplate.compile(source);
+		transientVars = new HashMap();
+		transientVars.put("caller", "bench");
+		transientVars.put("actionId", new Integer(1001));
+		transientVars.put("entry", new SimpleWorkflowEntry(1, SyntheticWorkflow.NAME, WorkflowEntry.ACTIVATED));
+	}
+
+	@Benchmark
+	public Object translateString() {
+		return resolver.translateVariables(source, transientVars, null);
+	}
+
+	@Benchmark
+	public Object translateTemplate() {
+		return resolver.translateVariables(template, transientVars, null);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.workflow.basic.BasicWorkflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the main {@link com.opensymphony.workflow.Workflow} operations
+ * against a {@link SyntheticWorkflow} and a fresh
+ * {@link com.opensymphony.workflow.spi.memory.MemoryWorkflowStore} for each
+ * iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class WorkflowBenchmark {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	@Param({"5", "50"})
+	public int steps;
+
+	@Param({"3", "20"})
+	public int actions;
+
+	@Param({"1", "5"})
+	public int conditions;
+
+	private BasicWorkflow workflow;
+	private Map inputs;
+	private SyntheticWorkflow synthetic;
+	private int step;
+	private long entryId;
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	@Setup(Level.Trial)
+	public void loadDescriptor() throws Exception {
+		synthetic = new SyntheticWorkflow(steps, actions, conditions);
+		inputs = new HashMap();
+		inputs.put("caller", "bench");
+	}
+
+	@Setup(Level.Iteration)
+	public void createEntry() throws Exception {
+		workflow = new BasicWorkflow("bench");
+		workflow.setConfiguration(new BenchmarkConfiguration(SyntheticWorkflow.NAME, synthetic.load()));
+		entryId = workflow.initialize(SyntheticWorkflow.NAME, SyntheticWorkflow.INITIAL_ACTION, inputs);
+		step = 1;
+	}
+
+	@Benchmark
+	public long initialize() throws Exception {
+		return workflow.initialize(SyntheticWorkflow.NAME, SyntheticWorkflow.INITIAL_ACTION, inputs);
+	}
+
+	@Benchmark
+	public void doAction() throws Exception {
+		workflow.doAction(entryId, SyntheticWorkflow.firstAction(step), inputs);
+		step = synthetic.nextStep(step);
+	}
+
+	@Benchmark
+	public int[] getAvailableActions() {
+		return workflow.getAvailableActions(entryId, inputs);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.benchmark;
+
+import com.opensymphony.workflow.loader.WorkflowDescriptor;
+import com.opensymphony.workflow.loader.WorkflowLoader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks loading a {@link SyntheticWorkflow} descriptor with
+ * {@link WorkflowLoader}, from XML and from its binary form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class WorkflowLoaderBenchmark {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	@Param({"5", "50"})
+	public int steps;
+
+	@Param({"3", "20"})
+	public int actions;
+
+	@Param({"1", "5"})
+	public int conditions;
+
+	private ByteBuffer binary;
+	private byte[] xml;
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	@Setup
+	public void generate() throws Exception {
+		SyntheticWorkflow workflow = new SyntheticWorkflow(steps, actions, conditions);
+		xml = workflow.toBytes();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		workflow.load().writeBinary(out);
+		binary = ByteBuffer.allocateDirect(out.size());
+		binary.put(out.toByteArray()).flip();
+	}
+
+	@Benchmark
+	public WorkflowDescriptor load() throws Exception {
+		return WorkflowLoader.load(new ByteArrayInputStream(xml), false);
+	}
+
+	@Benchmark
+	public WorkflowDescriptor loadBinary() throws Exception {
+		return WorkflowLoader.load(binary, false);
+	}
+}
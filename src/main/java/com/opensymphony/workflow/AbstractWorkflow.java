@@ -9,12 +9,18 @@ import com.opensymphony.module.propertyset.PropertySetManager;
 import com.opensymphony.workflow.config.Configuration;
 import com.opensymphony.workflow.config.DefaultConfiguration;
 import com.opensymphony.workflow.loader.*;
+import com.opensymphony.workflow.metrics.InstrumentedWorkflowStore;
+import com.opensymphony.workflow.metrics.NoopWorkflowMetrics;
+import com.opensymphony.workflow.metrics.WorkflowMetrics;
 import com.opensymphony.workflow.query.WorkflowExpressionQuery;
 import com.opensymphony.workflow.query.WorkflowQuery;
 import com.opensymphony.workflow.spi.Step;
+import com.opensymphony.workflow.spi.TransactionalWorkflowStore;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 import com.opensymphony.workflow.spi.WorkflowStore;
+import com.opensymphony.workflow.util.DefaultVariableResolver;
 import com.opensymphony.workflow.util.VariableResolver;
+import com.opensymphony.workflow.util.VariableTemplate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -39,8 +45,11 @@ public class AbstractWorkflow implements Workflow {
 
     protected WorkflowContext context;
     private Configuration configuration;
+    private InstrumentedWorkflowStore instrumentedStore;
     private ThreadLocal stateCache = new ThreadLocal();
     private TypeResolver typeResolver;
+    private WorkflowMetrics metrics = NoopWorkflowMetrics.INSTANCE;
+    private boolean adaptiveConditions;
 
     public static final String WORKFLOW_ID_KEY = "workflowid";
     public static final String WORKFLOW_NAME_KEY = "workflowname";
@@ -76,6 +85,10 @@ public class AbstractWorkflow implements Workflow {
      * @ejb.interface-method
      */
     public int[] getAvailableActions(long id, Map inputs) {
+        long start = startTimer();
+        String workflowName = null;
+        boolean failed = true;
+
         try {
             WorkflowStore store = getPersistence();
             WorkflowEntry entry = store.findEntry(id);
@@ -84,11 +97,15 @@ public class AbstractWorkflow implements Workflow {
                 throw new IllegalArgumentException("No such workflow id " + id);
             }
 
+            workflowName = entry.getWorkflowName();
+
             if (entry.getState() != WorkflowEntry.ACTIVATED) {
+                failed = false;
+
                 return new int[0];
             }
 
-            WorkflowDescriptor wf = getConfiguration().getWorkflow(entry.getWorkflowName());
+            WorkflowDescriptor wf = findWorkflow(entry.getWorkflowName());
 
             if (wf == null) {
                 throw new IllegalArgumentException("No such workflow " + entry.getWorkflowName());
@@ -133,11 +150,15 @@ public class AbstractWorkflow implements Workflow {
                 actions[i] = ((Integer) l.get(i)).intValue();
             }
 
+            failed = false;
+
             return actions;
         } catch (Exception e) {
             log.error("Error checking available actions", e);
 
             return new int[0];
+        } finally {
+            stopTimer(WorkflowMetrics.GET_AVAILABLE_ACTIONS, workflowName, -1, null, start, failed);
         }
     }
 
@@ -250,6 +271,77 @@ public class AbstractWorkflow implements Workflow {
         return ps;
     }
 
+    /**
+     * Set where the timings of workflow operations, conditions, functions,
+     * validators, store calls and descriptor lookups are recorded. While
+     * enabled, {@link #getPersistence()} returns the store wrapped in an
+     * {@link InstrumentedWorkflowStore}, while the <code>store</code>
+     * transient variable stays the configured store, so only the engine's
+     * own store calls are timed.
+     */
+    public void setMetrics(WorkflowMetrics metrics) {
+        this.metrics = (metrics != null) ? metrics : NoopWorkflowMetrics.INSTANCE;
+    }
+
+    public WorkflowMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enable adaptive condition ordering. The cost and pass rate of each
+     * condition of a frozen workflow are then recorded, and within each AND
+     * or OR group, {@link SideEffectFree} conditions are checked in the order
+     * expected to be the cheapest. The statistics and order are shared by
+     * all workflow instances using the same {@link TypeResolver}.
+     *
+     * @see #getConditionStatistics(String)
+     */
+    public void setAdaptiveConditions(boolean adaptiveConditions) {
+        this.adaptiveConditions = adaptiveConditions;
+    }
+
+    public boolean isAdaptiveConditions() {
+        return adaptiveConditions;
+    }
+
+    /**
+     * Get the statistics recorded by adaptive condition ordering for each
+     * condition of the given workflow that has been checked at least once
+     * through this workflow's {@link TypeResolver}.
+     *
+     * @return a list of {@link ConditionStatistics}
+     */
+    public List getConditionStatistics(String workflowName) throws WorkflowException {
+        WorkflowDescriptor wf = findWorkflow(workflowName);
+        Map compiled = new IdentityHashMap();
+
+        addCompiledConditions(compiled, wf.getGlobalConditions());
+        addCompiledConditions(compiled, wf.getGlobalActions());
+        addCompiledConditions(compiled, wf.getInitialActions());
+        addCompiledConditions(compiled, wf.getCommonActions().values());
+
+        for (Iterator iterator = wf.getSteps().iterator(); iterator.hasNext(); ) {
+            StepDescriptor step = (StepDescriptor) iterator.next();
+            addCompiledConditions(compiled, step.getActions());
+
+            for (Iterator iterator2 = step.getPermissions().iterator(); iterator2.hasNext(); ) {
+                RestrictionDescriptor restriction = ((PermissionDescriptor) iterator2.next()).getRestriction();
+
+                if (restriction != null) {
+                    addCompiledConditions(compiled, restriction.getConditionsDescriptor());
+                }
+            }
+        }
+
+        List statistics = new ArrayList();
+
+        for (Iterator iterator = compiled.keySet().iterator(); iterator.hasNext(); ) {
+            ((CompiledConditions) iterator.next()).getStatistics(statistics);
+        }
+
+        return statistics;
+    }
+
     public void setResolver(TypeResolver resolver) {
         this.typeResolver = resolver;
     }
@@ -276,7 +368,7 @@ public class AbstractWorkflow implements Workflow {
         try {
             WorkflowStore store = getPersistence();
             WorkflowEntry entry = store.findEntry(id);
-            WorkflowDescriptor wf = getConfiguration().getWorkflow(entry.getWorkflowName());
+            WorkflowDescriptor wf = findWorkflow(entry.getWorkflowName());
 
             PropertySet ps = store.getPropertySet(id);
             Map transientVars = (inputs == null) ? new HashMap() : new HashMap(inputs);
@@ -326,7 +418,7 @@ public class AbstractWorkflow implements Workflow {
      */
     public WorkflowDescriptor getWorkflowDescriptor(String workflowName) {
         try {
-            return getConfiguration().getWorkflow(workflowName);
+            return findWorkflow(workflowName);
         } catch (FactoryException e) {
             log.error("Error loading workflow " + workflowName, e);
         }
@@ -513,6 +605,25 @@ public class AbstractWorkflow implements Workflow {
     }
 
     public void doAction(long id, int actionId, Map inputs) throws WorkflowException {
+        long start = startTimer();
+        boolean completed = false;
+
+        try {
+            boolean unitOfWork = beginUnitOfWork();
+
+            try {
+                doActionInUnitOfWork(id, actionId, inputs);
+                completed = true;
+            } finally {
+                endUnitOfWork(unitOfWork, completed);
+            }
+        } finally {
+            // doActionInUnitOfWork leaves the workflow name in the inputs
+            stopTimer(WorkflowMetrics.DO_ACTION, (inputs != null) ? (String) inputs.get(WORKFLOW_NAME_KEY) : null, actionId, null, start, !completed);
+        }
+    }
+
+    private void doActionInUnitOfWork(long id, int actionId, Map inputs) throws WorkflowException {
         WorkflowStore store = getPersistence();
         WorkflowEntry entry = store.findEntry(id);
 
@@ -524,10 +635,10 @@ public class AbstractWorkflow implements Workflow {
             return;
         }
 
-        WorkflowDescriptor wf = getConfiguration().getWorkflow(entry.getWorkflowName());
+        WorkflowDescriptor wf = findWorkflow(entry.getWorkflowName());
 
         List currentSteps = store.findCurrentSteps(id);
-        ActionDescriptor action = null;
+        ActionDescriptor action;
 
         PropertySet ps = store.getPropertySet(id);
         Map transientVars = new HashMap();
@@ -538,35 +649,19 @@ public class AbstractWorkflow implements Workflow {
 
         populateTransientMap(entry, transientVars, wf.getRegisters(), new Integer(actionId), currentSteps, ps);
 
-        boolean validAction = false;
-
         // check global actions
-        for (Iterator gIter = wf.getGlobalActions().iterator(); !validAction && gIter.hasNext(); ) {
-            ActionDescriptor actionDesc = (ActionDescriptor) gIter.next();
+        action = wf.getGlobalAction(actionId);
 
-            if (actionDesc.getId() == actionId) {
-                action = actionDesc;
-
-                if (isActionAvailable(action, transientVars, ps, 0)) {
-                    validAction = true;
-                }
-            }
-        }
+        boolean validAction = isActionAvailable(action, transientVars, ps, 0);
 
         for (Iterator iter = currentSteps.iterator(); !validAction && iter.hasNext(); ) {
             Step step = (Step) iter.next();
             StepDescriptor s = wf.getStep(step.getStepId());
+            ActionDescriptor actionDesc = s.getAction(actionId);
 
-            for (Iterator iterator = s.getActions().iterator(); !validAction && iterator.hasNext(); ) {
-                ActionDescriptor actionDesc = (ActionDescriptor) iterator.next();
-
-                if (actionDesc.getId() == actionId) {
-                    action = actionDesc;
-
-                    if (isActionAvailable(action, transientVars, ps, s.getId())) {
-                        validAction = true;
-                    }
-                }
+            if (actionDesc != null) {
+                action = actionDesc;
+                validAction = isActionAvailable(action, transientVars, ps, s.getId());
             }
         }
 
@@ -581,7 +676,7 @@ public class AbstractWorkflow implements Workflow {
                 checkImplicitFinish(action, id);
             }
         } catch (WorkflowException e) {
-            context.setRollbackOnly();
+            setRollbackOnly();
             throw e;
         }
     }
@@ -596,7 +691,7 @@ public class AbstractWorkflow implements Workflow {
             return;
         }
 
-        WorkflowDescriptor wf = getConfiguration().getWorkflow(entry.getWorkflowName());
+        WorkflowDescriptor wf = findWorkflow(entry.getWorkflowName());
 
         PropertySet ps = store.getPropertySet(id);
         Map transientVars = new HashMap();
@@ -605,7 +700,27 @@ public class AbstractWorkflow implements Workflow {
     }
 
     public long initialize(String workflowName, int initialAction, Map inputs) throws InvalidRoleException, InvalidInputException, WorkflowException {
-        WorkflowDescriptor wf = getConfiguration().getWorkflow(workflowName);
+        long start = startTimer();
+        boolean completed = false;
+
+        try {
+            boolean unitOfWork = beginUnitOfWork();
+
+            try {
+                long entryId = initializeInUnitOfWork(workflowName, initialAction, inputs);
+                completed = true;
+
+                return entryId;
+            } finally {
+                endUnitOfWork(unitOfWork, completed);
+            }
+        } finally {
+            stopTimer(WorkflowMetrics.INITIALIZE, workflowName, initialAction, null, start, !completed);
+        }
+    }
+
+    private long initializeInUnitOfWork(String workflowName, int initialAction, Map inputs) throws WorkflowException {
+        WorkflowDescriptor wf = findWorkflow(workflowName);
 
         WorkflowStore store = getPersistence();
         WorkflowEntry entry = store.createEntry(workflowName);
@@ -625,7 +740,7 @@ public class AbstractWorkflow implements Workflow {
         populateTransientMap(entry, transientVars, wf.getRegisters(), new Integer(initialAction), Collections.EMPTY_LIST, ps);
 
         if (!canInitialize(workflowName, initialAction, transientVars, ps)) {
-            context.setRollbackOnly();
+            setRollbackOnly();
             throw new InvalidRoleException("You are restricted from initializing this workflow");
         }
 
@@ -634,7 +749,7 @@ public class AbstractWorkflow implements Workflow {
         try {
             transitionWorkflow(entry, Collections.EMPTY_LIST, store, wf, action, transientVars, inputs, ps);
         } catch (WorkflowException e) {
-            context.setRollbackOnly();
+            setRollbackOnly();
             throw e;
         }
 
@@ -702,7 +817,7 @@ public class AbstractWorkflow implements Workflow {
                 conditions = restriction.getConditionsDescriptor();
             }
 
-            if (passesConditions(wf.getGlobalConditions(), new HashMap(transientVars), ps, s.getId()) && passesConditions(conditions, new HashMap(transientVars), ps, s.getId())) {
+            if (passesConditionsInScope(wf.getGlobalConditions(), transientVars, ps, s.getId()) && passesConditionsInScope(conditions, transientVars, ps, s.getId())) {
                 l.add(new Integer(action.getId()));
             }
         }
@@ -725,7 +840,7 @@ public class AbstractWorkflow implements Workflow {
                 return new int[0];
             }
 
-            WorkflowDescriptor wf = getConfiguration().getWorkflow(entry.getWorkflowName());
+            WorkflowDescriptor wf = findWorkflow(entry.getWorkflowName());
 
             if (wf == null) {
                 throw new IllegalArgumentException("No such workflow " + entry.getWorkflowName());
@@ -809,14 +924,45 @@ public class AbstractWorkflow implements Workflow {
     }
 
     protected WorkflowStore getPersistence() throws StoreException {
-        return getConfiguration().getWorkflowStore();
+        WorkflowStore store = getConfiguration().getWorkflowStore();
+
+        if (!metrics.isEnabled()) {
+            return store;
+        }
+
+        InstrumentedWorkflowStore instrumented = instrumentedStore;
+
+        if ((instrumented == null) || (instrumented.getDelegate() != store)) {
+            instrumented = new InstrumentedWorkflowStore(store, metrics);
+            instrumentedStore = instrumented;
+        }
+
+        return instrumented;
+    }
+
+    /**
+     * Mark the current operation for rollback, both on the context and on the
+     * unit of work of a {@link TransactionalWorkflowStore}.
+     */
+    protected void setRollbackOnly() {
+        context.setRollbackOnly();
+
+        try {
+            WorkflowStore store = getPersistence();
+
+            if (store instanceof TransactionalWorkflowStore) {
+                ((TransactionalWorkflowStore) store).setRollbackOnly();
+            }
+        } catch (StoreException e) {
+            log.error("Error marking unit of work for rollback", e);
+        }
     }
 
     protected void checkImplicitFinish(ActionDescriptor action, long id) throws WorkflowException {
         WorkflowStore store = getPersistence();
         WorkflowEntry entry = store.findEntry(id);
 
-        WorkflowDescriptor wf = getConfiguration().getWorkflow(entry.getWorkflowName());
+        WorkflowDescriptor wf = findWorkflow(entry.getWorkflowName());
 
         Collection currentSteps = store.findCurrentSteps(id);
 
@@ -844,14 +990,16 @@ public class AbstractWorkflow implements Workflow {
     protected void completeEntry(ActionDescriptor action, long id, Collection currentSteps, int state) throws StoreException {
         getPersistence().setEntryState(id, state);
 
-        Iterator i = new ArrayList(currentSteps).iterator();
+        List steps = new ArrayList(currentSteps);
+        Iterator i = steps.iterator();
 
         while (i.hasNext()) {
             Step step = (Step) i.next();
             String oldStatus = (action != null) ? action.getUnconditionalResult().getOldStatus() : "Finished";
             getPersistence().markFinished(step, (action != null) ? action.getId() : (-1), new Date(), oldStatus, context.getCaller());
-            getPersistence().moveToHistory(step);
         }
+
+        getPersistence().moveToHistory(steps);
     }
 
     /**
@@ -865,39 +1013,43 @@ public class AbstractWorkflow implements Workflow {
         if (function != null) {
             String type = function.getType();
 
-            Map args = new HashMap(function.getArgs());
-
-            for (Iterator iterator = args.entrySet().iterator(); iterator.hasNext(); ) {
-                Map.Entry mapEntry = (Map.Entry) iterator.next();
-                mapEntry.setValue(getConfiguration().getVariableResolver().translateVariables((String) mapEntry.getValue(), transientVars, ps));
-            }
+            Map args = translateArgs(function.getArgs(), function.getCompiledArgs(), transientVars, ps);
 
             FunctionProvider provider = getResolver().getFunction(type, args);
 
             if (provider == null) {
                 String message = "Could not load FunctionProvider class";
-                context.setRollbackOnly();
+                setRollbackOnly();
                 throw new WorkflowException(message);
             }
 
+            long start = startTimer();
+            boolean failed = true;
+
             try {
                 provider.execute(transientVars, args, ps);
+                failed = false;
             } catch (WorkflowException e) {
-                context.setRollbackOnly();
+                setRollbackOnly();
                 throw e;
+            } finally {
+                stopTimer(WorkflowMetrics.FUNCTION, transientVars, type, provider, start, failed);
             }
         }
     }
 
     protected boolean passesCondition(ConditionDescriptor conditionDesc, Map transientVars, PropertySet ps, int currentStepId) throws WorkflowException {
-        String type = conditionDesc.getType();
+        return passesCondition(conditionDesc, null, transientVars, ps, currentStepId);
+    }
 
-        Map args = new HashMap(conditionDesc.getArgs());
+    /**
+     * Check a condition, using the given instance if it has already been
+     * resolved.
+     */
+    boolean passesCondition(ConditionDescriptor conditionDesc, Condition condition, Map transientVars, PropertySet ps, int currentStepId) throws WorkflowException {
+        String type = conditionDesc.getType();
 
-        for (Iterator iterator = args.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry mapEntry = (Map.Entry) iterator.next();
-            mapEntry.setValue(getConfiguration().getVariableResolver().translateVariables((String) mapEntry.getValue(), transientVars, ps));
-        }
+        Map args = translateArgs(conditionDesc.getArgs(), conditionDesc.getCompiledArgs(), transientVars, ps);
 
         if (currentStepId != -1) {
             Object stepId = args.get("stepId");
@@ -907,15 +1059,21 @@ public class AbstractWorkflow implements Workflow {
             }
         }
 
-        Condition condition = getResolver().getCondition(type, args);
+        if (condition == null) {
+            condition = getResolver().getCondition(type, args);
+        }
 
         if (condition == null) {
-            context.setRollbackOnly();
+            setRollbackOnly();
             throw new WorkflowException("Could not load condition");
         }
 
+        long start = startTimer();
+        boolean failed = true;
+
         try {
             boolean passed = condition.passesCondition(transientVars, args, ps);
+            failed = false;
 
             if (conditionDesc.isNegate()) {
                 passed = !passed;
@@ -923,13 +1081,15 @@ public class AbstractWorkflow implements Workflow {
 
             return passed;
         } catch (Exception e) {
-            context.setRollbackOnly();
+            setRollbackOnly();
 
             if (e instanceof WorkflowException) {
                 throw (WorkflowException) e;
             }
 
             throw new WorkflowException("Unknown exception encountered when checking condition " + condition, e);
+        } finally {
+            stopTimer(WorkflowMetrics.CONDITION, transientVars, type, condition, start, failed);
         }
     }
 
@@ -968,20 +1128,43 @@ public class AbstractWorkflow implements Workflow {
         }
     }
 
+    /**
+     * Check a condition tree. Trees of frozen workflows are compiled on first
+     * use and the compiled form is evaluated from then on.
+     */
     protected boolean passesConditions(ConditionsDescriptor descriptor, Map transientVars, PropertySet ps, int currentStepId) throws WorkflowException {
         if (descriptor == null) {
             return true;
         }
 
-        return passesConditions(descriptor.getType(), descriptor.getConditions(), transientVars, ps, currentStepId);
+        TypeResolver resolver = getResolver();
+        CompiledConditions compiled = (CompiledConditions) descriptor.getCompiled();
+
+        if ((compiled == null) || (compiled.getResolver() != resolver)) {
+            compiled = CompiledConditions.compile(descriptor.getType(), descriptor.getConditions(), resolver);
+
+            if (compiled == null) {
+                return passesConditions(descriptor.getType(), descriptor.getConditions(), transientVars, ps, currentStepId);
+            }
+
+            descriptor.setCompiled(compiled);
+        }
+
+        return compiled.passes(this, transientVars, ps, currentStepId, adaptiveConditions);
     }
 
     protected void populateTransientMap(WorkflowEntry entry, Map transientVars, List registers, Integer actionId, Collection currentSteps, PropertySet ps) throws WorkflowException {
+        // functions get the configured store, not the instrumented wrapper
+        WorkflowStore store = getConfiguration().getWorkflowStore();
+
+        // a rollback requested through the context must reach the unit of work
+        WorkflowContext context = (store instanceof TransactionalWorkflowStore) ? new UnitOfWorkContext(this.context, (TransactionalWorkflowStore) store) : this.context;
+
         transientVars.put("context", context);
         transientVars.put("entry", entry);
-        transientVars.put("store", getPersistence());
+        transientVars.put("store", store);
         transientVars.put("configuration", getConfiguration());
-        transientVars.put("descriptor", getConfiguration().getWorkflow(entry.getWorkflowName()));
+        transientVars.put("descriptor", findWorkflow(entry.getWorkflowName()));
 
         if (actionId != null) {
             transientVars.put("actionId", actionId);
@@ -999,14 +1182,14 @@ public class AbstractWorkflow implements Workflow {
 
             if (r == null) {
                 String message = "Could not load register class";
-                context.setRollbackOnly();
+                setRollbackOnly();
                 throw new WorkflowException(message);
             }
 
             try {
                 transientVars.put(register.getVariableName(), r.registerVariable(context, entry, args, ps));
             } catch (Exception e) {
-                context.setRollbackOnly();
+                setRollbackOnly();
 
                 if (e instanceof WorkflowException) {
                     throw (WorkflowException) e;
@@ -1066,7 +1249,7 @@ public class AbstractWorkflow implements Workflow {
         for (Iterator iterator = conditionalResults.iterator(); iterator.hasNext(); ) {
             ConditionalResultDescriptor conditionalResult = (ConditionalResultDescriptor) iterator.next();
 
-            if (passesConditions(null, conditionalResult.getConditions(), Collections.unmodifiableMap(transientVars), ps, (step != null) ? step.getStepId() : (-1))) {
+            if (passesConditions(conditionalResult, Collections.unmodifiableMap(transientVars), ps, (step != null) ? step.getStepId() : (-1))) {
                 // if (evaluateExpression(conditionalResult.getCondition(),
                 // entry, wf.getRegisters(), null, transientVars)) {
                 theResults[0] = conditionalResult;
@@ -1224,6 +1407,7 @@ public class AbstractWorkflow implements Workflow {
 
                 long[] previousIds = new long[joinSteps.size()];
                 int i = 1;
+                List finishedSteps = new ArrayList();
 
                 for (Iterator iterator = joinSteps.iterator(); iterator.hasNext(); ) {
                     Step currentStep = (Step) iterator.next();
@@ -1233,7 +1417,7 @@ public class AbstractWorkflow implements Workflow {
                         // steps completed prior to this one),
                         // we don't move it, since it's already history.
                         if (!historySteps.contains(currentStep)) {
-                            store.moveToHistory(currentStep);
+                            finishedSteps.add(currentStep);
                         }
 
                         previousIds[i] = currentStep.getId();
@@ -1241,6 +1425,8 @@ public class AbstractWorkflow implements Workflow {
                     }
                 }
 
+                store.moveToHistory(finishedSteps);
+
                 if (!action.isFinish()) {
                     // ... now finish this step normally
                     previousIds[0] = step.getId();
@@ -1323,27 +1509,26 @@ public class AbstractWorkflow implements Workflow {
 
             if (input != null) {
                 String type = input.getType();
-                HashMap args = new HashMap(input.getArgs());
-
-                for (Iterator iterator2 = args.entrySet().iterator(); iterator2.hasNext(); ) {
-                    Map.Entry mapEntry = (Map.Entry) iterator2.next();
-                    mapEntry.setValue(getConfiguration().getVariableResolver().translateVariables((String) mapEntry.getValue(), transientVars, ps));
-                }
+                Map args = translateArgs(input.getArgs(), input.getCompiledArgs(), transientVars, ps);
 
                 Validator validator = getResolver().getValidator(type, args);
 
                 if (validator == null) {
                     String message = "Could not load validator class";
-                    context.setRollbackOnly();
+                    setRollbackOnly();
                     throw new WorkflowException(message);
                 }
 
+                long start = startTimer();
+                boolean failed = true;
+
                 try {
                     validator.validate(transientVars, args, ps);
+                    failed = false;
                 } catch (InvalidInputException e) {
                     throw e;
                 } catch (Exception e) {
-                    context.setRollbackOnly();
+                    setRollbackOnly();
 
                     if (e instanceof WorkflowException) {
                         throw (WorkflowException) e;
@@ -1351,6 +1536,8 @@ public class AbstractWorkflow implements Workflow {
 
                     String message = "An unknown exception occured executing Validator " + validator;
                     throw new WorkflowException(message, e);
+                } finally {
+                    stopTimer(WorkflowMetrics.VALIDATOR, transientVars, type, validator, start, failed);
                 }
             }
         }
@@ -1388,7 +1575,7 @@ public class AbstractWorkflow implements Workflow {
                 conditions = restriction.getConditionsDescriptor();
             }
 
-            result = new Boolean(passesConditions(wf.getGlobalConditions(), new HashMap(transientVars), ps, stepId) && passesConditions(conditions, new HashMap(transientVars), ps, stepId));
+            result = Boolean.valueOf(passesConditionsInScope(wf.getGlobalConditions(), transientVars, ps, stepId) && passesConditionsInScope(conditions, transientVars, ps, stepId));
             cache.put(action, result);
         }
 
@@ -1427,8 +1614,42 @@ public class AbstractWorkflow implements Workflow {
         return wf;
     }
 
+    /**
+     * Start a unit of work if the store supports them and none is active on
+     * the current thread yet.
+     *
+     * @return true if a unit of work was started and must be ended with
+     * {@link #endUnitOfWork(boolean, boolean)}
+     */
+    private boolean beginUnitOfWork() throws StoreException {
+        WorkflowStore store = getPersistence();
+
+        return (store instanceof TransactionalWorkflowStore) && ((TransactionalWorkflowStore) store).beginUnitOfWork();
+    }
+
+    private void endUnitOfWork(boolean unitOfWork, boolean completed) throws StoreException {
+        if (!unitOfWork) {
+            return;
+        }
+
+        TransactionalWorkflowStore store = (TransactionalWorkflowStore) getPersistence();
+
+        if (completed) {
+            store.endUnitOfWork();
+        } else {
+            // don't let a failed rollback hide the exception that caused it
+            store.setRollbackOnly();
+
+            try {
+                store.endUnitOfWork();
+            } catch (StoreException e) {
+                log.error("Error rolling back unit of work", e);
+            }
+        }
+    }
+
     private boolean canInitialize(String workflowName, int initialAction, Map transientVars, PropertySet ps) throws WorkflowException {
-        WorkflowDescriptor wf = getConfiguration().getWorkflow(workflowName);
+        WorkflowDescriptor wf = findWorkflow(workflowName);
 
         ActionDescriptor actionDescriptor = wf.getInitialAction(initialAction);
 
@@ -1443,7 +1664,104 @@ public class AbstractWorkflow implements Workflow {
             conditions = restriction.getConditionsDescriptor();
         }
 
-        return passesConditions(conditions, new HashMap(transientVars), ps, 0);
+        return passesConditionsInScope(conditions, transientVars, ps, 0);
+    }
+
+    private void addCompiledConditions(Map compiled, Collection actions) {
+        for (Iterator iterator = actions.iterator(); iterator.hasNext(); ) {
+            ActionDescriptor action = (ActionDescriptor) iterator.next();
+
+            if (action.getRestriction() != null) {
+                addCompiledConditions(compiled, action.getRestriction().getConditionsDescriptor());
+            }
+
+            for (Iterator iterator2 = action.getConditionalResults().iterator(); iterator2.hasNext(); ) {
+                addCompiled(compiled, ((ConditionalResultDescriptor) iterator2.next()).getCompiled());
+            }
+        }
+    }
+
+    private void addCompiledConditions(Map compiled, ConditionsDescriptor descriptor) {
+        if (descriptor != null) {
+            addCompiled(compiled, descriptor.getCompiled());
+        }
+    }
+
+    private void addCompiled(Map compiled, Object conditions) {
+        if ((conditions instanceof CompiledConditions) && (((CompiledConditions) conditions).getResolver() == getResolver())) {
+            compiled.put(conditions, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Check the conditions of a conditional result, compiled as by
+     * {@link #passesConditions(ConditionsDescriptor, Map, PropertySet, int)}.
+     */
+    private boolean passesConditions(ConditionalResultDescriptor conditionalResult, Map transientVars, PropertySet ps, int currentStepId) throws WorkflowException {
+        TypeResolver resolver = getResolver();
+        CompiledConditions compiled = (CompiledConditions) conditionalResult.getCompiled();
+
+        if ((compiled == null) || (compiled.getResolver() != resolver)) {
+            compiled = CompiledConditions.compile(null, conditionalResult.getConditions(), resolver);
+
+            if (compiled == null) {
+                return passesConditions(null, conditionalResult.getConditions(), transientVars, ps, currentStepId);
+            }
+
+            conditionalResult.setCompiled(compiled);
+        }
+
+        return compiled.passes(this, transientVars, ps, currentStepId, adaptiveConditions);
+    }
+
+    /**
+     * Evaluate conditions against a pooled copy-on-write scope of the
+     * transient variables, so conditions cannot modify the caller's map.
+     */
+    private boolean passesConditionsInScope(ConditionsDescriptor descriptor, Map transientVars, PropertySet ps, int currentStepId) throws WorkflowException {
+        if (descriptor == null) {
+            return true;
+        }
+
+        LayeredTransientVars scope = LayeredTransientVars.acquire(transientVars);
+
+        try {
+            return passesConditions(descriptor, scope, ps, currentStepId);
+        } finally {
+            scope.release();
+        }
+    }
+
+    /**
+     * Copy the given args, replacing each value by its variable translation.
+     * The precompiled templates are used when available and the configured
+     * resolver is able to render them.
+     */
+    private Map translateArgs(Map args, Map compiledArgs, Map transientVars, PropertySet ps) {
+        VariableResolver resolver = getConfiguration().getVariableResolver();
+        Map translated = new HashMap(args);
+
+        if ((compiledArgs != null) && (resolver instanceof DefaultVariableResolver)) {
+            DefaultVariableResolver defaultResolver = (DefaultVariableResolver) resolver;
+
+            for (Iterator iterator = translated.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry mapEntry = (Map.Entry) iterator.next();
+                Object template = compiledArgs.get(mapEntry.getKey());
+
+                if (template instanceof VariableTemplate) {
+                    mapEntry.setValue(defaultResolver.translateVariables((VariableTemplate) template, transientVars, ps));
+                } else {
+                    mapEntry.setValue(resolver.translateVariables((String) mapEntry.getValue(), transientVars, ps));
+                }
+            }
+        } else {
+            for (Iterator iterator = translated.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry mapEntry = (Map.Entry) iterator.next();
+                mapEntry.setValue(resolver.translateVariables((String) mapEntry.getValue(), transientVars, ps));
+            }
+        }
+
+        return translated;
     }
 
     private Step createNewCurrentStep(ResultDescriptor theResult, WorkflowEntry entry, WorkflowStore store, int actionId, Step currentStep, long[] previousIds, Map transientVars, PropertySet ps)
@@ -1549,8 +1867,92 @@ public class AbstractWorkflow implements Workflow {
 
             return newStep;
         } catch (WorkflowException e) {
-            context.setRollbackOnly();
+            setRollbackOnly();
             throw e;
         }
     }
+
+    /**
+     * Get a workflow descriptor from the configuration, timing the lookup.
+     */
+    private WorkflowDescriptor findWorkflow(String workflowName) throws FactoryException {
+        long start = startTimer();
+        boolean failed = true;
+
+        try {
+            WorkflowDescriptor wf = getConfiguration().getWorkflow(workflowName);
+            failed = false;
+
+            return wf;
+        } finally {
+            stopTimer(WorkflowMetrics.FACTORY, workflowName, -1, null, start, failed);
+        }
+    }
+
+    /**
+     * @return the start time for {@link #stopTimer}, or 0 if metrics are
+     * disabled
+     */
+    private long startTimer() {
+        return metrics.isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    private void stopTimer(String metric, String workflowName, int actionId, String type, long start, boolean failed) {
+        if (start != 0L) {
+            metrics.record(metric, workflowName, actionId, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Record the timing of a condition, function or validator, taking the
+     * workflow name and action id from the transient variables. Providers of
+     * the <code>class</code> type are recorded by their class name.
+     */
+    private void stopTimer(String metric, Map transientVars, String type, Object provider, long start, boolean failed) {
+        if (start == 0L) {
+            return;
+        }
+
+        Object entry = transientVars.get("entry");
+        Object actionId = transientVars.get("actionId");
+
+        if ("class".equals(type)) {
+            type = provider.getClass().getName();
+        }
+
+        metrics.record(metric, (entry instanceof WorkflowEntry) ? ((WorkflowEntry) entry).getWorkflowName() : null, (actionId instanceof Integer) ? ((Integer) actionId).intValue() : (-1), type,
+                System.nanoTime() - start, failed);
+    }
+
+    // ~ Inner Classes
+    // //////////////////////////////////////////////////////////
+
+    /**
+     * The context handed to functions, conditions, validators and registers
+     * while the store is a {@link TransactionalWorkflowStore}, so that their
+     * calls to {@link WorkflowContext#setRollbackOnly()} also roll back the
+     * unit of work of the store.
+     */
+    private static class UnitOfWorkContext implements WorkflowContext {
+        private static final long serialVersionUID = 1L;
+        private final WorkflowContext context;
+        private final transient TransactionalWorkflowStore store;
+
+        UnitOfWorkContext(WorkflowContext context, TransactionalWorkflowStore store) {
+            this.context = context;
+            this.store = store;
+        }
+
+        public String getCaller() {
+            return context.getCaller();
+        }
+
+        public void setRollbackOnly() {
+            context.setRollbackOnly();
+
+            if (store != null) {
+                store.setRollbackOnly();
+            }
+        }
+    }
 }
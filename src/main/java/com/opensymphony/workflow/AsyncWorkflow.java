@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the calls of a {@link Workflow} on an {@link Executor}, so that the
+ * calling thread does not wait for the store or for slow functions. Each
+ * method returns a {@link Future} of the result of the corresponding
+ * {@link Workflow} method, whose {@link Future#get()} throws the
+ * {@link WorkflowException} of a failed call wrapped in an
+ * {@link java.util.concurrent.ExecutionException}.
+ * <p>
+ * Calls for the same entry id run one at a time in the order they were
+ * made, so concurrent actions on one instance are applied in order, and
+ * the available actions of an instance reflect all actions requested
+ * before them. Calls for different entries run concurrently, as the
+ * executor allows. Ordering only holds among the calls made through the
+ * same AsyncWorkflow.
+ * <p>
+ * Calls run on executor threads, so the workflow's {@link WorkflowContext}
+ * must not depend on the calling thread.
+ */
+public class AsyncWorkflow {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final Executor executor;
+
+	/**
+	 * Entry id to the {@link EntryQueue} of its pending calls, only present
+	 * while calls are pending.
+	 */
+	private final ConcurrentMap queues = new ConcurrentHashMap();
+	private final Workflow workflow;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	/**
+	 * @param executor
+	 *            runs the calls, such as a thread pool, or a virtual thread
+	 *            per task executor where the Java runtime has one
+	 */
+	public AsyncWorkflow(Workflow workflow, Executor executor) {
+		this.workflow = workflow;
+		this.executor = executor;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return a future completed once the action is performed, as by
+	 *         {@link Workflow#doAction(long, int, Map)}, whose value is null
+	 */
+	public Future doAction(final long id, final int actionId, final Map inputs) {
+		return submit(id, new Callable() {
+			public Object call() throws WorkflowException {
+				workflow.doAction(id, actionId, inputs);
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return a future of the available actions, as by
+	 *         {@link Workflow#getAvailableActions(long, Map)}
+	 */
+	public Future getAvailableActions(final long id, final Map inputs) {
+		return submit(id, new Callable() {
+			public Object call() {
+				return workflow.getAvailableActions(id, inputs);
+			}
+		});
+	}
+
+	public Workflow getWorkflow() {
+		return workflow;
+	}
+
+	/**
+	 * @return a future of the id of the new instance, as a Long, as by
+	 *         {@link Workflow#initialize(String, int, Map)}
+	 */
+	public Future initialize(final String workflowName, final int initialAction, final Map inputs) {
+		FutureTask future = new FutureTask(new Callable() {
+			public Object call() throws WorkflowException {
+				return new Long(workflow.initialize(workflowName, initialAction, inputs));
+			}
+		});
+
+		executor.execute(future);
+
+		return future;
+	}
+
+	private Future submit(long id, Callable call) {
+		FutureTask future = new FutureTask(call);
+		Long key = new Long(id);
+
+		while (true) {
+			EntryQueue queue = (EntryQueue) queues.get(key);
+
+			if (queue == null) {
+				queue = new EntryQueue(key);
+
+				EntryQueue existing = (EntryQueue) queues.putIfAbsent(key, queue);
+
+				if (existing != null) {
+					queue = existing;
+				}
+			}
+
+			// a queue is retired once it runs empty, then a new one is needed
+			if (queue.add(future)) {
+				return future;
+			}
+		}
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * The pending calls of one entry, run one after the other by a single
+	 * executor task.
+	 */
+	private class EntryQueue implements Runnable {
+		private final LinkedList calls = new LinkedList();
+		private final Long id;
+		private boolean retired;
+		private boolean running;
+
+		EntryQueue(Long id) {
+			this.id = id;
+		}
+
+		public void run() {
+			while (true) {
+				Runnable call;
+
+				synchronized (this) {
+					call = (Runnable) calls.poll();
+
+					if (call == null) {
+						running = false;
+						retired = true;
+						queues.remove(id, this);
+
+						return;
+					}
+				}
+
+				// a FutureTask keeps any exception for its caller
+				call.run();
+			}
+		}
+
+		/**
+		 * @return false if the queue is retired and the call was not added
+		 */
+		boolean add(FutureTask call) {
+			synchronized (this) {
+				if (retired) {
+					return false;
+				}
+
+				calls.add(call);
+
+				if (running) {
+					return true;
+				}
+
+				running = true;
+			}
+
+			try {
+				executor.execute(this);
+			} catch (RuntimeException e) {
+				// calls added meanwhile would otherwise never run
+				synchronized (this) {
+					calls.remove(call);
+
+					while (!calls.isEmpty()) {
+						((FutureTask) calls.poll()).cancel(false);
+					}
+
+					running = false;
+					retired = true;
+					queues.remove(id, this);
+				}
+
+				throw e;
+			}
+
+			return true;
+		}
+	}
+}
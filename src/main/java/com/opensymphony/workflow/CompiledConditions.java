@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.workflow.loader.AbstractDescriptor;
+import com.opensymphony.workflow.loader.ConditionDescriptor;
+import com.opensymphony.workflow.loader.ConditionsDescriptor;
+import com.opensymphony.workflow.util.VariableTemplate;
+import com.opensymphony.workflow.util.beanshell.BeanShellCompiler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A condition tree compiled once for repeated evaluation by
+ * {@link AbstractWorkflow}. Nested groups are turned into arrays of nodes,
+ * nested groups of the same type are merged into their parent, and the
+ * AND/OR type is resolved to a flag. {@link Stateless} conditions are
+ * resolved once through the {@link TypeResolver} the tree was compiled with;
+ * other conditions are still resolved on every evaluation. If the resolver
+ * compiles scripts, constant <code>beanshell</code> scripts are compiled into
+ * classes at the same time.
+ * <p>
+ * Only trees whose conditions have compiled args, that is trees of a frozen
+ * workflow descriptor, are compiled.
+ * <p>
+ * In adaptive mode, the cost and pass rate of every node are recorded, and
+ * each group periodically reorders its consecutive side-effect-free children
+ * so that the cheapest child most likely to decide the group is checked
+ * first. Other children keep their declared position, so whether they are
+ * checked does not depend on the reordering.
+ */
+final class CompiledConditions {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	/**
+	 * Number of checks a node needs before its statistics are trusted.
+	 */
+	private static final int MIN_SAMPLES = 16;
+
+	/**
+	 * Number of adaptive checks of a group between two reorderings.
+	 */
+	private static final int REORDER_INTERVAL = 1024;
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final Node root;
+	private final TypeResolver resolver;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	private CompiledConditions(Node root, TypeResolver resolver) {
+		this.root = root;
+		this.resolver = resolver;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Compile a list of {@link ConditionDescriptor} and
+	 * {@link ConditionsDescriptor} children, combined as by
+	 * {@link AbstractWorkflow#passesConditions(String, List, Map, PropertySet, int)}.
+	 *
+	 * @return the compiled tree, or null if the tree has no condition or any
+	 *         condition has no compiled args
+	 */
+	static CompiledConditions compile(String type, List conditions, TypeResolver resolver) {
+		if (!hasCondition(conditions)) {
+			return null;
+		}
+
+		Node root = compileGroup("AND".equals(type), conditions, resolver);
+
+		return (root != null) ? new CompiledConditions(root, resolver) : null;
+	}
+
+	TypeResolver getResolver() {
+		return resolver;
+	}
+
+	/**
+	 * Add the statistics of each condition of this tree to the given list.
+	 */
+	void getStatistics(List statistics) {
+		root.getStatistics(statistics);
+	}
+
+	boolean passes(AbstractWorkflow workflow, Map transientVars, PropertySet ps, int currentStepId, boolean adaptive) throws WorkflowException {
+		if (!adaptive) {
+			return root.passes(workflow, transientVars, ps, currentStepId, false);
+		}
+
+		return root.passesTimed(workflow, transientVars, ps, currentStepId);
+	}
+
+	private static Node compileGroup(boolean and, List conditions, TypeResolver resolver) {
+		List nodes = new ArrayList(conditions.size());
+
+		if (!addNodes(and, conditions, nodes, resolver)) {
+			return null;
+		}
+
+		if (nodes.size() == 1) {
+			return (Node) nodes.get(0);
+		}
+
+		return new Group(and, (Node[]) nodes.toArray(new Node[nodes.size()]));
+	}
+
+	/**
+	 * Add the nodes for the given conditions, merging the children of
+	 * non-empty nested groups of the same type.
+	 *
+	 * @return false if a condition has no compiled args
+	 */
+	private static boolean addNodes(boolean and, List conditions, List nodes, TypeResolver resolver) {
+		for (Iterator iterator = conditions.iterator(); iterator.hasNext();) {
+			AbstractDescriptor descriptor = (AbstractDescriptor) iterator.next();
+
+			if (descriptor instanceof ConditionsDescriptor) {
+				ConditionsDescriptor group = (ConditionsDescriptor) descriptor;
+				boolean groupAnd = "AND".equals(group.getType());
+
+				if ((groupAnd == and) && !group.getConditions().isEmpty()) {
+					if (!addNodes(and, group.getConditions(), nodes, resolver)) {
+						return false;
+					}
+				} else {
+					Node node = compileGroup(groupAnd, group.getConditions(), resolver);
+
+					if (node == null) {
+						return false;
+					}
+
+					nodes.add(node);
+				}
+			} else {
+				ConditionDescriptor condition = (ConditionDescriptor) descriptor;
+
+				if (condition.getCompiledArgs() == null) {
+					return false;
+				}
+
+				nodes.add(compileCondition(condition, resolver));
+			}
+		}
+
+		return true;
+	}
+
+	private static Node compileCondition(ConditionDescriptor descriptor, TypeResolver resolver) {
+		Object className = descriptor.getCompiledArgs().get(Workflow.CLASS_NAME);
+		Condition condition = null;
+
+		if (!(className instanceof VariableTemplate) || ((VariableTemplate) className).isConstant()) {
+			try {
+				condition = resolver.getCondition(descriptor.getType(), descriptor.getArgs());
+			} catch (WorkflowException e) {
+				// reported when the condition is checked
+			}
+		}
+
+		if ((condition != null) && resolver.isCompilingScripts() && "beanshell".equals(descriptor.getType())) {
+			Object script = descriptor.getCompiledArgs().get(Workflow.BSH_SCRIPT);
+
+			// a script with variables differs from one check to the next
+			if ((script instanceof VariableTemplate) && ((VariableTemplate) script).isConstant()) {
+				Condition compiled = BeanShellCompiler.getCondition(((VariableTemplate) script).getSource());
+
+				if (compiled != null) {
+					condition = compiled;
+				}
+			}
+		}
+
+		boolean sideEffectFree = resolver.isSideEffectFree(descriptor.getType(), condition);
+
+		// only stateless instances may be shared by all checks
+		return new Leaf(descriptor, (condition instanceof Stateless) ? condition : null, sideEffectFree);
+	}
+
+	private static boolean hasCondition(List conditions) {
+		for (Iterator iterator = conditions.iterator(); iterator.hasNext();) {
+			Object descriptor = iterator.next();
+
+			if (!(descriptor instanceof ConditionsDescriptor) || hasCondition(((ConditionsDescriptor) descriptor).getConditions())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	private abstract static class Node {
+		final ConditionStatistics statistics;
+
+		Node(ConditionStatistics statistics) {
+			this.statistics = statistics;
+		}
+
+		abstract void getStatistics(List statistics);
+
+		abstract boolean passes(AbstractWorkflow workflow, Map transientVars, PropertySet ps, int currentStepId, boolean adaptive) throws WorkflowException;
+
+		boolean passesTimed(AbstractWorkflow workflow, Map transientVars, PropertySet ps, int currentStepId) throws WorkflowException {
+			long start = System.nanoTime();
+			boolean passed = passes(workflow, transientVars, ps, currentStepId, true);
+			statistics.record(System.nanoTime() - start, passed);
+
+			return passed;
+		}
+	}
+
+	private static class Group extends Node {
+		private final AtomicLong checks = new AtomicLong();
+		private final Node[] nodes;
+		private final boolean and;
+		private volatile Node[] order;
+
+		Group(boolean and, Node[] nodes) {
+			super(new ConditionStatistics(null, isSideEffectFree(nodes)));
+			this.and = and;
+			this.nodes = nodes;
+			this.order = nodes;
+		}
+
+		void getStatistics(List statistics) {
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i].getStatistics(statistics);
+			}
+		}
+
+		boolean passes(AbstractWorkflow workflow, Map transientVars, PropertySet ps, int currentStepId, boolean adaptive) throws WorkflowException {
+			if (nodes.length == 0) {
+				return true;
+			}
+
+			if (!adaptive) {
+				for (int i = 0; i < nodes.length; i++) {
+					if (nodes[i].passes(workflow, transientVars, ps, currentStepId, false) != and) {
+						return !and;
+					}
+				}
+
+				return and;
+			}
+
+			if ((checks.incrementAndGet() % REORDER_INTERVAL) == 0) {
+				reorder();
+			}
+
+			Node[] order = this.order;
+
+			for (int i = 0; i < order.length; i++) {
+				if (order[i].passesTimed(workflow, transientVars, ps, currentStepId) != and) {
+					return !and;
+				}
+			}
+
+			return and;
+		}
+
+		private static boolean isSideEffectFree(Node[] nodes) {
+			for (int i = 0; i < nodes.length; i++) {
+				if (!nodes[i].statistics.isSideEffectFree()) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * The expected cost of checking a node per check that decides this
+		 * group, or the largest value if the node has too few samples.
+		 */
+		private double getRank(Node node) {
+			ConditionStatistics statistics = node.statistics;
+
+			if (statistics.getCalls() < MIN_SAMPLES) {
+				return Double.MAX_VALUE;
+			}
+
+			double deciding = and ? (1 - statistics.getPassRate()) : statistics.getPassRate();
+
+			return (deciding == 0) ? Double.MAX_VALUE : (statistics.getAverageNanos() / deciding);
+		}
+
+		/**
+		 * Sort each run of consecutive side-effect-free nodes by rank,
+		 * keeping the declared order of nodes of the same rank.
+		 */
+		private void reorder() {
+			Node[] order = (Node[]) nodes.clone();
+			double[] ranks = new double[order.length];
+
+			for (int i = 0; i < order.length; i++) {
+				ranks[i] = getRank(order[i]);
+			}
+
+			for (int i = 1; i < order.length; i++) {
+				Node node = order[i];
+				double rank = ranks[i];
+				int j = i;
+
+				if (!node.statistics.isSideEffectFree()) {
+					continue;
+				}
+
+				while ((j > 0) && order[j - 1].statistics.isSideEffectFree() && (ranks[j - 1] > rank)) {
+					order[j] = order[j - 1];
+					ranks[j] = ranks[j - 1];
+					j--;
+				}
+
+				order[j] = node;
+				ranks[j] = rank;
+			}
+
+			this.order = order;
+		}
+	}
+
+	private static class Leaf extends Node {
+		private final Condition condition;
+		private final ConditionDescriptor descriptor;
+
+		Leaf(ConditionDescriptor descriptor, Condition condition, boolean sideEffectFree) {
+			super(new ConditionStatistics(descriptor, sideEffectFree));
+			this.descriptor = descriptor;
+			this.condition = condition;
+		}
+
+		void getStatistics(List statistics) {
+			statistics.add(this.statistics);
+		}
+
+		boolean passes(AbstractWorkflow workflow, Map transientVars, PropertySet ps, int currentStepId, boolean adaptive) throws WorkflowException {
+			return workflow.passesCondition(descriptor, condition, transientVars, ps, currentStepId);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow;
+
+import com.opensymphony.workflow.loader.ConditionDescriptor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cost and selectivity of a condition, recorded while adaptive condition
+ * ordering is enabled on {@link AbstractWorkflow}.
+ *
+ * @see AbstractWorkflow#getConditionStatistics(String)
+ */
+public class ConditionStatistics {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+	private final AtomicLong passes = new AtomicLong();
+	private final ConditionDescriptor descriptor;
+	private final boolean sideEffectFree;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	ConditionStatistics(ConditionDescriptor descriptor, boolean sideEffectFree) {
+		this.descriptor = descriptor;
+		this.sideEffectFree = sideEffectFree;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the average time taken by a check, in nanoseconds
+	 */
+	public double getAverageNanos() {
+		long calls = this.calls.get();
+
+		return (calls == 0) ? 0 : ((double) nanos.get() / calls);
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public ConditionDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+	/**
+	 * @return the fraction of checks that passed, after negation
+	 */
+	public double getPassRate() {
+		long calls = this.calls.get();
+
+		return (calls == 0) ? 0 : ((double) passes.get() / calls);
+	}
+
+	public long getPasses() {
+		return passes.get();
+	}
+
+	/**
+	 * @return whether the condition may be checked out of its declared order
+	 */
+	public boolean isSideEffectFree() {
+		return sideEffectFree;
+	}
+
+	public long getTotalNanos() {
+		return nanos.get();
+	}
+
+	public String toString() {
+		String type = (descriptor != null) ? descriptor.getType() : "conditions";
+
+		return "ConditionStatistics[" + type + ((descriptor != null) && descriptor.hasId() ? ("#" + descriptor.getId()) : "") + ", calls=" + calls + ", passRate=" + getPassRate()
+				+ ", averageNanos=" + getAverageNanos() + ", sideEffectFree=" + sideEffectFree + ']';
+	}
+
+	void record(long nanos, boolean passed) {
+		calls.incrementAndGet();
+		this.nanos.addAndGet(nanos);
+
+		if (passed) {
+			passes.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow;
+
+import java.util.*;
+
+/**
+ * A copy-on-write scope over a map of transient variables. Reads fall through
+ * to the parent map, while writes and removals are recorded in a local layer
+ * so the parent is never modified. This gives conditions the same isolation as
+ * a private copy of the transient variables without copying them.
+ * <p>
+ * Scopes are pooled per thread: obtain one through {@link #acquire(Map)} and
+ * hand it back with {@link #release()} once the evaluation is done. A released
+ * scope is reused, so callers must not keep a reference to it.
+ */
+public class LayeredTransientVars extends AbstractMap {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final int MAX_POOLED = 16;
+	private static final Object REMOVED = new Object();
+	private static final ThreadLocal pool = new ThreadLocal();
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private HashMap local;
+	private Map parent;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public LayeredTransientVars(Map parent) {
+		this.parent = parent;
+	}
+
+	private LayeredTransientVars() {
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Get a scope over the given parent map, reusing a pooled one from the
+	 * current thread if available.
+	 */
+	public static LayeredTransientVars acquire(Map parent) {
+		List free = (List) pool.get();
+		LayeredTransientVars vars;
+
+		if ((free == null) || free.isEmpty()) {
+			vars = new LayeredTransientVars();
+		} else {
+			vars = (LayeredTransientVars) free.remove(free.size() - 1);
+		}
+
+		vars.parent = parent;
+
+		return vars;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public Map getParent() {
+		return parent;
+	}
+
+	public void clear() {
+		local().clear();
+
+		for (Iterator iterator = parent.keySet().iterator(); iterator.hasNext();) {
+			local.put(iterator.next(), REMOVED);
+		}
+	}
+
+	public boolean containsKey(Object key) {
+		if ((local != null) && local.containsKey(key)) {
+			return local.get(key) != REMOVED;
+		}
+
+		return parent.containsKey(key);
+	}
+
+	public Set entrySet() {
+		Map merged = new HashMap(parent);
+
+		if (local != null) {
+			for (Iterator iterator = local.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+
+				if (entry.getValue() == REMOVED) {
+					merged.remove(entry.getKey());
+				} else {
+					merged.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		return Collections.unmodifiableMap(merged).entrySet();
+	}
+
+	public Object get(Object key) {
+		if (local != null) {
+			Object value = local.get(key);
+
+			if (value != null) {
+				return (value == REMOVED) ? null : value;
+			}
+
+			if (local.containsKey(key)) {
+				return null;
+			}
+		}
+
+		return parent.get(key);
+	}
+
+	public Object put(Object key, Object value) {
+		Object old = get(key);
+		local().put(key, value);
+
+		return old;
+	}
+
+	/**
+	 * Return this scope to the pool of the current thread.
+	 */
+	public void release() {
+		parent = null;
+
+		if (local != null) {
+			local.clear();
+		}
+
+		List free = (List) pool.get();
+
+		if (free == null) {
+			free = new ArrayList(MAX_POOLED);
+			pool.set(free);
+		}
+
+		if (free.size() < MAX_POOLED) {
+			free.add(this);
+		}
+	}
+
+	public Object remove(Object key) {
+		Object old = get(key);
+
+		if (parent.containsKey(key)) {
+			local().put(key, REMOVED);
+		} else if (local != null) {
+			local.remove(key);
+		}
+
+		return old;
+	}
+
+	public int size() {
+		if ((local == null) || local.isEmpty()) {
+			return parent.size();
+		}
+
+		return entrySet().size();
+	}
+
+	private HashMap local() {
+		if (local == null) {
+			local = new HashMap();
+		}
+
+		return local;
+	}
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow;
+
+/**
+ * Marker interface for {@link Condition} implementations that only read
+ * state, so that checking them, or not checking them, has no effect on the
+ * workflow or anything else.
+ * <p>
+ * When adaptive condition ordering is enabled on {@link AbstractWorkflow},
+ * such conditions may be checked in a different order than declared in the
+ * workflow descriptor. Condition types that cannot implement this interface,
+ * such as scripts, can be declared side-effect-free through
+ * {@link TypeResolver#declareSideEffectFree(String)}.
+ */
+public interface SideEffectFree {
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow;
+
+/**
+ * Marker interface for {@link Condition}, {@link FunctionProvider},
+ * {@link Validator} and {@link Register} implementations that keep no state
+ * between invocations and are safe to call from several threads at once.
+ * <p>
+ * When caching is enabled on the {@link TypeResolver}, a single instance of a
+ * stateless type is created and shared by all callers, rather than a new
+ * instance being created for every invocation.
+ */
+public interface Stateless {
+}
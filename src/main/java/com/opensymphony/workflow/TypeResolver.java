@@ -4,8 +4,12 @@
  */
 package com.opensymphony.workflow;
 
+import java.lang.reflect.Constructor;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +36,22 @@ public class TypeResolver {
 	protected Map registers = new HashMap();
 	protected Map validators = new HashMap();
 
+	/**
+	 * Class name to either the shared instance of a {@link Stateless} type or
+	 * the no-arg constructor of any other type. Only used in caching mode.
+	 */
+	private final ConcurrentMap typeCache = new ConcurrentHashMap();
+
+	/**
+	 * Condition types and class names declared through
+	 * {@link #declareSideEffectFree(String)}, used as a set.
+	 */
+	private final Map sideEffectFree = new ConcurrentHashMap();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private volatile boolean caching = false;
+	private volatile boolean compilingScripts = false;
+
 	// ~ Constructors
 	// ///////////////////////////////////////////////////////////
 
@@ -41,21 +61,25 @@ public class TypeResolver {
 		validators.put("jndi", "com.opensymphony.workflow.util.jndi.JNDIValidator");
 		validators.put("beanshell", "com.opensymphony.workflow.util.beanshell.BeanShellValidator");
 		validators.put("bsf", "com.opensymphony.workflow.util.bsf.BSFValidator");
+		validators.put("jsr223", "com.opensymphony.workflow.util.jsr223.JSR223Validator");
 		conditions.put("remote-ejb", "com.opensymphony.workflow.util.ejb.remote.RemoteEJBCondition");
 		conditions.put("local-ejb", "com.opensymphony.workflow.util.ejb.local.LocalEJBCondition");
 		conditions.put("jndi", "com.opensymphony.workflow.util.jndi.JNDICondition");
 		conditions.put("beanshell", "com.opensymphony.workflow.util.beanshell.BeanShellCondition");
 		conditions.put("bsf", "com.opensymphony.workflow.util.bsf.BSFCondition");
+		conditions.put("jsr223", "com.opensymphony.workflow.util.jsr223.JSR223Condition");
 		registers.put("remote-ejb", "com.opensymphony.workflow.util.ejb.remote.RemoteEJBRegister");
 		registers.put("local-ejb", "com.opensymphony.workflow.util.ejb.local.LocalEJBRegister");
 		registers.put("jndi", "com.opensymphony.workflow.util.jndi.JNDIRegister");
 		registers.put("beanshell", "com.opensymphony.workflow.util.beanshell.BeanShellRegister");
 		registers.put("bsf", "com.opensymphony.workflow.util.bsf.BSFRegister");
+		registers.put("jsr223", "com.opensymphony.workflow.util.jsr223.JSR223Register");
 		functions.put("remote-ejb", "com.opensymphony.workflow.util.ejb.remote.RemoteEJBFunctionProvider");
 		functions.put("local-ejb", "com.opensymphony.workflow.util.ejb.local.LocalEJBFunctionProvider");
 		functions.put("jndi", "com.opensymphony.workflow.util.jndi.JNDIFunctionProvider");
 		functions.put("beanshell", "com.opensymphony.workflow.util.beanshell.BeanShellFunctionProvider");
 		functions.put("bsf", "com.opensymphony.workflow.util.bsf.BSFFunctionProvider");
+		functions.put("jsr223", "com.opensymphony.workflow.util.jsr223.JSR223FunctionProvider");
 	}
 
 	// ~ Methods
@@ -103,6 +127,86 @@ public class TypeResolver {
 		return (Register) loadObject(className);
 	}
 
+	/**
+	 * Enable or disable caching mode. When caching, each class name is loaded
+	 * only once and its constructor is reused; types implementing
+	 * {@link Stateless} are instantiated once and the same instance is
+	 * returned on every lookup. Caching ignores changes to the thread context
+	 * classloader after a class has first been resolved.
+	 */
+	public void setCaching(boolean caching) {
+		this.caching = caching;
+	}
+
+	public boolean isCaching() {
+		return caching;
+	}
+
+	/**
+	 * Enable or disable compiling of <code>beanshell</code> conditions. When
+	 * enabled, the scripts of the conditions in compiled condition trees
+	 * that are also valid Java are compiled into classes through
+	 * {@link com.opensymphony.workflow.util.beanshell.BeanShellCompiler};
+	 * other scripts are still interpreted.
+	 * Compiling only applies to trees compiled afterwards.
+	 */
+	public void setCompilingScripts(boolean compilingScripts) {
+		this.compilingScripts = compilingScripts;
+	}
+
+	public boolean isCompilingScripts() {
+		return compilingScripts;
+	}
+
+	/**
+	 * @return the number of lookups answered from the type cache
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to load a class
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Discard all cached classes and shared instances, and reset the hit/miss
+	 * counters.
+	 */
+	public void clearCache() {
+		typeCache.clear();
+		cacheHits.set(0);
+		cacheMisses.set(0);
+	}
+
+	/**
+	 * Declare that conditions of the given type, or of the given class name
+	 * for the <code>class</code> type, have no side effects, as if they
+	 * implemented {@link SideEffectFree}. Declarations only apply to
+	 * condition trees compiled afterwards, so they should be made before
+	 * the workflows are used.
+	 */
+	public void declareSideEffectFree(String typeOrClassName) {
+		sideEffectFree.put(typeOrClassName, Boolean.TRUE);
+	}
+
+	/**
+	 * @param condition
+	 *            the resolved condition, or null if it is not known
+	 * @return whether a condition of the given type may be checked out of
+	 *         its declared order
+	 */
+	public boolean isSideEffectFree(String type, Condition condition) {
+		if (condition instanceof SideEffectFree) {
+			return true;
+		}
+
+		return sideEffectFree.containsKey(type) || ((condition != null) && sideEffectFree.containsKey(condition.getClass().getName()));
+	}
+
 	public static void setResolver(TypeResolver resolver) {
 		TypeResolver.resolver = resolver;
 	}
@@ -126,6 +230,10 @@ public class TypeResolver {
 	}
 
 	protected Object loadObject(String clazz) {
+		if (caching) {
+			return loadCachedObject(clazz.trim());
+		}
+
 		try {
 			return ClassLoaderUtil.loadClass(clazz.trim(), getClass()).newInstance();
 		} catch (Exception e) {
@@ -136,4 +244,39 @@ public class TypeResolver {
 		}
 	}
 
+	private Object loadCachedObject(String clazz) {
+		Object cached = typeCache.get(clazz);
+
+		try {
+			if (cached != null) {
+				cacheHits.incrementAndGet();
+
+				return (cached instanceof Constructor) ? ((Constructor) cached).newInstance() : cached;
+			}
+
+			long misses = cacheMisses.incrementAndGet();
+
+			if (log.isDebugEnabled()) {
+				log.debug("Resolving type " + clazz + " (hits=" + cacheHits.get() + ", misses=" + misses + ')');
+			}
+
+			Constructor constructor = ClassLoaderUtil.loadClass(clazz, getClass()).getConstructor();
+			Object instance = constructor.newInstance();
+
+			if (instance instanceof Stateless) {
+				Object shared = typeCache.putIfAbsent(clazz, instance);
+
+				return (shared != null) ? shared : instance;
+			}
+
+			typeCache.putIfAbsent(clazz, constructor);
+
+			return instance;
+		} catch (Exception e) {
+			log.error("Could not load class '" + clazz + "'", e);
+
+			return null;
+		}
+	}
+
 }
@@ -29,6 +29,8 @@ public interface Workflow {
 	String BSF_SCRIPT = "script";
 	String BSF_SOURCE = "source";
 	String BSH_SCRIPT = "script";
+	String JSR223_LANGUAGE = "language";
+	String JSR223_SCRIPT = "script";
 
 	// statics
 	String CLASS_NAME = "class.name";
@@ -169,8 +169,13 @@ public class DefaultConfiguration implements Configuration, Serializable {
 						throw new FactoryException("factory does not specify a class attribute");
 					}
 
+					WorkflowFactory replaced = factory;
 					factory = (WorkflowFactory) ClassLoaderUtil.loadClass(clazz, getClass()).newInstance();
 
+					if (replaced instanceof AbstractWorkflowFactory) {
+						((AbstractWorkflowFactory) replaced).close();
+					}
+
 					Properties properties = new Properties();
 					List props = XMLUtil.getChildElements(factoryElement, "property");
 
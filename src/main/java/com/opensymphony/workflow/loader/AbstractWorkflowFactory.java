@@ -35,6 +35,15 @@ public abstract class AbstractWorkflowFactory implements WorkflowFactory {
 		this.properties = properties;
 	}
 
+	/**
+	 * Release what the factory holds beyond its descriptors, such as a thread
+	 * watching workflow files. Called when a configuration replaces the
+	 * factory, and suitable as the destroy method of a factory managed by a
+	 * container. Does nothing by default.
+	 */
+	public void close() {
+	}
+
 	public final void init(Properties p) {
 		this.properties = p;
 	}
@@ -0,0 +1,824 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.loader;
+
+import com.opensymphony.workflow.InvalidWorkflowDescriptorException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary form of a {@link WorkflowDescriptor}, which loads without any
+ * XML parsing.
+ * <p>
+ * The header is a four byte magic number, a two byte format version, two
+ * reserved bytes, then the length and CRC32 checksum of the payload. The
+ * payload starts with a table of every distinct string of the descriptor,
+ * followed by the descriptor tree, in which strings are table indexes and all
+ * numbers are variable length. Descriptors are read straight from a
+ * {@link ByteBuffer}, so a memory mapped file or the bytes of a database blob
+ * are decoded in place.
+ * <p>
+ * Parents are restored when they are the enclosing descriptor, as they are
+ * when loading from XML. Argument and meta attribute values must be strings.
+ */
+class BinaryDescriptorFormat {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	/**
+	 * \u0089 O S W; the first byte can never start an XML document.
+	 */
+	static final int MAGIC = 0x894F5357;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HAS_ID = 1;
+	private static final int HAS_PARENT = 2;
+	private static final int HAS_ENTITY_ID = 4;
+	private static final int INLINE = 0;
+	private static final int REFERENCE = 1;
+	private static final int CONDITION = 0;
+	private static final int CONDITIONS = 1;
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return true if the buffer, from its position, starts with the binary
+	 *         descriptor magic number
+	 */
+	static boolean isBinary(ByteBuffer buffer) {
+		return (buffer.remaining() >= 4) && (buffer.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(buffer.position()) == MAGIC);
+	}
+
+	/**
+	 * Decode a descriptor from the buffer's position onwards. The position of
+	 * the buffer is not changed. The descriptor is neither validated nor
+	 * frozen.
+	 */
+	static WorkflowDescriptor read(ByteBuffer buffer) throws InvalidWorkflowDescriptorException {
+		ByteBuffer in = buffer.duplicate();
+		in.order(ByteOrder.BIG_ENDIAN);
+
+		if ((in.remaining() < HEADER_SIZE) || (in.getInt() != MAGIC)) {
+			throw new InvalidWorkflowDescriptorException("Not a binary workflow descriptor");
+		}
+
+		int version = in.getShort() & 0xFFFF;
+
+		if (version != VERSION) {
+			throw new InvalidWorkflowDescriptorException("Unsupported binary workflow descriptor version " + version);
+		}
+
+		in.getShort();
+
+		int length = in.getInt();
+		int checksum = in.getInt();
+
+		if ((length < 0) || (length > in.remaining())) {
+			throw new InvalidWorkflowDescriptorException("Truncated binary workflow descriptor");
+		}
+
+		in.limit(in.position() + length);
+
+		if (checksum(in) != checksum) {
+			throw new InvalidWorkflowDescriptorException("Binary workflow descriptor checksum mismatch");
+		}
+
+		try {
+			return new Reader(in, DescriptorFactory.getFactory()).readWorkflow();
+		} catch (BufferUnderflowException e) {
+			throw new InvalidWorkflowDescriptorException("Truncated binary workflow descriptor", e);
+		} catch (RuntimeException e) {
+			throw new InvalidWorkflowDescriptorException("Invalid binary workflow descriptor", e);
+		}
+	}
+
+	static void write(WorkflowDescriptor descriptor, OutputStream out) throws IOException {
+		Writer writer = new Writer(descriptor);
+		writer.writeWorkflow();
+
+		ByteArrayOutputStream strings = writer.writeStrings();
+		byte[] table = strings.toByteArray();
+		byte[] tree = writer.out.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(table, 0, table.length);
+		crc.update(tree, 0, tree.length);
+
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeShort(VERSION);
+		header.writeShort(0);
+		header.writeInt(table.length + tree.length);
+		header.writeInt((int) crc.getValue());
+		header.write(table);
+		header.write(tree);
+		header.flush();
+	}
+
+	private static int checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+
+		if (buffer.hasArray()) {
+			crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			ByteBuffer in = buffer.duplicate();
+			byte[] chunk = new byte[Math.min(8192, in.remaining())];
+
+			while (in.hasRemaining()) {
+				int length = Math.min(chunk.length, in.remaining());
+				in.get(chunk, 0, length);
+				crc.update(chunk, 0, length);
+			}
+		}
+
+		return (int) crc.getValue();
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	private static class Reader {
+		private final ByteBuffer in;
+		private final DescriptorFactory factory;
+		private String[] strings;
+		private WorkflowDescriptor workflow;
+		private byte[] scratch = new byte[256];
+
+		Reader(ByteBuffer in, DescriptorFactory factory) {
+			this.in = in;
+			this.factory = factory;
+		}
+
+		WorkflowDescriptor readWorkflow() throws InvalidWorkflowDescriptorException {
+			readStrings();
+
+			workflow = factory.createWorkflowDescriptor();
+			readBase(workflow, null);
+			workflow.workflowName = readString();
+			readMap(workflow.metaAttributes);
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.registers.add(readRegister(workflow));
+			}
+
+			if (readBoolean()) {
+				workflow.globalConditions = readConditions(workflow);
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.initialActions.add(readAction(workflow));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.globalActions.add(readAction(workflow));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.addCommonAction(readAction(workflow));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				Integer id = new Integer(readSigned());
+				workflow.timerFunctions.put(id, readFunction(workflow));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.steps.add(readStep(workflow));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.splits.add(readSplit(workflow));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				workflow.joins.add(readJoin(workflow));
+			}
+
+			if (in.hasRemaining()) {
+				throw new InvalidWorkflowDescriptorException("Unexpected data after binary workflow descriptor");
+			}
+
+			return workflow;
+		}
+
+		private ActionDescriptor readAction(AbstractDescriptor parent) {
+			ActionDescriptor action = factory.createActionDescriptor();
+			readBase(action, parent);
+			action.name = readString();
+			action.view = readString();
+
+			int flags = readInt();
+			action.autoExecute = (flags & 1) != 0;
+			action.finish = (flags & 2) != 0;
+			action.setCommon((flags & 4) != 0);
+			readMap(action.metaAttributes);
+			readValidators(action.validators, action);
+			readFunctions(action.preFunctions, action);
+
+			for (int i = readInt(); i > 0; i--) {
+				ConditionalResultDescriptor result = factory.createConditionalResultDescriptor();
+				readResult(result, action);
+				action.conditionalResults.add(result);
+			}
+
+			if (readBoolean()) {
+				action.unconditionalResult = factory.createResultDescriptor();
+				readResult(action.unconditionalResult, action);
+			}
+
+			readFunctions(action.postFunctions, action);
+
+			if (readBoolean()) {
+				action.restriction = readRestriction(action);
+			}
+
+			return action;
+		}
+
+		private void readBase(AbstractDescriptor descriptor, AbstractDescriptor parent) {
+			int flags = readInt();
+
+			if ((flags & HAS_ID) != 0) {
+				descriptor.setId(readSigned());
+			}
+
+			if ((flags & HAS_PARENT) != 0) {
+				descriptor.setParent(parent);
+			}
+
+			if ((flags & HAS_ENTITY_ID) != 0) {
+				descriptor.setEntityId(readSigned());
+			}
+		}
+
+		private boolean readBoolean() {
+			return in.get() != 0;
+		}
+
+		private ConditionDescriptor readCondition(AbstractDescriptor parent) {
+			ConditionDescriptor condition = factory.createConditionDescriptor();
+			readBase(condition, parent);
+			condition.type = readString();
+			condition.name = readString();
+			condition.negate = readBoolean();
+			readMap(condition.args);
+
+			return condition;
+		}
+
+		private ConditionsDescriptor readConditions(AbstractDescriptor parent) {
+			ConditionsDescriptor conditions = factory.createConditionsDescriptor();
+			readBase(conditions, parent);
+			conditions.setType(readString());
+
+			for (int i = readInt(); i > 0; i--) {
+				if (in.get() == CONDITION) {
+					conditions.getConditions().add(readCondition(conditions));
+				} else {
+					conditions.getConditions().add(readConditions(conditions));
+				}
+			}
+
+			return conditions;
+		}
+
+		private FunctionDescriptor readFunction(AbstractDescriptor parent) {
+			FunctionDescriptor function = factory.createFunctionDescriptor();
+			readBase(function, parent);
+			function.type = readString();
+			function.name = readString();
+			readMap(function.args);
+
+			return function;
+		}
+
+		private void readFunctions(List functions, AbstractDescriptor parent) {
+			for (int i = readInt(); i > 0; i--) {
+				functions.add(readFunction(parent));
+			}
+		}
+
+		/**
+		 * Read an unsigned variable length int.
+		 */
+		private int readInt() {
+			int value = 0;
+
+			for (int shift = 0;; shift += 7) {
+				int b = in.get();
+				value |= ((b & 0x7F) << shift);
+
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+		}
+
+		private JoinDescriptor readJoin(AbstractDescriptor parent) {
+			JoinDescriptor join = factory.createJoinDescriptor();
+			readBase(join, parent);
+
+			for (int i = readInt(); i > 0; i--) {
+				join.conditions.add(readConditions(join));
+			}
+
+			if (readBoolean()) {
+				join.result = factory.createResultDescriptor();
+				readResult(join.result, join);
+			}
+
+			return join;
+		}
+
+		private void readMap(Map map) {
+			for (int i = readInt(); i > 0; i--) {
+				String key = readString();
+				map.put(key, readString());
+			}
+		}
+
+		private PermissionDescriptor readPermission(AbstractDescriptor parent) {
+			PermissionDescriptor permission = factory.createPermissionDescriptor();
+			readBase(permission, parent);
+			permission.name = readString();
+
+			if (readBoolean()) {
+				permission.restriction = readRestriction(permission);
+			}
+
+			return permission;
+		}
+
+		private RegisterDescriptor readRegister(AbstractDescriptor parent) {
+			RegisterDescriptor register = factory.createRegisterDescriptor();
+			readBase(register, parent);
+			register.type = readString();
+			register.variableName = readString();
+			readMap(register.args);
+
+			return register;
+		}
+
+		private RestrictionDescriptor readRestriction(AbstractDescriptor parent) {
+			RestrictionDescriptor restriction = new RestrictionDescriptor();
+			readBase(restriction, parent);
+
+			for (int i = readInt(); i > 0; i--) {
+				restriction.conditions.add(readConditions(restriction));
+			}
+
+			return restriction;
+		}
+
+		private void readResult(ResultDescriptor result, AbstractDescriptor parent) {
+			readBase(result, parent);
+			result.oldStatus = readString();
+			result.status = readString();
+			result.dueDate = readString();
+			result.owner = readString();
+			result.displayName = readString();
+			result.hasStep = readBoolean();
+			result.step = readSigned();
+			result.split = readSigned();
+			result.join = readSigned();
+			readValidators(result.validators, result);
+			readFunctions(result.preFunctions, result);
+			readFunctions(result.postFunctions, result);
+
+			if (result instanceof ConditionalResultDescriptor) {
+				for (int i = readInt(); i > 0; i--) {
+					((ConditionalResultDescriptor) result).conditions.add(readConditions(result));
+				}
+			}
+		}
+
+		private int readSigned() {
+			int value = readInt();
+
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private SplitDescriptor readSplit(AbstractDescriptor parent) {
+			SplitDescriptor split = factory.createSplitDescriptor();
+			readBase(split, parent);
+
+			for (int i = readInt(); i > 0; i--) {
+				ResultDescriptor result = factory.createResultDescriptor();
+				readResult(result, split);
+				split.results.add(result);
+			}
+
+			return split;
+		}
+
+		private StepDescriptor readStep(AbstractDescriptor parent) {
+			StepDescriptor step = factory.createStepDescriptor();
+			readBase(step, parent);
+			step.name = readString();
+			step.hasActions = readBoolean();
+			readMap(step.metaAttributes);
+			readFunctions(step.preFunctions, step);
+
+			for (int i = readInt(); i > 0; i--) {
+				step.permissions.add(readPermission(step));
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				if (in.get() == INLINE) {
+					step.actions.add(readAction(step));
+				} else {
+					Integer id = new Integer(readSigned());
+					ActionDescriptor action = (ActionDescriptor) workflow.getCommonActions().get(id);
+
+					if (action == null) {
+						throw new IllegalArgumentException("Unknown common action " + id);
+					}
+
+					step.actions.add(action);
+				}
+			}
+
+			for (int i = readInt(); i > 0; i--) {
+				step.commonActions.add(new Integer(readSigned()));
+			}
+
+			readFunctions(step.postFunctions, step);
+
+			return step;
+		}
+
+		private String readString() {
+			int index = readInt();
+
+			return (index == 0) ? null : strings[index - 1];
+		}
+
+		private void readStrings() {
+			strings = new String[readInt()];
+
+			for (int i = 0; i < strings.length; i++) {
+				int length = readInt();
+
+				if (in.hasArray()) {
+					strings[i] = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+					in.position(in.position() + length);
+				} else {
+					if (scratch.length < length) {
+						scratch = new byte[Math.max(length, scratch.length * 2)];
+					}
+
+					in.get(scratch, 0, length);
+					strings[i] = new String(scratch, 0, length, UTF8);
+				}
+			}
+		}
+
+		private void readValidators(List validators, AbstractDescriptor parent) {
+			for (int i = readInt(); i > 0; i--) {
+				ValidatorDescriptor validator = factory.createValidatorDescriptor();
+				readBase(validator, parent);
+				validator.type = readString();
+				validator.name = readString();
+				readMap(validator.args);
+				validators.add(validator);
+			}
+		}
+	}
+
+	private static class Writer {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+		private final Map stringIndex = new HashMap();
+		private final List strings = new ArrayList();
+		private final WorkflowDescriptor workflow;
+
+		Writer(WorkflowDescriptor workflow) {
+			this.workflow = workflow;
+		}
+
+		ByteArrayOutputStream writeStrings() {
+			ByteArrayOutputStream table = new ByteArrayOutputStream(16 * strings.size());
+			writeInt(table, strings.size());
+
+			for (int i = 0; i < strings.size(); i++) {
+				byte[] bytes = ((String) strings.get(i)).getBytes(UTF8);
+				writeInt(table, bytes.length);
+				table.write(bytes, 0, bytes.length);
+			}
+
+			return table;
+		}
+
+		void writeWorkflow() {
+			writeBase(workflow, null);
+			writeString(workflow.workflowName);
+			writeMap(workflow.metaAttributes);
+			writeInt(workflow.registers.size());
+
+			for (Iterator iterator = workflow.registers.iterator(); iterator.hasNext();) {
+				RegisterDescriptor register = (RegisterDescriptor) iterator.next();
+				writeBase(register, workflow);
+				writeString(register.type);
+				writeString(register.variableName);
+				writeMap(register.args);
+			}
+
+			writeBoolean(workflow.globalConditions != null);
+
+			if (workflow.globalConditions != null) {
+				writeConditions(workflow.globalConditions, workflow);
+			}
+
+			writeActions(workflow.initialActions, workflow);
+			writeActions(workflow.globalActions, workflow);
+			writeActions(workflow.commonActionsList, workflow);
+			writeInt(workflow.timerFunctions.size());
+
+			for (Iterator iterator = workflow.timerFunctions.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+				writeSigned(((Integer) entry.getKey()).intValue());
+				writeFunction((FunctionDescriptor) entry.getValue(), workflow);
+			}
+
+			writeInt(workflow.steps.size());
+
+			for (Iterator iterator = workflow.steps.iterator(); iterator.hasNext();) {
+				writeStep((StepDescriptor) iterator.next());
+			}
+
+			writeInt(workflow.splits.size());
+
+			for (Iterator iterator = workflow.splits.iterator(); iterator.hasNext();) {
+				SplitDescriptor split = (SplitDescriptor) iterator.next();
+				writeBase(split, workflow);
+				writeInt(split.results.size());
+
+				for (Iterator iterator2 = split.results.iterator(); iterator2.hasNext();) {
+					writeResult((ResultDescriptor) iterator2.next(), split);
+				}
+			}
+
+			writeInt(workflow.joins.size());
+
+			for (Iterator iterator = workflow.joins.iterator(); iterator.hasNext();) {
+				JoinDescriptor join = (JoinDescriptor) iterator.next();
+				writeBase(join, workflow);
+				writeConditionsList(join.conditions, join);
+				writeBoolean(join.result != null);
+
+				if (join.result != null) {
+					writeResult(join.result, join);
+				}
+			}
+		}
+
+		private static void writeInt(ByteArrayOutputStream out, int value) {
+			while ((value & ~0x7F) != 0) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+
+			out.write(value);
+		}
+
+		private void writeAction(ActionDescriptor action, AbstractDescriptor parent) {
+			writeBase(action, parent);
+			writeString(action.name);
+			writeString(action.view);
+			writeInt((action.autoExecute ? 1 : 0) | (action.finish ? 2 : 0) | (action.isCommon() ? 4 : 0));
+			writeMap(action.metaAttributes);
+			writeValidators(action.validators, action);
+			writeFunctions(action.preFunctions, action);
+			writeInt(action.conditionalResults.size());
+
+			for (Iterator iterator = action.conditionalResults.iterator(); iterator.hasNext();) {
+				writeResult((ConditionalResultDescriptor) iterator.next(), action);
+			}
+
+			writeBoolean(action.unconditionalResult != null);
+
+			if (action.unconditionalResult != null) {
+				writeResult(action.unconditionalResult, action);
+			}
+
+			writeFunctions(action.postFunctions, action);
+			writeBoolean(action.restriction != null);
+
+			if (action.restriction != null) {
+				writeRestriction(action.restriction, action);
+			}
+		}
+
+		private void writeActions(List actions, AbstractDescriptor parent) {
+			writeInt(actions.size());
+
+			for (Iterator iterator = actions.iterator(); iterator.hasNext();) {
+				writeAction((ActionDescriptor) iterator.next(), parent);
+			}
+		}
+
+		private void writeBase(AbstractDescriptor descriptor, AbstractDescriptor parent) {
+			boolean hasParent = (parent != null) && (descriptor.getParent() == parent);
+			writeInt((descriptor.hasId() ? HAS_ID : 0) | (hasParent ? HAS_PARENT : 0) | ((descriptor.getEntityId() != 0) ? HAS_ENTITY_ID : 0));
+
+			if (descriptor.hasId()) {
+				writeSigned(descriptor.getId());
+			}
+
+			if (descriptor.getEntityId() != 0) {
+				writeSigned(descriptor.getEntityId());
+			}
+		}
+
+		private void writeBoolean(boolean value) {
+			out.write(value ? 1 : 0);
+		}
+
+		private void writeConditions(ConditionsDescriptor conditions, AbstractDescriptor parent) {
+			writeBase(conditions, parent);
+			writeString(conditions.getType());
+			writeInt(conditions.getConditions().size());
+
+			for (Iterator iterator = conditions.getConditions().iterator(); iterator.hasNext();) {
+				Object child = iterator.next();
+
+				if (child instanceof ConditionDescriptor) {
+					ConditionDescriptor condition = (ConditionDescriptor) child;
+					out.write(CONDITION);
+					writeBase(condition, conditions);
+					writeString(condition.type);
+					writeString(condition.name);
+					writeBoolean(condition.negate);
+					writeMap(condition.args);
+				} else {
+					out.write(CONDITIONS);
+					writeConditions((ConditionsDescriptor) child, conditions);
+				}
+			}
+		}
+
+		private void writeConditionsList(List conditions, AbstractDescriptor parent) {
+			writeInt(conditions.size());
+
+			for (Iterator iterator = conditions.iterator(); iterator.hasNext();) {
+				writeConditions((ConditionsDescriptor) iterator.next(), parent);
+			}
+		}
+
+		private void writeFunction(FunctionDescriptor function, AbstractDescriptor parent) {
+			writeBase(function, parent);
+			writeString(function.type);
+			writeString(function.name);
+			writeMap(function.args);
+		}
+
+		private void writeFunctions(List functions, AbstractDescriptor parent) {
+			writeInt(functions.size());
+
+			for (Iterator iterator = functions.iterator(); iterator.hasNext();) {
+				writeFunction((FunctionDescriptor) iterator.next(), parent);
+			}
+		}
+
+		private void writeInt(int value) {
+			writeInt(out, value);
+		}
+
+		private void writeMap(Map map) {
+			writeInt(map.size());
+
+			for (Iterator iterator = map.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+
+				if (!isString(entry.getKey()) || !isString(entry.getValue())) {
+					throw new IllegalArgumentException("Only string arguments and meta attributes can be written in binary form: " + entry.getKey());
+				}
+
+				writeString((String) entry.getKey());
+				writeString((String) entry.getValue());
+			}
+		}
+
+		private void writeRestriction(RestrictionDescriptor restriction, AbstractDescriptor parent) {
+			writeBase(restriction, parent);
+			writeConditionsList(restriction.conditions, restriction);
+		}
+
+		private void writeResult(ResultDescriptor result, AbstractDescriptor parent) {
+			writeBase(result, parent);
+			writeString(result.oldStatus);
+			writeString(result.status);
+			writeString(result.dueDate);
+			writeString(result.owner);
+			writeString(result.displayName);
+			writeBoolean(result.hasStep);
+			writeSigned(result.step);
+			writeSigned(result.split);
+			writeSigned(result.join);
+			writeValidators(result.validators, result);
+			writeFunctions(result.preFunctions, result);
+			writeFunctions(result.postFunctions, result);
+
+			if (result instanceof ConditionalResultDescriptor) {
+				writeConditionsList(((ConditionalResultDescriptor) result).conditions, result);
+			}
+		}
+
+		private void writeSigned(int value) {
+			writeInt((value << 1) ^ (value >> 31));
+		}
+
+		private void writeStep(StepDescriptor step) {
+			writeBase(step, workflow);
+			writeString(step.name);
+			writeBoolean(step.hasActions);
+			writeMap(step.metaAttributes);
+			writeFunctions(step.preFunctions, step);
+			writeInt(step.permissions.size());
+
+			for (Iterator iterator = step.permissions.iterator(); iterator.hasNext();) {
+				PermissionDescriptor permission = (PermissionDescriptor) iterator.next();
+				writeBase(permission, step);
+				writeString(permission.name);
+				writeBoolean(permission.restriction != null);
+
+				if (permission.restriction != null) {
+					writeRestriction(permission.restriction, permission);
+				}
+			}
+
+			writeInt(step.actions.size());
+
+			for (Iterator iterator = step.actions.iterator(); iterator.hasNext();) {
+				ActionDescriptor action = (ActionDescriptor) iterator.next();
+
+				if (action.isCommon() && (workflow.commonActions.get(new Integer(action.getId())) == action)) {
+					out.write(REFERENCE);
+					writeSigned(action.getId());
+				} else {
+					out.write(INLINE);
+					writeAction(action, step);
+				}
+			}
+
+			writeInt(step.commonActions.size());
+
+			for (Iterator iterator = step.commonActions.iterator(); iterator.hasNext();) {
+				writeSigned(((Integer) iterator.next()).intValue());
+			}
+
+			writeFunctions(step.postFunctions, step);
+		}
+
+		private void writeString(String value) {
+			if (value == null) {
+				writeInt(0);
+
+				return;
+			}
+
+			Integer index = (Integer) stringIndex.get(value);
+
+			if (index == null) {
+				strings.add(value);
+				index = new Integer(strings.size());
+				stringIndex.put(value, index);
+			}
+
+			writeInt(index.intValue());
+		}
+
+		private void writeValidators(List validators, AbstractDescriptor parent) {
+			writeInt(validators.size());
+
+			for (Iterator iterator = validators.iterator(); iterator.hasNext();) {
+				ValidatorDescriptor validator = (ValidatorDescriptor) iterator.next();
+				writeBase(validator, parent);
+				writeString(validator.type);
+				writeString(validator.name);
+				writeMap(validator.args);
+			}
+		}
+
+		private static boolean isString(Object value) {
+			return (value == null) || (value instanceof String);
+		}
+	}
+}
@@ -6,6 +6,7 @@ package com.opensymphony.workflow.loader;
 
 import com.opensymphony.workflow.InvalidWorkflowDescriptorException;
 import com.opensymphony.workflow.util.Validatable;
+import com.opensymphony.workflow.util.VariableTemplate;
 
 import org.w3c.dom.Element;
 
@@ -22,6 +23,11 @@ public class ConditionDescriptor extends AbstractDescriptor implements Validatab
 
 	protected Map args = new HashMap();
 
+	/**
+	 * The args compiled into templates when the owning workflow is frozen.
+	 */
+	private transient Map compiledArgs;
+
 	/**
 	 * The name field helps the editor identify the condition template used.
 	 */
@@ -52,6 +58,16 @@ public class ConditionDescriptor extends AbstractDescriptor implements Validatab
 		return args;
 	}
 
+	/**
+	 * Get the args with each value compiled into a {@link VariableTemplate}.
+	 * 
+	 * @return the compiled args, or null if the owning
+	 *         {@link WorkflowDescriptor} has not been frozen
+	 */
+	public Map getCompiledArgs() {
+		return compiledArgs;
+	}
+
 	public void setName(String name) {
 		this.name = name;
 	}
@@ -79,6 +95,12 @@ public class ConditionDescriptor extends AbstractDescriptor implements Validatab
 	public void validate() throws InvalidWorkflowDescriptorException {
 	}
 
+	void compileArgs() {
+		if (compiledArgs == null) {
+			compiledArgs = VariableTemplate.compileAll(args);
+		}
+	}
+
 	public void writeXML(PrintWriter out, int indent) {
 		XMLUtil.printIndent(out, indent++);
 		out.println("<condition " + (hasId() ? ("id=\"" + getId() + "\" ") : "") + (((name != null) && (name.length() > 0)) ? ("name=\"" + getName() + "\" ") : "")
@@ -93,7 +115,7 @@ public class ConditionDescriptor extends AbstractDescriptor implements Validatab
 			out.print(entry.getKey());
 			out.print("\">");
 
-			if ("beanshell".equals(type) || "bsf".equals(type)) {
+			if ("beanshell".equals(type) || "bsf".equals(type) || "jsr223".equals(type)) {
 				out.print("<![CDATA[");
 				out.print(entry.getValue());
 				out.print("]]>");
@@ -22,6 +22,11 @@ public class ConditionalResultDescriptor extends ResultDescriptor {
 
 	protected List conditions = new ArrayList();
 
+	/**
+	 * The engine's compiled form of the conditions, see {@link #getCompiled()}.
+	 */
+	private transient volatile Object compiled;
+
 	// ~ Constructors
 	// ///////////////////////////////////////////////////////////
 
@@ -41,6 +46,20 @@ public class ConditionalResultDescriptor extends ResultDescriptor {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
+	/**
+	 * Get the compiled form of the conditions cached by the workflow engine.
+	 * It is only cached for frozen workflows.
+	 * 
+	 * @return the cached object, or null if none has been set
+	 */
+	public Object getCompiled() {
+		return compiled;
+	}
+
+	public void setCompiled(Object compiled) {
+		this.compiled = compiled;
+	}
+
 	public List getConditions() {
 		return conditions;
 	}
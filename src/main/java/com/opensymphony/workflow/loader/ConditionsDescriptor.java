@@ -27,6 +27,11 @@ public class ConditionsDescriptor extends AbstractDescriptor implements Validata
 	// ////////////////////////////////////////////////////////
 
 	private List conditions = new ArrayList();
+
+	/**
+	 * The engine's compiled form of this condition tree, see {@link #getCompiled()}.
+	 */
+	private transient volatile Object compiled;
 	private String type;
 
 	// ~ Constructors
@@ -65,6 +70,20 @@ public class ConditionsDescriptor extends AbstractDescriptor implements Validata
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
+	/**
+	 * Get the compiled form of this condition tree cached by the workflow
+	 * engine. It is only cached for frozen workflows.
+	 * 
+	 * @return the cached object, or null if none has been set
+	 */
+	public Object getCompiled() {
+		return compiled;
+	}
+
+	public void setCompiled(Object compiled) {
+		this.compiled = compiled;
+	}
+
 	public void setConditions(List conditions) {
 		this.conditions = conditions;
 	}
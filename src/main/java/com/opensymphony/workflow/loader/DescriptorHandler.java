@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.loader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a {@link WorkflowDescriptor} from SAX events, without keeping a DOM
+ * tree of the document in memory. The descriptors are the same as those built
+ * by the <code>init(Element)</code> methods: elements are read from the same
+ * places, where those only look at the first child of a given name so does
+ * this handler, and any other element is skipped along with its content.
+ * <p>
+ * Common actions are added to the workflow once the whole document has been
+ * read, before the steps referring to them are, so the duplicate id checks see
+ * the same actions as when loading from a DOM tree.
+ */
+class DescriptorHandler extends DefaultHandler {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final DescriptorFactory factory;
+	private final LinkedList frames = new LinkedList();
+	private final List commonActions = new ArrayList();
+	private final List commonActionReferences = new ArrayList();
+	private final List steps = new ArrayList();
+	private WorkflowDescriptor descriptor;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	DescriptorHandler(DescriptorFactory factory) {
+		this.factory = factory;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the descriptor for the first <code>workflow</code> element of
+	 *         the document, or null if there was none
+	 */
+	public WorkflowDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+	public void characters(char[] ch, int start, int length) {
+		Frame frame = (Frame) frames.getLast();
+
+		if (frame.text != null) {
+			frame.text.append(ch, start, length);
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName) {
+		Frame frame = (Frame) frames.removeLast();
+
+		if (frame.text != null) {
+			((Map) frame.target).put(frame.key, frame.text.toString());
+		} else if ((frame.target instanceof RestrictionDescriptor) && (frames.size() > 0)) {
+			Frame parent = (Frame) frames.getLast();
+
+			if (parent.target instanceof ActionDescriptor) {
+				RestrictionDescriptor restriction = (RestrictionDescriptor) frame.target;
+
+				if (restriction.getConditionsDescriptor() != null) {
+					restriction.setParent((ActionDescriptor) parent.target);
+					((ActionDescriptor) parent.target).restriction = restriction;
+				}
+			}
+		} else if ((frame.target == descriptor) && frame.name.equals("workflow")) {
+			resolveCommonActions();
+		}
+	}
+
+	public void ignorableWhitespace(char[] ch, int start, int length) {
+		characters(ch, start, length);
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) {
+		String name = ((qName != null) && (qName.length() > 0)) ? qName : localName;
+
+		if (descriptor == null) {
+			if (name.equals("workflow")) {
+				descriptor = factory.createWorkflowDescriptor();
+				frames.add(new Frame(name, descriptor));
+			} else {
+				frames.add(new Frame(name, null));
+			}
+
+			return;
+		}
+
+		Frame parent = (Frame) frames.getLast();
+
+		if ((parent.target == null) || (parent.text != null)) {
+			frames.add(new Frame(name, null));
+
+			return;
+		}
+
+		Frame frame = createFrame(parent, name, attributes);
+		frames.add((frame != null) ? frame : new Frame(name, null));
+	}
+
+	private static String attribute(Attributes attributes, String name) {
+		String value = attributes.getValue(name);
+
+		return (value != null) ? value : "";
+	}
+
+	private ActionDescriptor createAction(Attributes attributes, AbstractDescriptor parent) {
+		ActionDescriptor action = factory.createActionDescriptor();
+
+		try {
+			action.setId(Integer.parseInt(attribute(attributes, "id")));
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid action id value '" + attribute(attributes, "id") + "'");
+		}
+
+		action.name = attribute(attributes, "name");
+		action.view = attribute(attributes, "view");
+		action.autoExecute = "true".equalsIgnoreCase(attribute(attributes, "auto"));
+		action.finish = "true".equalsIgnoreCase(attribute(attributes, "finish"));
+		action.setParent(parent);
+
+		return action;
+	}
+
+	private ConditionDescriptor createCondition(Attributes attributes) {
+		ConditionDescriptor condition = factory.createConditionDescriptor();
+		condition.type = attribute(attributes, "type");
+
+		try {
+			condition.setId(Integer.parseInt(attribute(attributes, "id")));
+		} catch (NumberFormatException e) {
+		}
+
+		String negate = attribute(attributes, "negate");
+		condition.negate = "true".equalsIgnoreCase(negate) || "yes".equalsIgnoreCase(negate);
+		condition.name = attribute(attributes, "name");
+
+		return condition;
+	}
+
+	private ConditionsDescriptor createConditions(Attributes attributes, AbstractDescriptor parent) {
+		ConditionsDescriptor conditions = factory.createConditionsDescriptor();
+		conditions.setType(attribute(attributes, "type"));
+
+		if (parent != null) {
+			conditions.setParent(parent);
+		}
+
+		return conditions;
+	}
+
+	/**
+	 * @return the frame for a child of the given frame, or null if the child
+	 *         is not read
+	 */
+	private Frame createFrame(Frame parent, String name, Attributes attributes) {
+		Object owner = parent.target;
+		String container = parent.name;
+
+		if (container.equals("workflow")) {
+			if (name.equals("meta")) {
+				return new Frame(descriptor.metaAttributes, attribute(attributes, "name"));
+			} else if (name.equals("registers") || name.equals("global-conditions") || name.equals("initial-actions") || name.equals("global-actions") || name.equals("common-actions")
+					|| name.equals("trigger-functions") || name.equals("steps") || name.equals("splits") || name.equals("joins")) {
+				return first(parent, name) ? new Frame(name, owner) : null;
+			}
+		} else if (container.equals("registers")) {
+			if (name.equals("register")) {
+				RegisterDescriptor register = factory.createRegisterDescriptor();
+				register.type = attribute(attributes, "type");
+				register.variableName = attribute(attributes, "variable-name");
+				setId(register, attributes);
+				register.setParent(descriptor);
+				descriptor.registers.add(register);
+
+				return new Frame(name, register);
+			}
+		} else if (container.equals("global-conditions")) {
+			if (name.equals("conditions") && first(parent, name)) {
+				descriptor.globalConditions = createConditions(attributes, descriptor);
+
+				return new Frame(name, descriptor.globalConditions);
+			}
+		} else if (container.equals("initial-actions") || container.equals("global-actions") || container.equals("common-actions")) {
+			if (name.equals("action")) {
+				ActionDescriptor action = createAction(attributes, descriptor);
+
+				if (container.equals("initial-actions")) {
+					descriptor.initialActions.add(action);
+				} else if (container.equals("global-actions")) {
+					descriptor.globalActions.add(action);
+				} else {
+					commonActions.add(action);
+				}
+
+				return new Frame(name, action);
+			}
+		} else if (container.equals("trigger-functions")) {
+			if (name.equals("trigger-function")) {
+				Frame frame = new Frame(name, owner);
+				frame.key = new Integer(attribute(attributes, "id"));
+
+				return frame;
+			}
+		} else if (container.equals("trigger-function")) {
+			if (name.equals("function") && first(parent, name)) {
+				FunctionDescriptor function = createFunction(attributes, descriptor);
+				descriptor.timerFunctions.put(parent.key, function);
+
+				return new Frame(name, function);
+			}
+		} else if (container.equals("steps")) {
+			if (name.equals("step")) {
+				StepDescriptor step = factory.createStepDescriptor();
+				step.setParent(descriptor);
+
+				try {
+					step.setId(Integer.parseInt(attribute(attributes, "id")));
+				} catch (Exception ex) {
+					throw new IllegalArgumentException("Invalid step id value " + attribute(attributes, "id"));
+				}
+
+				step.name = attribute(attributes, "name");
+				steps.add(step);
+
+				return new Frame(name, step);
+			}
+		} else if (container.equals("splits")) {
+			if (name.equals("split")) {
+				SplitDescriptor split = factory.createSplitDescriptor();
+
+				try {
+					split.setId(Integer.parseInt(attribute(attributes, "id")));
+				} catch (Exception ex) {
+					throw new IllegalArgumentException("Invalid split id value " + attribute(attributes, "id"));
+				}
+
+				split.setParent(descriptor);
+				descriptor.splits.add(split);
+
+				return new Frame(name, split);
+			}
+		} else if (container.equals("joins")) {
+			if (name.equals("join")) {
+				JoinDescriptor join = factory.createJoinDescriptor();
+
+				try {
+					join.setId(Integer.parseInt(attribute(attributes, "id")));
+				} catch (Exception ex) {
+					throw new IllegalArgumentException("Invalid join id value " + attribute(attributes, "id"));
+				}
+
+				join.setParent(descriptor);
+				descriptor.joins.add(join);
+
+				return new Frame(name, join);
+			}
+		} else if (container.equals("action")) {
+			ActionDescriptor action = (ActionDescriptor) owner;
+
+			if (name.equals("meta")) {
+				return new Frame(action.metaAttributes, attribute(attributes, "name"));
+			} else if (name.equals("validators") || name.equals("pre-functions") || name.equals("results") || name.equals("post-functions")) {
+				return first(parent, name) ? new Frame(name, owner) : null;
+			} else if (name.equals("restrict-to") && first(parent, name)) {
+				return new Frame(name, new RestrictionDescriptor());
+			}
+		} else if (container.equals("results")) {
+			ActionDescriptor action = (ActionDescriptor) owner;
+
+			if (name.equals("result")) {
+				ConditionalResultDescriptor result = new ConditionalResultDescriptor();
+				initResult(result, attributes);
+				result.setParent(action);
+				action.conditionalResults.add(result);
+
+				return new Frame(name, result);
+			} else if (name.equals("unconditional-result") && first(parent, name)) {
+				ResultDescriptor result = factory.createResultDescriptor();
+				initResult(result, attributes);
+				result.setParent(action);
+				action.unconditionalResult = result;
+
+				return new Frame(name, result);
+			}
+		} else if (container.equals("result") || container.equals("unconditional-result")) {
+			if (name.equals("validators") || name.equals("pre-functions") || name.equals("post-functions")) {
+				return first(parent, name) ? new Frame(name, owner) : null;
+			} else if (name.equals("conditions") && (owner instanceof ConditionalResultDescriptor)) {
+				ConditionalResultDescriptor result = (ConditionalResultDescriptor) owner;
+				ConditionsDescriptor conditions = createConditions(attributes, result);
+				result.conditions.add(conditions);
+
+				return new Frame(name, conditions);
+			}
+		} else if (container.equals("validators")) {
+			if (name.equals("validator")) {
+				ValidatorDescriptor validator = factory.createValidatorDescriptor();
+				validator.type = attribute(attributes, "type");
+				validator.name = attribute(attributes, "name");
+				setId(validator, attributes);
+				validator.setParent((AbstractDescriptor) owner);
+
+				if (owner instanceof ActionDescriptor) {
+					((ActionDescriptor) owner).validators.add(validator);
+				} else {
+					((ResultDescriptor) owner).validators.add(validator);
+				}
+
+				return new Frame(name, validator);
+			}
+		} else if (container.equals("pre-functions") || container.equals("post-functions")) {
+			if (name.equals("function")) {
+				FunctionDescriptor function = createFunction(attributes, (AbstractDescriptor) owner);
+				boolean pre = container.equals("pre-functions");
+
+				if (owner instanceof ActionDescriptor) {
+					(pre ? ((ActionDescriptor) owner).preFunctions : ((ActionDescriptor) owner).postFunctions).add(function);
+				} else if (owner instanceof ResultDescriptor) {
+					(pre ? ((ResultDescriptor) owner).preFunctions : ((ResultDescriptor) owner).postFunctions).add(function);
+				} else {
+					(pre ? ((StepDescriptor) owner).preFunctions : ((StepDescriptor) owner).postFunctions).add(function);
+				}
+
+				return new Frame(name, function);
+			}
+		} else if (container.equals("restrict-to")) {
+			if (name.equals("conditions")) {
+				RestrictionDescriptor restriction = (RestrictionDescriptor) owner;
+				ConditionsDescriptor conditions = createConditions(attributes, restriction);
+				restriction.conditions.add(conditions);
+
+				return new Frame(name, conditions);
+			}
+		} else if (container.equals("conditions")) {
+			ConditionsDescriptor conditions = (ConditionsDescriptor) owner;
+
+			if (name.equals("condition")) {
+				ConditionDescriptor condition = createCondition(attributes);
+				conditions.getConditions().add(condition);
+
+				return new Frame(name, condition);
+			} else if (name.equals("conditions")) {
+				ConditionsDescriptor nested = createConditions(attributes, null);
+				conditions.getConditions().add(nested);
+
+				return new Frame(name, nested);
+			}
+		} else if (container.equals("condition")) {
+			if (name.equals("arg")) {
+				return new Frame(((ConditionDescriptor) owner).args, attribute(attributes, "name"));
+			}
+		} else if (container.equals("function")) {
+			if (name.equals("arg")) {
+				return new Frame(((FunctionDescriptor) owner).args, attribute(attributes, "name"));
+			}
+		} else if (container.equals("validator")) {
+			if (name.equals("arg")) {
+				return new Frame(((ValidatorDescriptor) owner).args, attribute(attributes, "name"));
+			}
+		} else if (container.equals("register")) {
+			if (name.equals("arg")) {
+				return new Frame(((RegisterDescriptor) owner).args, attribute(attributes, "name"));
+			}
+		} else if (container.equals("step")) {
+			StepDescriptor step = (StepDescriptor) owner;
+
+			if (name.equals("meta")) {
+				return new Frame(step.metaAttributes, attribute(attributes, "name"));
+			} else if (name.equals("pre-functions") || name.equals("external-permissions") || name.equals("post-functions")) {
+				return first(parent, name) ? new Frame(name, owner) : null;
+			} else if (name.equals("actions") && first(parent, name)) {
+				step.hasActions = true;
+
+				return new Frame(name, owner);
+			}
+		} else if (container.equals("actions")) {
+			StepDescriptor step = (StepDescriptor) owner;
+
+			if (name.equals("action")) {
+				ActionDescriptor action = createAction(attributes, step);
+				step.actions.add(action);
+
+				return new Frame(name, action);
+			} else if (name.equals("common-action")) {
+				commonActionReferences.add(new Object[] {step, attribute(attributes, "id")});
+			}
+		} else if (container.equals("external-permissions")) {
+			if (name.equals("permission")) {
+				PermissionDescriptor permission = factory.createPermissionDescriptor();
+				permission.name = attribute(attributes, "name");
+				setId(permission, attributes);
+				permission.setParent((StepDescriptor) owner);
+				((StepDescriptor) owner).permissions.add(permission);
+
+				return new Frame(name, permission);
+			}
+		} else if (container.equals("permission")) {
+			if (name.equals("restrict-to") && first(parent, name)) {
+				RestrictionDescriptor restriction = new RestrictionDescriptor();
+				((PermissionDescriptor) owner).restriction = restriction;
+
+				return new Frame(name, restriction);
+			}
+		} else if (container.equals("join")) {
+			JoinDescriptor join = (JoinDescriptor) owner;
+
+			if (name.equals("conditions")) {
+				ConditionsDescriptor conditions = createConditions(attributes, join);
+				join.conditions.add(conditions);
+
+				return new Frame(name, conditions);
+			} else if (name.equals("unconditional-result") && first(parent, name)) {
+				join.result = new ResultDescriptor();
+				initResult(join.result, attributes);
+				join.result.setParent(join);
+
+				return new Frame(name, join.result);
+			}
+		} else if (container.equals("split")) {
+			if (name.equals("unconditional-result")) {
+				SplitDescriptor split = (SplitDescriptor) owner;
+				ResultDescriptor result = new ResultDescriptor();
+				initResult(result, attributes);
+				result.setParent(split);
+				split.results.add(result);
+
+				return new Frame(name, result);
+			}
+		}
+
+		return null;
+	}
+
+	private FunctionDescriptor createFunction(Attributes attributes, AbstractDescriptor parent) {
+		FunctionDescriptor function = factory.createFunctionDescriptor();
+		function.type = attribute(attributes, "type");
+		setId(function, attributes);
+		function.name = attribute(attributes, "name");
+		function.setParent(parent);
+
+		return function;
+	}
+
+	/**
+	 * @return true the first time a child of the given name is seen
+	 */
+	private static boolean first(Frame parent, String name) {
+		if (parent.seen == null) {
+			parent.seen = new HashSet();
+		}
+
+		return parent.seen.add(name);
+	}
+
+	private static void initResult(ResultDescriptor result, Attributes attributes) {
+		result.oldStatus = attribute(attributes, "old-status");
+		result.status = attribute(attributes, "status");
+		setId(result, attributes);
+		result.dueDate = attribute(attributes, "due-date");
+
+		try {
+			result.split = Integer.parseInt(attribute(attributes, "split"));
+		} catch (Exception ex) {
+		}
+
+		try {
+			result.join = Integer.parseInt(attribute(attributes, "join"));
+		} catch (Exception ex) {
+		}
+
+		try {
+			result.step = Integer.parseInt(attribute(attributes, "step"));
+			result.hasStep = true;
+		} catch (Exception ex) {
+		}
+
+		result.owner = attribute(attributes, "owner");
+		result.displayName = attribute(attributes, "display-name");
+	}
+
+	private void resolveCommonActions() {
+		for (int i = 0; i < commonActions.size(); i++) {
+			descriptor.addCommonAction((ActionDescriptor) commonActions.get(i));
+		}
+
+		for (int i = 0; i < commonActionReferences.size(); i++) {
+			Object[] reference = (Object[]) commonActionReferences.get(i);
+			StepDescriptor step = (StepDescriptor) reference[0];
+
+			try {
+				Integer actionId = new Integer((String) reference[1]);
+				ActionDescriptor action = (ActionDescriptor) descriptor.getCommonActions().get(actionId);
+
+				if (action != null) {
+					step.actions.add(action);
+				}
+
+				step.commonActions.add(actionId);
+			} catch (NumberFormatException ex) {
+			}
+		}
+
+		descriptor.steps.addAll(steps);
+	}
+
+	private static void setId(AbstractDescriptor descriptor, Attributes attributes) {
+		try {
+			descriptor.setId(Integer.parseInt(attribute(attributes, "id")));
+		} catch (NumberFormatException e) {
+		}
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * An open element. The target is the descriptor its children are added
+	 * to, or the map the text is put in for <code>meta</code> and
+	 * <code>arg</code> elements, or null if the element is skipped.
+	 */
+	private static class Frame {
+		final Object target;
+		final String name;
+		Object key;
+		Set seen;
+		StringBuffer text;
+
+		Frame(String name, Object target) {
+			this.name = name;
+			this.target = target;
+		}
+
+		Frame(Map map, String key) {
+			this.name = null;
+			this.target = map;
+			this.key = key;
+			this.text = new StringBuffer();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.loader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.ref.WeakReference;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches workflow files from a background daemon thread, so that the
+ * factories do not check them on every request. The listener is called on
+ * that thread with each watched file that was created or modified.
+ * <p>
+ * The watcher only keeps a weak reference to its listener, so the owner of
+ * the listener must keep it. Once the listener is garbage collected, the
+ * watcher closes itself and its thread ends.
+ */
+class DescriptorWatcher implements Runnable {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final Log log = LogFactory.getLog(DescriptorWatcher.class);
+
+	/**
+	 * Seconds between checks whether the listener is still there.
+	 */
+	private static final long LISTENER_CHECK_INTERVAL = 60;
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final WeakReference listener;
+	private final Map directories = new ConcurrentHashMap();
+	private final Map files = new ConcurrentHashMap();
+	private final WatchService watchService;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	DescriptorWatcher(String name, Listener listener) throws IOException {
+		this.listener = new WeakReference(listener);
+		watchService = FileSystems.getDefault().newWatchService();
+
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Stop watching. The listener is not called again.
+	 */
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			log.warn("Could not close workflow file watcher", e);
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.poll(LISTENER_CHECK_INTERVAL, TimeUnit.SECONDS);
+
+				if (listener.get() == null) {
+					close();
+
+					return;
+				}
+
+				if (key == null) {
+					continue;
+				}
+
+				File directory = (File) directories.get(key);
+
+				for (Iterator iterator = key.pollEvents().iterator(); iterator.hasNext();) {
+					WatchEvent event = (WatchEvent) iterator.next();
+
+					if (directory == null) {
+						continue;
+					}
+
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// events were lost, so any file of the directory may have changed
+						for (Iterator files = this.files.keySet().iterator(); files.hasNext();) {
+							File file = (File) files.next();
+
+							if (directory.equals(file.getParentFile())) {
+								changed(file);
+							}
+						}
+					} else {
+						File file = new File(directory, ((Path) event.context()).toString());
+
+						if (files.containsKey(file)) {
+							changed(file);
+						}
+					}
+				}
+
+				key.reset();
+			}
+		} catch (InterruptedException e) {
+		} catch (ClosedWatchServiceException e) {
+		}
+	}
+
+	/**
+	 * Start watching a file. Its directory must exist.
+	 */
+	public synchronized void watch(File file) throws IOException {
+		file = file.getAbsoluteFile();
+
+		File directory = file.getParentFile();
+
+		if (!directories.containsValue(directory)) {
+			WatchKey key = directory.toPath().register(watchService, new WatchEvent.Kind[] {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY});
+			directories.put(key, directory);
+		}
+
+		files.put(file, Boolean.TRUE);
+	}
+
+	private void changed(File file) {
+		Listener listener = (Listener) this.listener.get();
+
+		if (listener == null) {
+			return;
+		}
+
+		try {
+			listener.fileChanged(file);
+		} catch (RuntimeException e) {
+			log.error("Error handling change of workflow file " + file, e);
+		}
+	}
+
+	// ~ Inner Interfaces
+	// ///////////////////////////////////////////////////////
+
+	interface Listener {
+		void fileChanged(File file);
+	}
+}
@@ -4,6 +4,8 @@
  */
 package com.opensymphony.workflow.loader;
 
+import com.opensymphony.workflow.util.VariableTemplate;
+
 import org.w3c.dom.Element;
 
 import java.io.PrintWriter;
@@ -21,6 +23,11 @@ public class FunctionDescriptor extends AbstractDescriptor {
 
 	protected Map args = new HashMap();
 
+	/**
+	 * The args compiled into templates when the owning workflow is frozen.
+	 */
+	private transient Map compiledArgs;
+
 	/**
 	 * The name field helps the editor identify the condition template used.
 	 */
@@ -50,6 +57,16 @@ public class FunctionDescriptor extends AbstractDescriptor {
 		return args;
 	}
 
+	/**
+	 * Get the args with each value compiled into a {@link VariableTemplate}.
+	 * 
+	 * @return the compiled args, or null if the owning
+	 *         {@link WorkflowDescriptor} has not been frozen
+	 */
+	public Map getCompiledArgs() {
+		return compiledArgs;
+	}
+
 	public void setName(String name) {
 		this.name = name;
 	}
@@ -66,6 +83,12 @@ public class FunctionDescriptor extends AbstractDescriptor {
 		return type;
 	}
 
+	void compileArgs() {
+		if (compiledArgs == null) {
+			compiledArgs = VariableTemplate.compileAll(args);
+		}
+	}
+
 	public void writeXML(PrintWriter out, int indent) {
 		XMLUtil.printIndent(out, indent++);
 		out.println("<function " + (hasId() ? ("id=\"" + getId() + "\" ") : "") + (((name != null) && (name.length() > 0)) ? ("name=\"" + XMLUtil.encode(getName()) + "\" ") : "") + "type=\"" + type
@@ -80,7 +103,7 @@ public class FunctionDescriptor extends AbstractDescriptor {
 			out.print(entry.getKey());
 			out.print("\">");
 
-			if ("beanshell".equals(type) || "bsf".equals(type)) {
+			if ("beanshell".equals(type) || "bsf".equals(type) || "jsr223".equals(type)) {
 				out.print("<![CDATA[");
 				out.print(entry.getValue());
 				out.print("]]>");
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.loader;
+
+/**
+ * Open addressing hash map keyed on primitive ints, used for the lookup
+ * indexes of a frozen {@link WorkflowDescriptor}. The map is filled once and
+ * then only read, so it supports neither removal nor concurrent writes.
+ */
+final class IntHashMap {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private Object[] values;
+	private int[] keys;
+	private int mask;
+	private int size;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	IntHashMap(int expectedSize) {
+		int capacity = 4;
+
+		while (capacity < (expectedSize * 2)) {
+			capacity <<= 1;
+		}
+
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public Object get(int key) {
+		int i = indexFor(key);
+
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Associate a value with the given key, unless the key is already mapped.
+	 * The first value put for a key wins, mirroring the declaration order
+	 * semantics of the linear lookups this map replaces.
+	 */
+	public void putIfAbsent(int key, Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null values are not supported");
+		}
+
+		if ((size * 2) >= keys.length) {
+			resize();
+		}
+
+		int i = indexFor(key);
+
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				return;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int indexFor(int key) {
+		int h = key * 0x9E3779B9;
+
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void resize() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		mask = keys.length - 1;
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				putIfAbsent(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -10,13 +10,16 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 import javax.sql.DataSource;
 
@@ -37,6 +40,22 @@ import com.opensymphony.workflow.FunctionProvider;
  * contain the xml workflow descriptor, the latter can be either a TEXT or
  * BINARY type.
  * <p>
+ * If the <code>format</code> property is <code>binary</code>, workflows are
+ * saved in the binary form of {@link WorkflowDescriptor#writeBinary}, which
+ * needs a BINARY column and loads without XML parsing. Either form is read
+ * regardless of this property.
+ * <p>
+ * Parsed descriptors are cached by name. With <code>reload</code> set to
+ * <code>true</code>, a cached descriptor is checked against the database at
+ * most every <code>reload.interval</code> milliseconds (default 0, on every
+ * call) and reloaded if it has changed. If the optional
+ * <code>version.column</code> property names a BIGINT column of the table,
+ * that check only selects the column, and saving a workflow sets it to the
+ * current time in milliseconds; anything else updating definitions must also
+ * change it. Otherwise the definition is read and compared by checksum, which
+ * saves the parse but not the read. With <code>preload</code> set to
+ * <code>true</code>, all definitions are parsed by {@link #initDone()}.
+ * <p>
  * Note that this class is provided as an example, and users are encouraged to
  * use their own implementations that are more suited to their particular needs.
  * 
@@ -57,7 +76,9 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 
 	protected DataSource dataSource;
 	protected Map workflows;
+	protected String versionColumn;
 	protected boolean reload;
+	protected long reloadInterval;
 
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
@@ -98,31 +119,61 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 	}
 
 	public WorkflowDescriptor getWorkflow(String name, boolean validate) throws FactoryException {
+		WfConfig c;
+		boolean known = true;
 
-		if (reload) {
-			// @todo check timestamp
-			try {
-				return load(name, validate);
-			} catch (FactoryException e) {
-				throw e;
-			} catch (Exception e) {
-				throw new FactoryException("Error reloading workflow", e);
+		synchronized (workflows) {
+			c = (WfConfig) workflows.get(name);
+
+			// may have been added since initDone, by another node
+			if (c == null) {
+				c = new WfConfig(name);
+				known = false;
 			}
 		}
 
-		return null;
+		WorkflowDescriptor descriptor = c.descriptor;
+
+		// only lock to load or to check for a newer definition
+		if ((descriptor != null) && !isReloadDue(c)) {
+			return descriptor;
+		}
+
+		synchronized (c) {
+			if ((c.descriptor == null) || isReloadDue(c)) {
+				try {
+					refresh(c, validate);
+				} catch (FactoryException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new FactoryException("Error loading workflow " + name, e);
+				}
+			}
+
+			if (!known) {
+				synchronized (workflows) {
+					if (!workflows.containsKey(name)) {
+						workflows.put(name, c);
+					}
+				}
+			}
+
+			return c.descriptor;
+		}
 	}
 
 	public String[] getWorkflowNames() {
-		int i = 0;
-		String[] res = new String[workflows.keySet().size()];
-		Iterator it = workflows.keySet().iterator();
+		synchronized (workflows) {
+			int i = 0;
+			String[] res = new String[workflows.keySet().size()];
+			Iterator it = workflows.keySet().iterator();
 
-		while (it.hasNext()) {
-			res[i++] = (String) it.next();
-		}
+			while (it.hasNext()) {
+				res[i++] = (String) it.next();
+			}
 
-		return res;
+			return res;
+		}
 	}
 
 	public void execute(Map transientVars, Map args, PropertySet ps) {
@@ -152,16 +203,33 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 		try {
 			init();
 			reload = getProperties().getProperty("reload", "false").equalsIgnoreCase("true");
+			reloadInterval = Long.parseLong(getProperties().getProperty("reload.interval", "0"));
+			versionColumn = getProperties().getProperty("version.column");
+
+			boolean preload = getProperties().getProperty("preload", "false").equalsIgnoreCase("true");
 
 			conn = dataSource.getConnection();
 
-			PreparedStatement ps = conn.prepareStatement("SELECT " + wfName + "," + wfDefinition + " FROM " + wfTable);
+			PreparedStatement ps = conn.prepareStatement("SELECT " + wfName + (preload ? ("," + wfDefinition + versionSelect()) : "") + " FROM " + wfTable);
 			ResultSet rs = ps.executeQuery();
 
 			while (rs.next()) {
 				String name = rs.getString(1);
 				WfConfig config = new WfConfig(name);
-				workflows.put(rs.getString(1), config);
+
+				if (preload) {
+					byte[] wf = rs.getBytes(2);
+
+					try {
+						config.descriptor = parse(wf, false);
+						config.version = (versionColumn != null) ? rs.getLong(3) : checksum(wf);
+						config.lastChecked = System.currentTimeMillis();
+					} catch (Exception e) {
+						log.warn("Could not preload workflow " + name, e);
+					}
+				}
+
+				workflows.put(name, config);
 			}
 
 			rs.close();
@@ -239,14 +307,23 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 		}
 
 		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		Writer out = new OutputStreamWriter(bout);
 
-		PrintWriter writer = new PrintWriter(out);
-		writer.println(WorkflowDescriptor.XML_HEADER);
-		writer.println(WorkflowDescriptor.DOCTYPE_DECL);
-		descriptor.writeXML(writer, 0);
-		writer.flush();
-		writer.close();
+		if ("binary".equalsIgnoreCase(getProperties().getProperty("format"))) {
+			try {
+				descriptor.writeBinary(bout);
+			} catch (IOException e) {
+				throw new FactoryException("Unable to save workflow: " + e.toString(), e);
+			}
+		} else {
+			Writer out = new OutputStreamWriter(bout);
+
+			PrintWriter writer = new PrintWriter(out);
+			writer.println(WorkflowDescriptor.XML_HEADER);
+			writer.println(WorkflowDescriptor.DOCTYPE_DECL);
+			descriptor.writeXML(writer, 0);
+			writer.flush();
+			writer.close();
+		}
 
 		// @todo is a backup necessary?
 		try {
@@ -269,22 +346,31 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 			PreparedStatement ps;
 
 			if (exists(workflowname, conn)) {
-				ps = conn.prepareStatement("UPDATE " + wfTable + " SET " + wfDefinition + " = ?" + "WHERE " + wfName + "= ?");
+				ps = conn.prepareStatement("UPDATE " + wfTable + " SET " + wfDefinition + " = ?" + ((versionColumn != null) ? (", " + versionColumn + " = ?") : "") + " WHERE " + wfName + "= ?");
 
 				try {
 					ps.setBytes(1, wf);
 				} catch (Exception e) {
 				}
 
-				ps.setString(2, workflowname);
+				if (versionColumn != null) {
+					ps.setLong(2, System.currentTimeMillis());
+					ps.setString(3, workflowname);
+				} else {
+					ps.setString(2, workflowname);
+				}
 			} else {
-				ps = conn.prepareStatement("INSERT INTO " + wfTable + " (" + wfName + ", " + wfDefinition + ") VALUES (?, ?)");
+				ps = conn.prepareStatement("INSERT INTO " + wfTable + " (" + wfName + ", " + wfDefinition + ((versionColumn != null) ? (", " + versionColumn + ") VALUES (?, ?, ?)") : ") VALUES (?, ?)"));
 				ps.setString(1, workflowname);
 
 				try {
 					ps.setBytes(2, wf);
 				} catch (Exception e) {
 				}
+
+				if (versionColumn != null) {
+					ps.setLong(3, System.currentTimeMillis());
+				}
 			}
 
 			ps.executeUpdate();
@@ -326,12 +412,16 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 	}
 
 	private void init() {
-		workflows = new HashMap();
+		workflows = Collections.synchronizedMap(new HashMap());
 
 		// ds = (DataSource) new
 		// InitialContext().lookup(getProperties().getProperty("datasource"));
 	}
 
+	private boolean isReloadDue(WfConfig c) {
+		return reload && ((System.currentTimeMillis() - c.lastChecked) >= reloadInterval);
+	}
+
 	private WorkflowDescriptor load(final String wfName, boolean validate) throws IOException, FactoryException, Exception {
 		byte[] wf;
 
@@ -341,18 +431,105 @@ public class JDBCWorkflowFactory extends XMLWorkflowFactory implements FunctionP
 			throw new FactoryException("Error loading workflow:" + e, e);
 		}
 
+		return parse(wf, validate);
+	}
+
+	private static long checksum(byte[] wf) {
+		CRC32 crc = new CRC32();
+		crc.update(wf, 0, wf.length);
+
+		return crc.getValue();
+	}
+
+	private WorkflowDescriptor parse(byte[] wf, boolean validate) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(wf);
+
+		if (BinaryDescriptorFormat.isBinary(buffer)) {
+			return WorkflowLoader.load(buffer, validate);
+		}
+
 		ByteArrayInputStream is = new ByteArrayInputStream(wf);
 
 		return WorkflowLoader.load(is, validate);
 	}
 
+	/**
+	 * Load the workflow if it is not cached yet, or if it has changed in the
+	 * database since it was.
+	 */
+	private void refresh(WfConfig c, boolean validate) throws Exception {
+		Connection conn = dataSource.getConnection();
+
+		try {
+			if ((versionColumn != null) && (c.descriptor != null)) {
+				PreparedStatement ps = conn.prepareStatement("SELECT " + versionColumn + " FROM " + wfTable + " WHERE " + wfName + " = ?");
+				ps.setString(1, c.wfName);
+
+				ResultSet rs = ps.executeQuery();
+				boolean found = rs.next();
+				long version = found ? rs.getLong(1) : 0;
+				rs.close();
+				ps.close();
+
+				if (!found) {
+					throw new FactoryException("Unknown workflow name \"" + c.wfName + '\"');
+				}
+
+				if (version == c.version) {
+					c.lastChecked = System.currentTimeMillis();
+
+					return;
+				}
+			}
+
+			PreparedStatement ps = conn.prepareStatement("SELECT " + wfDefinition + versionSelect() + " FROM " + wfTable + " WHERE " + wfName + " = ?");
+			ps.setString(1, c.wfName);
+
+			ResultSet rs = ps.executeQuery();
+			boolean found = rs.next();
+			byte[] wf = found ? rs.getBytes(1) : null;
+			long version = (found && (versionColumn != null)) ? rs.getLong(2) : 0;
+			rs.close();
+			ps.close();
+
+			if (!found) {
+				throw new FactoryException("Unknown workflow name \"" + c.wfName + '\"');
+			}
+
+			if (versionColumn == null) {
+				version = checksum(wf);
+			}
+
+			if ((c.descriptor == null) || (version != c.version)) {
+				c.descriptor = parse(wf, validate);
+				c.version = version;
+			}
+
+			c.lastChecked = System.currentTimeMillis();
+		} finally {
+			try {
+				conn.close();
+			} catch (Exception ex) {
+			}
+		}
+	}
+
+	private String versionSelect() {
+		return (versionColumn != null) ? (", " + versionColumn) : "";
+	}
+
 	// ~ Inner Classes
 	// //////////////////////////////////////////////////////////
 
 	class WfConfig {
 		String wfName;
-		WorkflowDescriptor descriptor;
-		long lastModified;
+		volatile WorkflowDescriptor descriptor;
+		volatile long lastChecked;
+
+		/**
+		 * The version column value, or the checksum of the definition.
+		 */
+		long version;
 
 		public WfConfig(String name) {
 			wfName = name;
@@ -74,7 +74,7 @@ public class RegisterDescriptor extends AbstractDescriptor {
 			out.print(entry.getKey());
 			out.print("\">");
 
-			if ("beanshell".equals(type) || "bsf".equals(type)) {
+			if ("beanshell".equals(type) || "bsf".equals(type) || "jsr223".equals(type)) {
 				out.print("<![CDATA[");
 				out.print(entry.getValue());
 				out.print("]]>");
@@ -37,6 +37,14 @@ public class StepDescriptor extends AbstractDescriptor implements Validatable {
 	protected String name;
 	protected boolean hasActions = false;
 
+	/**
+	 * Action index and read-only view of the actions built by
+	 * {@link #freeze()}, only read once <code>frozen</code> has been set.
+	 */
+	private transient IntHashMap actionIndex;
+	private transient List actionsView;
+	private transient volatile boolean frozen;
+
 	// ~ Constructors
 	// ///////////////////////////////////////////////////////////
 
@@ -63,22 +71,18 @@ public class StepDescriptor extends AbstractDescriptor implements Validatable {
 	// ////////////////////////////////////////////////////////////////
 
 	public ActionDescriptor getAction(int id) {
-		for (Iterator iterator = actions.iterator(); iterator.hasNext();) {
-			ActionDescriptor action = (ActionDescriptor) iterator.next();
-
-			if (action.getId() == id) {
-				return action;
-			}
+		if (frozen) {
+			return (ActionDescriptor) actionIndex.get(id);
 		}
 
-		return null;
+		return (ActionDescriptor) WorkflowDescriptor.findById(actions, id);
 	}
 
 	/**
 	 * Get a List of {@link ActionDescriptor}s for this step
 	 */
 	public List getActions() {
-		return actions;
+		return frozen ? actionsView : actions;
 	}
 
 	/**
@@ -133,11 +137,27 @@ public class StepDescriptor extends AbstractDescriptor implements Validatable {
 	 * Remove all common and regular actions for this step.
 	 */
 	public void removeActions() {
+		if (frozen) {
+			throw new IllegalStateException("Step " + getId() + " is frozen and cannot be modified");
+		}
+
 		commonActions.clear();
 		actions.clear();
 		hasActions = false;
 	}
 
+	/**
+	 * Index the actions of this step by id. Called when the owning
+	 * {@link WorkflowDescriptor} is frozen.
+	 */
+	synchronized void freeze() {
+		if (!frozen) {
+			actionIndex = WorkflowDescriptor.indexById(actions);
+			actionsView = Collections.unmodifiableList(actions);
+			frozen = true;
+		}
+	}
+
 	public boolean resultsInJoin(int join) {
 		for (Iterator iterator = actions.iterator(); iterator.hasNext();) {
 			ActionDescriptor actionDescriptor = (ActionDescriptor) iterator.next();
@@ -8,6 +8,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Serializable;
@@ -15,19 +16,49 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.opensymphony.workflow.FactoryException;
 
 /**
+ * Loads workflows from the URL given as their name. With <code>cache</code>
+ * set to <code>true</code>, each descriptor is loaded once, by the first
+ * request for it, while concurrent requests for the same workflow wait for
+ * that load instead of starting their own.
+ * <p>
+ * With <code>reload</code> also set to <code>true</code>, cached workflows
+ * loaded from local files are watched from a background thread, and a changed
+ * file is loaded there, the new descriptor replacing the old one once it has
+ * loaded.
+ * 
  * @author Hani Suleiman Date: May 10, 2002 Time: 11:59:47 AM
  */
 public class URLWorkflowFactory extends AbstractWorkflowFactory implements Serializable {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final Log log = LogFactory.getLog(URLWorkflowFactory.class);
+
 	// ~ Instance fields
 	// ////////////////////////////////////////////////////////
 
-	private transient Map cache = new HashMap();
+	private transient ConcurrentMap cache = new ConcurrentHashMap();
+	private transient DescriptorWatcher watcher;
+
+	/**
+	 * Kept here, as the watcher only references it weakly.
+	 */
+	private transient DescriptorWatcher.Listener watcherListener;
+	private boolean reload;
+	private boolean useCache;
 
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
@@ -47,28 +78,50 @@ public class URLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 		return "";
 	}
 
+	/**
+	 * Stop watching the workflow files.
+	 */
+	public void close() {
+		DescriptorWatcher watcher = this.watcher;
+
+		if (watcher != null) {
+			this.watcher = null;
+			watcher.close();
+		}
+	}
+
 	public WorkflowDescriptor getWorkflow(String name, boolean validate) throws FactoryException {
-		boolean useCache = getProperties().getProperty("cache", "false").equals("true");
+		if (!useCache) {
+			return load(name, validate);
+		}
 
-		if (useCache) {
-			WorkflowDescriptor descriptor = (WorkflowDescriptor) cache.get(name);
+		LoadTask task = (LoadTask) cache.get(name);
 
-			if (descriptor != null) {
-				return descriptor;
+		if (task == null) {
+			LoadTask created = new LoadTask(name, validate);
+			task = (LoadTask) cache.putIfAbsent(name, created);
+
+			if (task == null) {
+				task = created;
+				created.run();
+				watch(name);
 			}
 		}
 
 		try {
-			URL url = new URL(name);
-			WorkflowDescriptor descriptor = WorkflowLoader.load(url, validate);
+			return (WorkflowDescriptor) task.get();
+		} catch (ExecutionException e) {
+			// let the next request try again
+			cache.remove(name, task);
 
-			if (useCache) {
-				cache.put(name, descriptor);
+			if (e.getCause() instanceof FactoryException) {
+				throw (FactoryException) e.getCause();
 			}
 
-			return descriptor;
-		} catch (Exception e) {
-			throw new FactoryException("Unable to find workflow " + name, e);
+			throw new FactoryException("Unable to find workflow " + name, (Exception) e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FactoryException("Interrupted while loading workflow " + name, e);
 		}
 	}
 
@@ -79,6 +132,27 @@ public class URLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 	public void createWorkflow(String name) {
 	}
 
+	public void initDone() throws FactoryException {
+		useCache = getProperties().getProperty("cache", "false").equals("true");
+		reload = useCache && getProperties().getProperty("reload", "false").equals("true");
+
+		close();
+
+		if (reload) {
+			watcherListener = new DescriptorWatcher.Listener() {
+				public void fileChanged(File file) {
+					reloadWorkflows(file);
+				}
+			};
+
+			try {
+				watcher = new DescriptorWatcher("osworkflow-url-watcher", watcherListener);
+			} catch (IOException e) {
+				log.warn("Could not watch workflow files, they will not be reloaded", e);
+			}
+		}
+	}
+
 	public boolean removeWorkflow(String name) throws FactoryException {
 		throw new FactoryException("remove workflow not supported");
 	}
@@ -90,7 +164,7 @@ public class URLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 	}
 
 	public boolean saveWorkflow(String name, WorkflowDescriptor descriptor, boolean replace) throws FactoryException {
-		WorkflowDescriptor c = (WorkflowDescriptor) cache.get(name);
+		boolean cached = cache.containsKey(name);
 		URL url;
 
 		try {
@@ -99,9 +173,7 @@ public class URLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 			throw new FactoryException("workflow '" + name + "' is an invalid url:" + ex);
 		}
 
-		boolean useCache = getProperties().getProperty("cache", "false").equals("true");
-
-		if (useCache && (c != null) && !replace) {
+		if (useCache && cached && !replace) {
 			return false;
 		}
 
@@ -147,7 +219,9 @@ public class URLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 		backup.delete();
 
 		if (useCache) {
-			cache.put(name, descriptor);
+			LoadTask task = new LoadTask(name, descriptor);
+			task.run();
+			cache.put(name, task);
 		}
 
 		return true;
@@ -157,4 +231,91 @@ public class URLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 	public WorkflowDescriptor getWorkflowFromXml(String xml) throws FactoryException {
 		throw new FactoryException("Not implemented");
 	}
+
+	/**
+	 * @return the local file the named workflow is loaded from, or null if it
+	 *         is not a local file
+	 */
+	private static File getFile(String name) {
+		try {
+			URL url = new URL(name);
+
+			return "file".equals(url.getProtocol()) ? new File(url.getFile()).getAbsoluteFile() : null;
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private WorkflowDescriptor load(String name, boolean validate) throws FactoryException {
+		try {
+			return WorkflowLoader.load(new URL(name), validate);
+		} catch (Exception e) {
+			throw new FactoryException("Unable to find workflow " + name, e);
+		}
+	}
+
+	private void reloadWorkflows(File file) {
+		for (Iterator iterator = cache.values().iterator(); iterator.hasNext();) {
+			LoadTask task = (LoadTask) iterator.next();
+
+			if (!file.equals(getFile(task.name))) {
+				continue;
+			}
+
+			LoadTask reloaded = new LoadTask(task.name, task.validate);
+			reloaded.run();
+
+			try {
+				reloaded.get();
+				cache.replace(task.name, task, reloaded);
+			} catch (Exception e) {
+				log.warn("Could not reload workflow " + task.name + ", keeping the loaded descriptor", e);
+			}
+		}
+	}
+
+	private void watch(String name) {
+		File file = getFile(name);
+
+		if ((watcher != null) && (file != null) && file.getParentFile().isDirectory()) {
+			try {
+				watcher.watch(file);
+			} catch (IOException e) {
+				log.warn("Could not watch workflow file " + file, e);
+			}
+		}
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * Loads one workflow, once, for all the threads asking for it.
+	 */
+	private class LoadTask extends FutureTask {
+		final String name;
+		final boolean validate;
+
+		LoadTask(final String name, final boolean validate) {
+			super(new Callable() {
+				public Object call() throws FactoryException {
+					return load(name, validate);
+				}
+			});
+			this.name = name;
+			this.validate = validate;
+		}
+
+		/**
+		 * Already loaded once run.
+		 */
+		LoadTask(String name, WorkflowDescriptor descriptor) {
+			super(new Runnable() {
+				public void run() {
+				}
+			}, descriptor);
+			this.name = name;
+			this.validate = false;
+		}
+	}
 }
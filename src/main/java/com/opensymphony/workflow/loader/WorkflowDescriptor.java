@@ -13,6 +13,8 @@ import org.xml.sax.InputSource;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -46,6 +48,31 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	protected Map timerFunctions = new HashMap();
 	protected String workflowName = null;
 
+	/**
+	 * Lookup indexes built by {@link #freeze()}. They are only read once
+	 * <code>frozen</code> has been set, which publishes them safely to other
+	 * threads.
+	 */
+	private transient IntHashMap actionIndex;
+	private transient IntHashMap globalActionIndex;
+	private transient IntHashMap initialActionIndex;
+	private transient IntHashMap joinIndex;
+	private transient IntHashMap owningStepIndex;
+	private transient IntHashMap splitIndex;
+	private transient IntHashMap stepIndex;
+
+	/**
+	 * Read-only views of the lists and of the common actions, handed out
+	 * once frozen. Created by {@link #freeze()}, like the indexes.
+	 */
+	private transient List globalActionsView;
+	private transient List initialActionsView;
+	private transient List joinsView;
+	private transient List splitsView;
+	private transient List stepsView;
+	private transient Map commonActionsView;
+	private transient volatile boolean frozen;
+
 	// ~ Constructors
 	// ///////////////////////////////////////////////////////////
 
@@ -66,6 +93,10 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	// ////////////////////////////////////////////////////////////////
 
 	public ActionDescriptor getAction(int id) {
+		if (frozen) {
+			return (ActionDescriptor) actionIndex.get(id);
+		}
+
 		// check global actions
 		for (Iterator iterator = globalActions.iterator(); iterator.hasNext();) {
 			ActionDescriptor actionDescriptor = (ActionDescriptor) iterator.next();
@@ -103,7 +134,14 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 * @return A list of {@link ActionDescriptor} objects
 	 */
 	public Map getCommonActions() {
-		return commonActions;
+		return frozen ? commonActionsView : commonActions;
+	}
+
+	/**
+	 * Whether this descriptor has been compiled through {@link #freeze()}.
+	 */
+	public boolean isFrozen() {
+		return frozen;
 	}
 
 	/**
@@ -112,7 +150,15 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 * @return A list of {@link ActionDescriptor} objects
 	 */
 	public List getGlobalActions() {
-		return globalActions;
+		return frozen ? globalActionsView : globalActions;
+	}
+
+	public ActionDescriptor getGlobalAction(int id) {
+		if (frozen) {
+			return (ActionDescriptor) globalActionIndex.get(id);
+		}
+
+		return (ActionDescriptor) findById(globalActions, id);
 	}
 
 	public ConditionsDescriptor getGlobalConditions() {
@@ -120,15 +166,11 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	}
 
 	public ActionDescriptor getInitialAction(int id) {
-		for (Iterator iterator = initialActions.iterator(); iterator.hasNext();) {
-			ActionDescriptor actionDescriptor = (ActionDescriptor) iterator.next();
-
-			if (actionDescriptor.getId() == id) {
-				return actionDescriptor;
-			}
+		if (frozen) {
+			return (ActionDescriptor) initialActionIndex.get(id);
 		}
 
-		return null;
+		return (ActionDescriptor) findById(initialActions, id);
 	}
 
 	/**
@@ -137,19 +179,15 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 * @return A list of {@link ActionDescriptor} objects
 	 */
 	public List getInitialActions() {
-		return initialActions;
+		return frozen ? initialActionsView : initialActions;
 	}
 
 	public JoinDescriptor getJoin(int id) {
-		for (Iterator iterator = joins.iterator(); iterator.hasNext();) {
-			JoinDescriptor joinDescriptor = (JoinDescriptor) iterator.next();
-
-			if (joinDescriptor.getId() == id) {
-				return joinDescriptor;
-			}
+		if (frozen) {
+			return (JoinDescriptor) joinIndex.get(id);
 		}
 
-		return null;
+		return (JoinDescriptor) findById(joins, id);
 	}
 
 	/**
@@ -158,7 +196,7 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 * @return A list of {@link JoinDescriptor} objects
 	 */
 	public List getJoins() {
-		return joins;
+		return frozen ? joinsView : joins;
 	}
 
 	public Map getMetaAttributes() {
@@ -173,20 +211,41 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 		return workflowName;
 	}
 
+	/**
+	 * Get the step that declares the specified action. Global, initial and
+	 * common actions are not owned by a single step.
+	 * 
+	 * @param actionId
+	 *            The id of the action
+	 * @return The owning step, or null if no step declares the action
+	 */
+	public StepDescriptor getOwningStep(int actionId) {
+		if (frozen) {
+			return (StepDescriptor) owningStepIndex.get(actionId);
+		}
+
+		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
+			StepDescriptor stepDescriptor = (StepDescriptor) iterator.next();
+			ActionDescriptor actionDescriptor = stepDescriptor.getAction(actionId);
+
+			if ((actionDescriptor != null) && !actionDescriptor.isCommon()) {
+				return stepDescriptor;
+			}
+		}
+
+		return null;
+	}
+
 	public List getRegisters() {
 		return registers;
 	}
 
 	public SplitDescriptor getSplit(int id) {
-		for (Iterator iterator = splits.iterator(); iterator.hasNext();) {
-			SplitDescriptor splitDescriptor = (SplitDescriptor) iterator.next();
-
-			if (splitDescriptor.getId() == id) {
-				return splitDescriptor;
-			}
+		if (frozen) {
+			return (SplitDescriptor) splitIndex.get(id);
 		}
 
-		return null;
+		return (SplitDescriptor) findById(splits, id);
 	}
 
 	/**
@@ -195,19 +254,15 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 * @return A list of {@link SplitDescriptor} objects
 	 */
 	public List getSplits() {
-		return splits;
+		return frozen ? splitsView : splits;
 	}
 
 	public StepDescriptor getStep(int id) {
-		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
-			StepDescriptor step = (StepDescriptor) iterator.next();
-
-			if (step.getId() == id) {
-				return step;
-			}
+		if (frozen) {
+			return (StepDescriptor) stepIndex.get(id);
 		}
 
-		return null;
+		return (StepDescriptor) findById(steps, id);
 	}
 
 	/**
@@ -216,7 +271,7 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 * @return a List of {@link StepDescriptor} objects
 	 */
 	public List getSteps() {
-		return steps;
+		return frozen ? stepsView : steps;
 	}
 
 	/**
@@ -254,6 +309,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *             if the descriptor's ID already exists in the workflow
 	 */
 	public void addCommonAction(ActionDescriptor descriptor) {
+		checkNotFrozen();
+
 		descriptor.setCommon(true);
 		addAction(commonActions, descriptor);
 		addAction(commonActionsList, descriptor);
@@ -268,6 +325,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *             if the descriptor's ID already exists in the workflow
 	 */
 	public void addGlobalAction(ActionDescriptor descriptor) {
+		checkNotFrozen();
+
 		addAction(globalActions, descriptor);
 	}
 
@@ -280,6 +339,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *             if the descriptor's ID already exists in the workflow
 	 */
 	public void addInitialAction(ActionDescriptor descriptor) {
+		checkNotFrozen();
+
 		addAction(initialActions, descriptor);
 	}
 
@@ -292,6 +353,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *             if the descriptor's ID already exists in the workflow
 	 */
 	public void addJoin(JoinDescriptor descriptor) {
+		checkNotFrozen();
+
 		if (getJoin(descriptor.getId()) != null) {
 			throw new IllegalArgumentException("Join with id " + descriptor.getId() + " already exists");
 		}
@@ -308,6 +371,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *             if the descriptor's ID already exists in the workflow
 	 */
 	public void addSplit(SplitDescriptor descriptor) {
+		checkNotFrozen();
+
 		if (getSplit(descriptor.getId()) != null) {
 			throw new IllegalArgumentException("Split with id " + descriptor.getId() + " already exists");
 		}
@@ -324,6 +389,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *             if the descriptor's ID already exists in the workflow
 	 */
 	public void addStep(StepDescriptor descriptor) {
+		checkNotFrozen();
+
 		if (getStep(descriptor.getId()) != null) {
 			throw new IllegalArgumentException("Step with id " + descriptor.getId() + " already exists");
 		}
@@ -340,6 +407,8 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 	 *         found
 	 */
 	public boolean removeAction(ActionDescriptor actionToRemove) {
+		checkNotFrozen();
+
 		// global actions
 		for (Iterator iterator = getGlobalActions().iterator(); iterator.hasNext();) {
 			ActionDescriptor actionDescriptor = (ActionDescriptor) iterator.next();
@@ -366,6 +435,65 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 		return false;
 	}
 
+	/**
+	 * Compile this descriptor into its frozen form. All step, action, join and
+	 * split lookups are then answered from int-keyed indexes instead of
+	 * walking the descriptor lists, and the descriptor can no longer be
+	 * structurally modified. Calling this method more than once has no effect.
+	 */
+	public synchronized void freeze() {
+		if (frozen) {
+			return;
+		}
+
+		IntHashMap globalActionIndex = indexById(globalActions);
+		IntHashMap initialActionIndex = indexById(initialActions);
+		IntHashMap stepIndex = indexById(steps);
+		IntHashMap actionIndex = new IntHashMap(globalActions.size() + initialActions.size() + steps.size());
+		IntHashMap owningStepIndex = new IntHashMap(steps.size());
+
+		// same precedence as the linear lookup: global, then step, then initial
+		for (Iterator iterator = globalActions.iterator(); iterator.hasNext();) {
+			ActionDescriptor actionDescriptor = (ActionDescriptor) iterator.next();
+			actionIndex.putIfAbsent(actionDescriptor.getId(), actionDescriptor);
+		}
+
+		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
+			StepDescriptor stepDescriptor = (StepDescriptor) iterator.next();
+			stepDescriptor.freeze();
+
+			for (Iterator iterator2 = stepDescriptor.actions.iterator(); iterator2.hasNext();) {
+				ActionDescriptor actionDescriptor = (ActionDescriptor) iterator2.next();
+				actionIndex.putIfAbsent(actionDescriptor.getId(), actionDescriptor);
+
+				if (!actionDescriptor.isCommon()) {
+					owningStepIndex.putIfAbsent(actionDescriptor.getId(), stepDescriptor);
+				}
+			}
+		}
+
+		for (Iterator iterator = initialActions.iterator(); iterator.hasNext();) {
+			ActionDescriptor actionDescriptor = (ActionDescriptor) iterator.next();
+			actionIndex.putIfAbsent(actionDescriptor.getId(), actionDescriptor);
+		}
+
+		this.actionIndex = actionIndex;
+		this.globalActionIndex = globalActionIndex;
+		this.initialActionIndex = initialActionIndex;
+		this.joinIndex = indexById(joins);
+		this.owningStepIndex = owningStepIndex;
+		this.splitIndex = indexById(splits);
+		this.stepIndex = stepIndex;
+		commonActionsView = Collections.unmodifiableMap(commonActions);
+		globalActionsView = Collections.unmodifiableList(globalActions);
+		initialActionsView = Collections.unmodifiableList(initialActions);
+		joinsView = Collections.unmodifiableList(joins);
+		splitsView = Collections.unmodifiableList(splits);
+		stepsView = Collections.unmodifiableList(steps);
+		compileTemplates();
+		frozen = true;
+	}
+
 	public void validate() throws InvalidWorkflowDescriptorException {
 		ValidationHelper.validate(this.getRegisters());
 		ValidationHelper.validate(this.getTriggerFunctions().values());
@@ -428,6 +556,17 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 		validateDTD();
 	}
 
+	/**
+	 * Write this descriptor in its compact binary form, which
+	 * {@link WorkflowLoader} reads back without any XML parsing.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if an argument or meta attribute value is not a string
+	 */
+	public void writeBinary(OutputStream out) throws IOException {
+		BinaryDescriptorFormat.write(this, out);
+	}
+
 	public void writeXML(PrintWriter out, int indent) {
 		XMLUtil.printIndent(out, indent++);
 		out.println("<workflow>");
@@ -703,6 +842,135 @@ public class WorkflowDescriptor extends AbstractDescriptor implements Validatabl
 		}
 	}
 
+	static IntHashMap indexById(List descriptors) {
+		IntHashMap index = new IntHashMap(descriptors.size());
+
+		for (Iterator iterator = descriptors.iterator(); iterator.hasNext();) {
+			AbstractDescriptor descriptor = (AbstractDescriptor) iterator.next();
+			index.putIfAbsent(descriptor.getId(), descriptor);
+		}
+
+		return index;
+	}
+
+	static AbstractDescriptor findById(List descriptors, int id) {
+		for (Iterator iterator = descriptors.iterator(); iterator.hasNext();) {
+			AbstractDescriptor descriptor = (AbstractDescriptor) iterator.next();
+
+			if (descriptor.getId() == id) {
+				return descriptor;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Compile the args of every condition, function and validator in this
+	 * workflow into variable templates.
+	 */
+	private void compileTemplates() {
+		compileConditions(globalConditions);
+		compileFunctions(timerFunctions.values());
+		compileActions(globalActions);
+		compileActions(initialActions);
+		compileActions(commonActions.values());
+
+		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
+			StepDescriptor step = (StepDescriptor) iterator.next();
+			compileFunctions(step.getPreFunctions());
+			compileFunctions(step.getPostFunctions());
+			compileActions(step.actions);
+
+			for (Iterator iterator2 = step.getPermissions().iterator(); iterator2.hasNext();) {
+				PermissionDescriptor permission = (PermissionDescriptor) iterator2.next();
+				compileRestriction(permission.getRestriction());
+			}
+		}
+
+		for (Iterator iterator = splits.iterator(); iterator.hasNext();) {
+			SplitDescriptor split = (SplitDescriptor) iterator.next();
+
+			for (Iterator iterator2 = split.getResults().iterator(); iterator2.hasNext();) {
+				compileResult((ResultDescriptor) iterator2.next());
+			}
+		}
+
+		for (Iterator iterator = joins.iterator(); iterator.hasNext();) {
+			JoinDescriptor join = (JoinDescriptor) iterator.next();
+			compileConditions(join.getConditions());
+			compileResult(join.getResult());
+		}
+	}
+
+	private void compileActions(Collection actions) {
+		for (Iterator iterator = actions.iterator(); iterator.hasNext();) {
+			ActionDescriptor action = (ActionDescriptor) iterator.next();
+			compileRestriction(action.getRestriction());
+			compileValidators(action.getValidators());
+			compileFunctions(action.getPreFunctions());
+			compileFunctions(action.getPostFunctions());
+
+			for (Iterator iterator2 = action.getConditionalResults().iterator(); iterator2.hasNext();) {
+				ConditionalResultDescriptor result = (ConditionalResultDescriptor) iterator2.next();
+				compileConditions(result.getConditions());
+				compileResult(result);
+			}
+
+			compileResult(action.getUnconditionalResult());
+		}
+	}
+
+	private void compileConditions(AbstractDescriptor descriptor) {
+		if (descriptor instanceof ConditionsDescriptor) {
+			compileConditions(((ConditionsDescriptor) descriptor).getConditions());
+		} else if (descriptor instanceof ConditionDescriptor) {
+			((ConditionDescriptor) descriptor).compileArgs();
+		}
+	}
+
+	private void compileConditions(List conditions) {
+		for (Iterator iterator = conditions.iterator(); iterator.hasNext();) {
+			compileConditions((AbstractDescriptor) iterator.next());
+		}
+	}
+
+	private void compileFunctions(Collection functions) {
+		for (Iterator iterator = functions.iterator(); iterator.hasNext();) {
+			((FunctionDescriptor) iterator.next()).compileArgs();
+		}
+	}
+
+	private void compileRestriction(RestrictionDescriptor restriction) {
+		if (restriction != null) {
+			compileConditions(restriction.getConditionsDescriptor());
+		}
+	}
+
+	private void compileResult(ResultDescriptor result) {
+		if (result != null) {
+			compileValidators(result.getValidators());
+			compileFunctions(result.getPreFunctions());
+			compileFunctions(result.getPostFunctions());
+		}
+	}
+
+	private void compileValidators(Collection validators) {
+		for (Iterator iterator = validators.iterator(); iterator.hasNext();) {
+			ValidatorDescriptor validator = (ValidatorDescriptor) iterator.next();
+
+			if (validator != null) {
+				validator.compileArgs();
+			}
+		}
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("Workflow descriptor " + workflowName + " is frozen and cannot be modified");
+		}
+	}
+
 	// refactored this out from the three addAction methods above
 	private void addAction(Object actionsCollectionOrMap, ActionDescriptor descriptor) {
 		if (getAction(descriptor.getId()) != null) {
@@ -13,8 +13,11 @@ import org.xml.sax.*;
 
 import java.io.*;
 
+import java.net.URISyntaxException;
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,6 +26,16 @@ import javax.xml.parsers.*;
 /**
  * The WorkflowLoader is responsible for creating a WorkflowDesciptor by loading
  * the XML from various sources.
+ * <p>
+ * Descriptors are built straight from the SAX events of the document. If a
+ * custom {@link DescriptorFactory} is installed, the document is parsed into a
+ * DOM tree and handed to the factory instead, as before.
+ * <p>
+ * Descriptors written by {@link WorkflowDescriptor#writeBinary} are recognised
+ * by their header wherever XML is accepted, and decoded without parsing. Local
+ * files in that form are read in one go. They are not memory mapped, as the
+ * descriptor is copied to the heap while decoding anyway, and a mapping would
+ * keep the file locked on Windows until it is garbage collected.
  * 
  * @author <a href="mailto:plightbo@hotmail.com">Pat Lightbody</a>
  */
@@ -46,10 +59,142 @@ public class WorkflowLoader {
 	 * Load a workflow descriptor from a URL
 	 */
 	public static WorkflowDescriptor load(final URL url, boolean validate) throws SAXException, IOException, InvalidWorkflowDescriptorException {
+		if ("file".equals(url.getProtocol())) {
+			File file;
+
+			try {
+				file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				file = new File(url.getFile());
+			} catch (IllegalArgumentException e) {
+				// such as a UNC path given as file://host/share
+				file = new File(url.getFile());
+			}
+
+			if (file.isFile()) {
+				ByteBuffer buffer = readBinary(file);
+
+				if (buffer != null) {
+					return load(buffer, validate);
+				}
+			}
+		}
+
 		return load(url.openStream(), url, validate);
 	}
 
+	/**
+	 * Load a workflow descriptor written by
+	 * {@link WorkflowDescriptor#writeBinary(OutputStream)}, from the buffer's
+	 * position onwards. The buffer may be a memory mapped file, and is read in
+	 * place.
+	 * 
+	 * @throws InvalidWorkflowDescriptorException
+	 *             if the buffer does not hold a binary descriptor, or its
+	 *             version or checksum do not match
+	 */
+	public static WorkflowDescriptor load(ByteBuffer buffer, boolean validate) throws InvalidWorkflowDescriptorException {
+		return prepare(BinaryDescriptorFormat.read(buffer), validate);
+	}
+
 	private static WorkflowDescriptor load(InputStream is, URL url, boolean validate) throws SAXException, IOException, InvalidWorkflowDescriptorException {
+		if (!is.markSupported()) {
+			is = new BufferedInputStream(is);
+		}
+
+		if (isBinary(is)) {
+			return load(ByteBuffer.wrap(readFully(is)), validate);
+		}
+
+		DescriptorFactory factory = DescriptorFactory.getFactory();
+
+		// custom factories may override the DOM based create methods
+		WorkflowDescriptor descriptor = (factory.getClass() == DescriptorFactory.class) ? parse(is, url, validate, factory) : parseDocument(is, url, validate, factory);
+
+		return prepare(descriptor, validate);
+	}
+
+	/**
+	 * Check for the binary descriptor magic number, leaving the stream where
+	 * it was.
+	 */
+	private static boolean isBinary(InputStream is) throws IOException {
+		byte[] magic = new byte[4];
+		int length = 0;
+		is.mark(magic.length);
+
+		try {
+			while (length < magic.length) {
+				int read = is.read(magic, length, magic.length - length);
+
+				if (read < 0) {
+					break;
+				}
+
+				length += read;
+			}
+		} finally {
+			is.reset();
+		}
+
+		return BinaryDescriptorFormat.isBinary(ByteBuffer.wrap(magic, 0, length));
+	}
+
+	/**
+	 * Read the file if it holds a binary descriptor.
+	 * 
+	 * @return the content of the file, or null if it is not a binary
+	 *         descriptor
+	 */
+	private static ByteBuffer readBinary(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			if ((raf.length() < BinaryDescriptorFormat.HEADER_SIZE) || (raf.readInt() != BinaryDescriptorFormat.MAGIC)) {
+				return null;
+			}
+
+			byte[] content = new byte[(int) raf.length()];
+			raf.seek(0);
+			raf.readFully(content);
+
+			return ByteBuffer.wrap(content);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Build the descriptor straight from the SAX events, without a DOM tree.
+	 */
+	private static WorkflowDescriptor parse(InputStream is, URL url, boolean validate, DescriptorFactory factory) throws SAXException, IOException, InvalidWorkflowDescriptorException {
+		SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setNamespaceAware(true);
+
+		spf.setValidating(validate);
+
+		XMLReader reader;
+
+		try {
+			reader = spf.newSAXParser().getXMLReader();
+		} catch (ParserConfigurationException e) {
+			throw new SAXException("Error creating SAX parser", e);
+		}
+
+		DescriptorHandler handler = new DescriptorHandler(factory);
+		reader.setEntityResolver(new DTDEntityResolver());
+		reader.setErrorHandler(new WorkflowErrorHandler(url));
+		reader.setContentHandler(handler);
+		reader.parse(new InputSource(is));
+
+		if (handler.getDescriptor() == null) {
+			throw new InvalidWorkflowDescriptorException("No workflow element found" + ((url != null) ? (" in " + url) : ""));
+		}
+
+		return handler.getDescriptor();
+	}
+
+	private static WorkflowDescriptor parseDocument(InputStream is, URL url, boolean validate, DescriptorFactory factory) throws SAXException, IOException {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		dbf.setNamespaceAware(true);
 
@@ -70,15 +215,31 @@ public class WorkflowLoader {
 
 		Element root = (Element) doc.getElementsByTagName("workflow").item(0);
 
-		WorkflowDescriptor descriptor = DescriptorFactory.getFactory().createWorkflowDescriptor(root);
+		return factory.createWorkflowDescriptor(root);
+	}
 
+	private static WorkflowDescriptor prepare(WorkflowDescriptor descriptor, boolean validate) throws InvalidWorkflowDescriptorException {
 		if (validate) {
 			descriptor.validate();
 		}
 
+		descriptor.freeze();
+
 		return descriptor;
 	}
 
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		byte[] buffer = new byte[8192];
+		int read;
+
+		while ((read = is.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+
+		return out.toByteArray();
+	}
+
 	// ~ Inner Classes
 	// //////////////////////////////////////////////////////////
 
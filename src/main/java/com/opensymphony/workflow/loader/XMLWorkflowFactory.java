@@ -9,6 +9,7 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
@@ -26,6 +27,9 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -33,6 +37,15 @@ import com.opensymphony.workflow.FactoryException;
 import com.opensymphony.workflow.InvalidWorkflowDescriptorException;
 
 /**
+ * Loads workflows from the files listed in a workflows configuration file.
+ * Each descriptor is loaded once, by the first request for it, and later
+ * requests read it without locking.
+ * <p>
+ * With <code>reload</code> set to <code>true</code>, workflow files are
+ * watched from a background thread and a changed file is loaded there, the new
+ * descriptor replacing the old one once it has loaded. Should the file system
+ * not support watching, the files are checked on each request instead.
+ * 
  * @author Hani Suleiman Date: May 10, 2002 Time: 11:30:41 AM
  */
 public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Serializable {
@@ -40,12 +53,19 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 	// /////////////////////////////////////////////
 
 	private static final long serialVersionUID = 452755218478437087L;
+	private static final Log log = LogFactory.getLog(XMLWorkflowFactory.class);
 
 	// ~ Instance fields
 	// ////////////////////////////////////////////////////////
 
 	protected Map workflows;
 	protected boolean reload;
+	private transient DescriptorWatcher watcher;
+
+	/**
+	 * Kept here, as the watcher only references it weakly.
+	 */
+	private transient DescriptorWatcher.Listener watcherListener;
 
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
@@ -65,6 +85,18 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 		return "";
 	}
 
+	/**
+	 * Stop watching the workflow files.
+	 */
+	public void close() {
+		DescriptorWatcher watcher = this.watcher;
+
+		if (watcher != null) {
+			this.watcher = null;
+			watcher.close();
+		}
+	}
+
 	@Override
 	public WorkflowDescriptor getWorkflowFromXml(String xml) throws FactoryException {
 		InputStream stream = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
@@ -83,22 +115,13 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 			throw new FactoryException("Unknown workflow name \"" + name + '\"');
 		}
 
-		if (c.descriptor != null) {
-			if (reload) {
-				File file = new File(c.url.getFile());
+		WorkflowDescriptor descriptor = c.descriptor;
 
-				if (file.exists() && (file.lastModified() > c.lastModified)) {
-					c.lastModified = file.lastModified();
-					loadWorkflow(c, validate);
-				}
-			}
-		} else {
-			loadWorkflow(c, validate);
+		if ((descriptor == null) || (reload && (watcher == null) && c.isModified())) {
+			descriptor = loadWorkflow(c, name, validate, descriptor);
 		}
 
-		c.descriptor.setName(name);
-
-		return c.descriptor;
+		return descriptor;
 	}
 
 	public String[] getWorkflowNames() {
@@ -155,6 +178,12 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 		} catch (Exception e) {
 			throw new InvalidWorkflowDescriptorException("Error in workflow config", e);
 		}
+
+		close();
+
+		if (reload) {
+			watchWorkflows();
+		}
 	}
 
 	public boolean removeWorkflow(String name) throws FactoryException {
@@ -305,11 +334,85 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 		writer.close();
 	}
 
-	private void loadWorkflow(WorkflowConfig c, boolean validate) throws FactoryException {
+	/**
+	 * Load the workflow unless another thread already has, since the caller
+	 * saw the given descriptor.
+	 */
+	private WorkflowDescriptor loadWorkflow(WorkflowConfig c, String name, boolean validate, WorkflowDescriptor seen) throws FactoryException {
+		synchronized (c) {
+			if (c.descriptor != seen) {
+				return c.descriptor;
+			}
+
+			File file = c.getFile();
+
+			// taken before loading, so that a change while loading is seen
+			long lastModified = (file != null) ? file.lastModified() : c.lastModified;
+			WorkflowDescriptor descriptor;
+
+			try {
+				descriptor = WorkflowLoader.load(c.url, validate);
+			} catch (Exception e) {
+				throw new FactoryException("Error in workflow descriptor: " + c.url, e);
+			}
+
+			descriptor.setName(name);
+			c.validate = validate;
+			c.lastModified = lastModified;
+			c.descriptor = descriptor;
+
+			return descriptor;
+		}
+	}
+
+	private void reloadWorkflows(File file) {
+		for (Iterator iterator = workflows.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry entry = (Map.Entry) iterator.next();
+			WorkflowConfig c = (WorkflowConfig) entry.getValue();
+
+			// not loaded yet, so the next request reads the new file anyway
+			if ((c.descriptor == null) || !file.equals(c.getFile())) {
+				continue;
+			}
+
+			synchronized (c) {
+				if (file.lastModified() == c.lastModified) {
+					continue;
+				}
+
+				try {
+					loadWorkflow(c, (String) entry.getKey(), c.validate, c.descriptor);
+				} catch (FactoryException e) {
+					log.warn("Could not reload workflow " + entry.getKey() + ", keeping the loaded descriptor", e);
+				}
+			}
+		}
+	}
+
+	private void watchWorkflows() {
+		watcherListener = new DescriptorWatcher.Listener() {
+			public void fileChanged(File file) {
+				reloadWorkflows(file);
+			}
+		};
+
 		try {
-			c.descriptor = WorkflowLoader.load(c.url, validate);
-		} catch (Exception e) {
-			throw new FactoryException("Error in workflow descriptor: " + c.url, e);
+			watcher = new DescriptorWatcher("osworkflow-xml-watcher", watcherListener);
+
+			for (Iterator iterator = workflows.values().iterator(); iterator.hasNext();) {
+				File file = ((WorkflowConfig) iterator.next()).getFile();
+
+				if ((file != null) && file.getParentFile().isDirectory()) {
+					watcher.watch(file);
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Could not watch workflow files, checking them on each request instead", e);
+
+			if (watcher != null) {
+				watcher.close();
+				watcher = null;
+			}
 		}
 	}
 
@@ -321,7 +424,8 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 		String location;
 		String type; // file, URL, service
 		URL url;
-		WorkflowDescriptor descriptor;
+		volatile WorkflowDescriptor descriptor;
+		boolean validate;
 		long lastModified;
 
 		public WorkflowConfig(String basedir, String type, String location) {
@@ -350,5 +454,24 @@ public class XMLWorkflowFactory extends AbstractWorkflowFactory implements Seria
 			this.type = type;
 			this.location = location;
 		}
+
+		/**
+		 * @return the local file the workflow is loaded from, or null if it is
+		 *         not a local file
+		 */
+		File getFile() {
+			if ((url == null) || !"file".equals(url.getProtocol())) {
+				return null;
+			}
+
+			return new File(url.getFile()).getAbsoluteFile();
+		}
+
+		boolean isModified() {
+			File file = getFile();
+
+			// any other time, as a file restored from a backup may be older
+			return (file != null) && file.exists() && (file.lastModified() != lastModified);
+		}
 	}
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes timings to a Dropwizard Metrics {@link MetricRegistry}. As
+ * Dropwizard metrics have no tags, the tags are appended to the metric name,
+ * for example <code>osworkflow.doAction.expense.3</code> or
+ * <code>osworkflow.condition.expense.3.beanshell</code>. Each name gets a
+ * timer, and failed operations are also counted by a meter with the
+ * <code>.failures</code> suffix.
+ * <p>
+ * Requires <code>io.dropwizard.metrics:metrics-core</code> 3.x on the
+ * classpath, which the workflow engine itself does not depend on.
+ */
+public class DropwizardWorkflowMetrics implements WorkflowMetrics {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final MetricRegistry registry;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public DropwizardWorkflowMetrics(MetricRegistry registry) {
+		this.registry = registry;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public boolean isEnabled() {
+		return true;
+	}
+
+	public MetricRegistry getRegistry() {
+		return registry;
+	}
+
+	public void record(String metric, String workflowName, int actionId, String type, long nanos, boolean failed) {
+		StringBuffer name = new StringBuffer(64).append(metric);
+
+		if (workflowName != null) {
+			name.append('.').append(workflowName);
+		}
+
+		if (actionId != -1) {
+			name.append('.').append(actionId);
+		}
+
+		if (type != null) {
+			name.append('.').append(type);
+		}
+
+		registry.timer(name.toString()).update(nanos, TimeUnit.NANOSECONDS);
+
+		if (failed) {
+			registry.meter(name.append(".failures").toString()).mark();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.metrics;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.workflow.StoreException;
+import com.opensymphony.workflow.query.WorkflowExpressionQuery;
+import com.opensymphony.workflow.query.WorkflowQuery;
+import com.opensymphony.workflow.spi.Step;
+import com.opensymphony.workflow.spi.TransactionalWorkflowStore;
+import com.opensymphony.workflow.spi.WorkflowEntry;
+import com.opensymphony.workflow.spi.WorkflowStore;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a {@link WorkflowStore} to record the time taken by each of its
+ * methods under {@link WorkflowMetrics#STORE}, with the method name as the
+ * type. The workflow name is recorded for {@link #createEntry(String)} only.
+ * <p>
+ * Units of work are passed on if the wrapped store is a
+ * {@link TransactionalWorkflowStore}; otherwise
+ * {@link #beginUnitOfWork()} returns false.
+ */
+public class InstrumentedWorkflowStore implements TransactionalWorkflowStore {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final WorkflowMetrics metrics;
+	private final WorkflowStore store;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public InstrumentedWorkflowStore(WorkflowStore store, WorkflowMetrics metrics) {
+		this.store = store;
+		this.metrics = metrics;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the wrapped store
+	 */
+	public WorkflowStore getDelegate() {
+		return store;
+	}
+
+	public void setEntryState(long entryId, int state) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			store.setEntryState(entryId, state);
+			failed = false;
+		} finally {
+			record("setEntryState", null, start, failed);
+		}
+	}
+
+	public PropertySet getPropertySet(long entryId) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			PropertySet ps = store.getPropertySet(entryId);
+			failed = false;
+
+			return ps;
+		} finally {
+			record("getPropertySet", null, start, failed);
+		}
+	}
+
+	public void setRollbackOnly() {
+		if (store instanceof TransactionalWorkflowStore) {
+			((TransactionalWorkflowStore) store).setRollbackOnly();
+		}
+	}
+
+	public boolean beginUnitOfWork() throws StoreException {
+		if (!(store instanceof TransactionalWorkflowStore)) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			boolean begun = ((TransactionalWorkflowStore) store).beginUnitOfWork();
+			failed = false;
+
+			return begun;
+		} finally {
+			record("beginUnitOfWork", null, start, failed);
+		}
+	}
+
+	public Step createCurrentStep(long entryId, int stepId, String owner, Date startDate, Date dueDate, String status, long[] previousIds) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			Step step = store.createCurrentStep(entryId, stepId, owner, startDate, dueDate, status, previousIds);
+			failed = false;
+
+			return step;
+		} finally {
+			record("createCurrentStep", null, start, failed);
+		}
+	}
+
+	public WorkflowEntry createEntry(String workflowName) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			WorkflowEntry entry = store.createEntry(workflowName);
+			failed = false;
+
+			return entry;
+		} finally {
+			record("createEntry", workflowName, start, failed);
+		}
+	}
+
+	public void endUnitOfWork() throws StoreException {
+		if (!(store instanceof TransactionalWorkflowStore)) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			((TransactionalWorkflowStore) store).endUnitOfWork();
+			failed = false;
+		} finally {
+			record("endUnitOfWork", null, start, failed);
+		}
+	}
+
+	public List findCurrentSteps(long entryId) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			List steps = store.findCurrentSteps(entryId);
+			failed = false;
+
+			return steps;
+		} finally {
+			record("findCurrentSteps", null, start, failed);
+		}
+	}
+
+	public WorkflowEntry findEntry(long entryId) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			WorkflowEntry entry = store.findEntry(entryId);
+			failed = false;
+
+			return entry;
+		} finally {
+			record("findEntry", null, start, failed);
+		}
+	}
+
+	public List findHistorySteps(long entryId) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			List steps = store.findHistorySteps(entryId);
+			failed = false;
+
+			return steps;
+		} finally {
+			record("findHistorySteps", null, start, failed);
+		}
+	}
+
+	public void init(Map props) throws StoreException {
+		store.init(props);
+	}
+
+	public Step markFinished(Step step, int actionId, Date finishDate, String status, String caller) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			Step finished = store.markFinished(step, actionId, finishDate, status, caller);
+			failed = false;
+
+			return finished;
+		} finally {
+			record("markFinished", null, start, failed);
+		}
+	}
+
+	public void moveToHistory(Step step) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			store.moveToHistory(step);
+			failed = false;
+		} finally {
+			record("moveToHistory", null, start, failed);
+		}
+	}
+
+	public void moveToHistory(Collection steps) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			store.moveToHistory(steps);
+			failed = false;
+		} finally {
+			record("moveToHistory", null, start, failed);
+		}
+	}
+
+	public List query(WorkflowQuery query) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			List results = store.query(query);
+			failed = false;
+
+			return results;
+		} finally {
+			record("query", null, start, failed);
+		}
+	}
+
+	public List query(WorkflowExpressionQuery query) throws StoreException {
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			List results = store.query(query);
+			failed = false;
+
+			return results;
+		} finally {
+			record("query", null, start, failed);
+		}
+	}
+
+	private void record(String method, String workflowName, long start, boolean failed) {
+		metrics.record(WorkflowMetrics.STORE, workflowName, -1, method, System.nanoTime() - start, failed);
+	}
+}
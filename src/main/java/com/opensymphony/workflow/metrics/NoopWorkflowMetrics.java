@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.metrics;
+
+/**
+ * Discards all timings. This is the default, and makes the engine skip
+ * measuring altogether.
+ */
+public class NoopWorkflowMetrics implements WorkflowMetrics {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	public static final NoopWorkflowMetrics INSTANCE = new NoopWorkflowMetrics();
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public boolean isEnabled() {
+		return false;
+	}
+
+	public void record(String metric, String workflowName, int actionId, String type, long nanos, boolean failed) {
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.metrics;
+
+/**
+ * Receives the timings of the operations performed by the workflow engine, so
+ * they can be published to a metrics library.
+ * <p>
+ * Each timing is recorded against a metric name and up to three tags: the
+ * workflow name, the action id and a type. The type is the condition, function
+ * or validator type (or its class name for <code>class</code> types), or the
+ * name of the {@link com.opensymphony.workflow.spi.WorkflowStore} method.
+ * Implementations are called from every thread using the engine and must be
+ * thread safe.
+ *
+ * @see NoopWorkflowMetrics
+ * @see DropwizardWorkflowMetrics
+ */
+public interface WorkflowMetrics {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	/**
+	 * {@link com.opensymphony.workflow.Workflow#doAction}, including the
+	 * commit of its unit of work.
+	 */
+	public static final String DO_ACTION = "osworkflow.doAction";
+
+	/**
+	 * {@link com.opensymphony.workflow.Workflow#initialize}, including the
+	 * commit of its unit of work.
+	 */
+	public static final String INITIALIZE = "osworkflow.initialize";
+	public static final String GET_AVAILABLE_ACTIONS = "osworkflow.getAvailableActions";
+	public static final String CONDITION = "osworkflow.condition";
+	public static final String FUNCTION = "osworkflow.function";
+	public static final String VALIDATOR = "osworkflow.validator";
+	public static final String STORE = "osworkflow.store";
+
+	/**
+	 * Obtaining a workflow descriptor from the configured
+	 * {@link com.opensymphony.workflow.loader.WorkflowFactory}.
+	 */
+	public static final String FACTORY = "osworkflow.factory";
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return false if timings are discarded, in which case the engine does
+	 *         not measure them at all
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Record the duration of one operation.
+	 *
+	 * @param metric
+	 *            one of the metric names defined by this interface
+	 * @param workflowName
+	 *            the name of the workflow, or null if not known
+	 * @param actionId
+	 *            the id of the action, or -1 if not known
+	 * @param type
+	 *            the type of the operation, or null
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 * @param failed
+	 *            true if the operation threw an exception
+	 */
+	public void record(String metric, String workflowName, int actionId, String type, long nanos, boolean failed);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.spi;
+
+import com.opensymphony.workflow.StoreException;
+
+/**
+ * A {@link WorkflowStore} that can group all the reads and writes made while
+ * the engine performs one workflow operation, such as an action or the
+ * initialization of an entry, into a single unit of work. A unit of work is
+ * bound to the calling thread, and is either committed or rolled back as a
+ * whole when it ends.
+ */
+public interface TransactionalWorkflowStore extends WorkflowStore {
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Mark the unit of work bound to the current thread so that it is rolled
+	 * back rather than committed when it ends. Does nothing if no unit of work
+	 * is active.
+	 */
+	public void setRollbackOnly();
+
+	/**
+	 * Start a unit of work for the current thread.
+	 *
+	 * @return true if a new unit of work was started, false if one is already
+	 *         active on this thread or units of work are disabled, in which
+	 *         case the caller must not call {@link #endUnitOfWork()}.
+	 */
+	public boolean beginUnitOfWork() throws StoreException;
+
+	/**
+	 * End the unit of work bound to the current thread, committing it unless
+	 * {@link #setRollbackOnly()} was called.
+	 */
+	public void endUnitOfWork() throws StoreException;
+}
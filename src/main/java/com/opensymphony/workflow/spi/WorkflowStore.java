@@ -135,6 +135,16 @@ public interface WorkflowStore {
 	 */
 	public void moveToHistory(Step step) throws StoreException;
 
+	/**
+	 * Called when several steps are finished together and can be moved to
+	 * workflow history in one go, for example when a join completes or an
+	 * entry is finished.
+	 * 
+	 * @param steps
+	 *            the steps to be moved to workflow history
+	 */
+	public void moveToHistory(Collection steps) throws StoreException;
+
 	/**
 	 * @deprecated use {@link WorkflowStore#query(WorkflowExpressionQuery)}
 	 *             instead.
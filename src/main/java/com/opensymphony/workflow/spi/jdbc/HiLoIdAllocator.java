@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.spi.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An {@link IdAllocator} that reserves ids in blocks. Each value <i>hi</i>
+ * read from the underlying allocator reserves the ids
+ * <code>hi * blockSize</code> up to <code>(hi + 1) * blockSize - 1</code>,
+ * which are then handed out from memory without locking. The underlying
+ * allocator is only called again once the block is used up.
+ * <p>
+ * Ids that were reserved but not handed out, for example when the store is
+ * shut down, are never used.
+ */
+public class HiLoIdAllocator implements IdAllocator {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final AtomicReference block = new AtomicReference();
+	private final IdAllocator source;
+	private final int blockSize;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public HiLoIdAllocator(IdAllocator source, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be at least 1, was " + blockSize);
+		}
+
+		this.source = source;
+		this.blockSize = blockSize;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public long nextId(Connection conn) throws SQLException {
+		while (true) {
+			Block current = (Block) block.get();
+
+			if (current != null) {
+				long id = current.next.getAndIncrement();
+
+				if (id < current.end) {
+					return id;
+				}
+			}
+
+			synchronized (this) {
+				// another thread may have reserved a new block while we waited
+				if (block.get() == current) {
+					long start = source.nextId(conn) * blockSize;
+					block.set(new Block(start, start + blockSize));
+				}
+			}
+		}
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	private static class Block {
+		private final AtomicLong next;
+		private final long end;
+
+		Block(long start, long end) {
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.spi.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Hands out the ids of new workflow entries or steps for a
+ * {@link JDBCWorkflowStore}. Implementations must be safe to call from several
+ * threads at once.
+ */
+public interface IdAllocator {
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Get the next id.
+	 *
+	 * @param conn
+	 *            the connection the new row will be inserted with, which may
+	 *            be used to read a database sequence
+	 */
+	public long nextId(Connection conn) throws SQLException;
+}
@@ -15,6 +15,9 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -27,9 +30,50 @@ import com.opensymphony.module.propertyset.InvalidPropertyTypeException;
 import com.opensymphony.module.propertyset.PropertyException;
 import com.opensymphony.util.Data;
 
+/**
+ * A property set stored in a single JDBC table, one row per property.
+ * <p>
+ * With caching enabled, all the rows of the property set are loaded with one
+ * query on first access and reads are served from memory. With write-behind
+ * enabled as well, changes are only buffered until {@link #flush()} writes
+ * them out in batches.
+ * <p>
+ * By default a property is written with an UPDATE, followed by an INSERT when
+ * no row was updated. Setting an upsert dialect writes it with a single
+ * statement instead:
+ * <ul>
+ * <li><b>merge</b> - standard <code>MERGE ... USING (VALUES ...)</code>, as
+ * understood by H2. Not for SQL Server, which requires a MERGE statement to
+ * end with a semicolon.</li>
+ * <li><b>oracle</b> - <code>MERGE ... USING (SELECT ... FROM DUAL)</code></li>
+ * <li><b>mysql</b> - <code>INSERT ... ON DUPLICATE KEY UPDATE</code></li>
+ * <li><b>postgresql</b> - <code>INSERT ... ON CONFLICT ... DO UPDATE</code>
+ * (PostgreSQL 9.5 and later)</li>
+ * </ul>
+ * All of these rely on a unique key over the global key and item key columns.
+ */
 public class JDBCPropertySet extends AbstractPropertySet
 {
 	private static final Log log = LogFactory.getLog(JDBCPropertySet.class);
+	private static final Row REMOVED = new Row(0, null);
+
+	/**
+	 * SQL types of the columns, in the column order of the insert statement.
+	 */
+	private static final int[] SQL_TYPES = {12, 93, -3, 6, 2, 4, 12, 12};
+	private static final int[] INSERT_PARAMETERS = {0, 1, 2, 3, 4, 5, 6, 7};
+
+	/**
+	 * Columns bound by the MERGE statements: the key, then the values to
+	 * update, then all the columns to insert.
+	 */
+	private static final int[] MERGE_PARAMETERS = {6, 7, 0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5, 6, 7};
+
+	public static final String UPSERT_NONE = "none";
+	public static final String UPSERT_MERGE = "merge";
+	public static final String UPSERT_ORACLE = "oracle";
+	public static final String UPSERT_MYSQL = "mysql";
+	public static final String UPSERT_POSTGRESQL = "postgresql";
 
 	protected DataSource ds;
 	protected String colData;
@@ -43,6 +87,25 @@ public class JDBCPropertySet extends AbstractPropertySet
 	protected String globalKey;
 	protected String tableName;
 	protected boolean closeConnWhenDone = false;
+	protected Connection connection;
+	protected boolean caching = false;
+	protected boolean writeBehind = false;
+	protected String upsert = UPSERT_NONE;
+
+	/**
+	 * The cached rows by key, or null if not loaded yet.
+	 */
+	private Map rows;
+
+	/**
+	 * Keys of the cached rows that exist in the table.
+	 */
+	private Map persisted;
+
+	/**
+	 * Changes not flushed yet, by key, in the order they were made.
+	 */
+	private Map pending = new LinkedHashMap();
 
 	public DataSource getDs() {
 		return ds;
@@ -52,6 +115,147 @@ public class JDBCPropertySet extends AbstractPropertySet
 		this.ds = ds;
 	}
 
+	/**
+	 * Use the given connection for all statements instead of obtaining one
+	 * from the DataSource. The connection is not closed by this property set.
+	 */
+	public void setConnection(Connection connection) {
+		this.connection = connection;
+	}
+
+	public void setCaching(boolean caching) {
+		this.caching = caching;
+	}
+
+	public boolean isCaching() {
+		return caching;
+	}
+
+	/**
+	 * Buffer changes until {@link #flush()} is called. Implies caching.
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+
+		if (writeBehind) {
+			this.caching = true;
+		}
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Select the statement used to write a property, one of the
+	 * <code>UPSERT_</code> constants. Null selects {@link #UPSERT_NONE}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the dialect is not known
+	 */
+	public void setUpsert(String upsert) {
+		if (upsert == null) {
+			upsert = UPSERT_NONE;
+		}
+
+		if (!isUpsertDialect(upsert)) {
+			throw new IllegalArgumentException("Unknown upsert dialect: " + upsert);
+		}
+
+		this.upsert = upsert;
+	}
+
+	public String getUpsert() {
+		return upsert;
+	}
+
+	public static boolean isUpsertDialect(String upsert) {
+		return UPSERT_NONE.equals(upsert) || UPSERT_MERGE.equals(upsert) || UPSERT_ORACLE.equals(upsert) || UPSERT_MYSQL.equals(upsert) || UPSERT_POSTGRESQL.equals(upsert);
+	}
+
+	/**
+	 * Write all buffered changes to the table, using one batch for the
+	 * deletes, one for the updates and one for the inserts. With an upsert
+	 * dialect the inserts are written as upserts.
+	 */
+	public void flush() throws PropertyException {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		Connection conn = null;
+		PreparedStatement delete = null;
+		PreparedStatement update = null;
+		PreparedStatement insert = null;
+		String upsertSql = upsertSql();
+		try
+		{
+			conn = getConnection();
+
+			for (Iterator iterator = pending.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+				String key = (String) entry.getKey();
+				Row row = (Row) entry.getValue();
+
+				if (row == REMOVED) {
+					if (delete == null) {
+						delete = conn.prepareStatement("DELETE FROM " + this.tableName + " WHERE " + this.colGlobalKey + " = ? AND " + this.colItemKey + " = ?");
+					}
+
+					delete.setString(1, this.globalKey);
+					delete.setString(2, key);
+					delete.addBatch();
+				} else if (persisted.containsKey(key)) {
+					if (update == null) {
+						update = conn.prepareStatement(updateSql());
+					}
+
+					setValues(update, row.type, key, row.value);
+					update.addBatch();
+				} else {
+					// rows not known to exist may have been inserted since they
+					// were loaded, which an upsert tolerates
+					if (insert == null) {
+						insert = conn.prepareStatement((upsertSql != null) ? upsertSql : insertSql());
+					}
+
+					setValues(insert, (upsertSql != null) ? upsertParameters() : INSERT_PARAMETERS, row.type, key, row.value);
+					insert.addBatch();
+				}
+			}
+
+			if (delete != null) {
+				delete.executeBatch();
+			}
+
+			if (update != null) {
+				update.executeBatch();
+			}
+
+			if (insert != null) {
+				insert.executeBatch();
+			}
+
+			for (Iterator iterator = pending.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+
+				if (entry.getValue() == REMOVED) {
+					persisted.remove(entry.getKey());
+				} else {
+					persisted.put(entry.getKey(), Boolean.TRUE);
+				}
+			}
+
+			pending.clear();
+		} catch (SQLException e) {
+			throw new PropertyException(e.getMessage());
+		} finally {
+			cleanup(null, delete, null);
+			cleanup(null, update, null);
+			cleanup(conn, insert, null);
+		}
+	}
+
 	public Collection getKeys(String prefix, int type)
 			throws PropertyException
 	{
@@ -59,6 +263,21 @@ public class JDBCPropertySet extends AbstractPropertySet
 			prefix = "";
 		}
 
+		if (caching) {
+			ArrayList list = new ArrayList();
+
+			for (Iterator iterator = rows().entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+				String key = (String) entry.getKey();
+
+				if (key.startsWith(prefix) && ((type == 0) || (((Row) entry.getValue()).type == type))) {
+					list.add(key);
+				}
+			}
+
+			return list;
+		}
+
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
@@ -96,6 +315,12 @@ public class JDBCPropertySet extends AbstractPropertySet
 	}
 
 	public int getType(String key) throws PropertyException {
+		if (caching) {
+			Row row = (Row) rows().get(key);
+
+			return (row == null) ? 0 : row.type;
+		}
+
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
@@ -132,6 +357,9 @@ public class JDBCPropertySet extends AbstractPropertySet
 	{
 		this.globalKey = ((String) args.get("globalKey"));
 
+		Object upsert = args.containsKey("upsert") ? args.get("upsert") : config.get("upsert");
+		setUpsert((String) upsert);
+
 		this.tableName = "OS_PROPERTYENTRY";
 		this.colGlobalKey = "GLOBAL_KEY";
 		this.colItemKey = "ITEM_KEY";
@@ -144,6 +372,13 @@ public class JDBCPropertySet extends AbstractPropertySet
 	}
 
 	public void remove() throws PropertyException {
+		if (caching) {
+			// changes not flushed yet would be deleted anyway
+			pending.clear();
+			rows = new HashMap();
+			persisted = new HashMap();
+		}
+
 		Connection conn = null;
 		PreparedStatement ps = null;
 		try
@@ -162,6 +397,22 @@ public class JDBCPropertySet extends AbstractPropertySet
 	}
 
 	public void remove(String key) throws PropertyException {
+		if (caching) {
+			rows().remove(key);
+
+			if (writeBehind) {
+				if (persisted.containsKey(key)) {
+					pending.put(key, REMOVED);
+				} else {
+					pending.remove(key);
+				}
+
+				return;
+			}
+
+			persisted.remove(key);
+		}
+
 		Connection conn = null;
 		PreparedStatement ps = null;
 		try
@@ -192,6 +443,10 @@ public class JDBCPropertySet extends AbstractPropertySet
 	}
 
 	protected Connection getConnection() throws SQLException {
+		if (this.connection != null) {
+			return this.connection;
+		}
+
 		this.closeConnWhenDone = true;
 
 		return this.ds.getConnection();
@@ -202,28 +457,57 @@ public class JDBCPropertySet extends AbstractPropertySet
 			throw new PropertyException("JDBCPropertySet does not allow for null values to be stored");
 		}
 
+		if ((type == 8) && !(value instanceof Serializable)) {
+			throw new PropertyException(value.getClass() + " does not implement java.io.Serializable");
+		}
+
+		if (caching) {
+			Row row = new Row(type, (value instanceof Data) ? ((Data) value).getBytes() : value);
+			rows().put(key, row);
+
+			if (writeBehind) {
+				pending.put(key, row);
+
+				return;
+			}
+		}
+
 		Connection conn = null;
 		PreparedStatement ps = null;
 		try
 		{
 			conn = getConnection();
 
-			String sql = "UPDATE " + this.tableName + " SET " + this.colString + " = ?, " + this.colDate + " = ?, " + this.colData + " = ?, " + this.colFloat + " = ?, " + this.colNumber + " = ?, "
-					+ this.colItemType + " = ? " + " WHERE " + this.colGlobalKey + " = ? AND " + this.colItemKey + " = ?";
-			ps = conn.prepareStatement(sql);
+			String upsertSql = upsertSql();
+
+			if (upsertSql != null) {
+				ps = conn.prepareStatement(upsertSql);
+				setValues(ps, upsertParameters(), type, key, value);
+				ps.executeUpdate();
+
+				if (caching) {
+					persisted.put(key, Boolean.TRUE);
+				}
+
+				return;
+			}
+
+			ps = conn.prepareStatement(updateSql());
 			setValues(ps, type, key, value);
 
 			int rows = ps.executeUpdate();
 
 			if (rows != 1)
 			{
-				sql = "INSERT INTO " + this.tableName + " (" + this.colString + ", " + this.colDate + ", " + this.colData + ", " + this.colFloat + ", " + this.colNumber + ", " + this.colItemType
-						+ ", " + this.colGlobalKey + ", " + this.colItemKey + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
 				ps.close();
-				ps = conn.prepareStatement(sql);
+				ps = conn.prepareStatement(insertSql());
 				setValues(ps, type, key, value);
 				ps.executeUpdate();
 			}
+
+			if (caching) {
+				persisted.put(key, Boolean.TRUE);
+			}
 		} catch (SQLException e) {
 			throw new PropertyException(e.getMessage());
 		} finally {
@@ -248,7 +532,7 @@ public class JDBCPropertySet extends AbstractPropertySet
 			}
 		}
 
-		if ((connection != null) && (this.closeConnWhenDone))
+		if ((connection != null) && (this.closeConnWhenDone) && (connection != this.connection))
 			try {
 				connection.close();
 			} catch (SQLException ex) {
@@ -258,6 +542,20 @@ public class JDBCPropertySet extends AbstractPropertySet
 
 	protected Object get(int type, String key) throws PropertyException
 	{
+		if (caching) {
+			Row row = (Row) rows().get(key);
+
+			if (row == null) {
+				return null;
+			}
+
+			if (row.type != type) {
+				throw new InvalidPropertyTypeException();
+			}
+
+			return row.value;
+		}
+
 		String sql = "SELECT " + this.colItemType + ", " + this.colString + ", " + this.colDate + ", " + this.colData + ", " + this.colFloat + ", " + this.colNumber + " FROM " + this.tableName
 				+ " WHERE " + this.colItemKey + " = ? AND " + this.colGlobalKey + " = ?";
 
@@ -309,6 +607,7 @@ public class JDBCPropertySet extends AbstractPropertySet
 						e.printStackTrace();
 					}
 
+					break;
 				case 4:
 					o = new Double(rs.getDouble(this.colFloat));
 
@@ -345,31 +644,190 @@ public class JDBCPropertySet extends AbstractPropertySet
 		return o;
 	}
 
+	/**
+	 * Get the cached rows, loading all the rows of this property set in one
+	 * query on first use.
+	 */
+	private Map rows() throws PropertyException {
+		if (rows != null) {
+			return rows;
+		}
+
+		String sql = "SELECT " + this.colItemKey + ", " + this.colItemType + ", " + this.colString + ", " + this.colDate + ", " + this.colData + ", " + this.colFloat + ", " + this.colNumber + " FROM "
+				+ this.tableName + " WHERE " + this.colGlobalKey + " = ?";
+
+		Map loaded = new HashMap();
+		Connection conn = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try
+		{
+			conn = getConnection();
+
+			ps = conn.prepareStatement(sql);
+			ps.setString(1, this.globalKey);
+
+			rs = ps.executeQuery();
+
+			while (rs.next()) {
+				String key = rs.getString(1);
+				int type = rs.getInt(2);
+				loaded.put(key, new Row(type, readValue(rs, type, key)));
+			}
+		} catch (SQLException e) {
+			throw new PropertyException(e.getMessage());
+		} finally {
+			cleanup(conn, ps, rs);
+		}
+
+		persisted = new HashMap();
+
+		for (Iterator iterator = loaded.keySet().iterator(); iterator.hasNext();) {
+			persisted.put(iterator.next(), Boolean.TRUE);
+		}
+
+		rows = loaded;
+
+		return rows;
+	}
+
+	private Object readValue(ResultSet rs, int type, String key) throws SQLException {
+		switch (type)
+		{
+		case 1:
+			return new Boolean(rs.getInt(7) == 1);
+		case 10:
+			return rs.getBytes(5);
+		case 7:
+			return rs.getTimestamp(4);
+		case 8:
+			byte[] bytes = rs.getBytes(5);
+
+			if (bytes == null) {
+				return null;
+			}
+
+			try
+			{
+				return new ObjectInputStream(new java.io.ByteArrayInputStream(bytes)).readObject();
+			} catch (IOException e) {
+				throw new PropertyException("Error de-serializing object for key '" + key + "' from store:" + e);
+			} catch (ClassNotFoundException e) {
+				throw new PropertyException("Error de-serializing object for key '" + key + "' from store:" + e);
+			}
+		case 4:
+			return new Double(rs.getDouble(6));
+		case 2:
+			return new Integer(rs.getInt(7));
+		case 3:
+			return new Long(rs.getLong(7));
+		case 5:
+		case 6:
+			return rs.getString(3);
+		default:
+			return null;
+		}
+	}
+
+	private String insertSql() {
+		return "INSERT INTO " + this.tableName + " (" + this.colString + ", " + this.colDate + ", " + this.colData + ", " + this.colFloat + ", " + this.colNumber + ", " + this.colItemType + ", "
+				+ this.colGlobalKey + ", " + this.colItemKey + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	}
+
+	/**
+	 * Build the single-statement insert or update for the configured dialect,
+	 * with parameters bound as given by {@link #upsertParameters()}.
+	 *
+	 * @return the statement, or null if no upsert dialect is configured
+	 */
+	private String upsertSql() {
+		if (UPSERT_NONE.equals(upsert)) {
+			return null;
+		}
+
+		// the first six columns are updated, the last two form the key
+		String[] columns = {this.colString, this.colDate, this.colData, this.colFloat, this.colNumber, this.colItemType, this.colGlobalKey, this.colItemKey};
+		StringBuffer sql = new StringBuffer(512);
+
+		if (UPSERT_MYSQL.equals(upsert)) {
+			sql.append(insertSql()).append(" ON DUPLICATE KEY UPDATE ");
+
+			for (int i = 0; i < 6; i++) {
+				sql.append((i == 0) ? "" : ", ").append(columns[i]).append(" = VALUES(").append(columns[i]).append(')');
+			}
+
+			return sql.toString();
+		}
+
+		if (UPSERT_POSTGRESQL.equals(upsert)) {
+			sql.append(insertSql()).append(" ON CONFLICT (").append(this.colGlobalKey).append(", ").append(this.colItemKey).append(") DO UPDATE SET ");
+
+			for (int i = 0; i < 6; i++) {
+				sql.append((i == 0) ? "" : ", ").append(columns[i]).append(" = EXCLUDED.").append(columns[i]);
+			}
+
+			return sql.toString();
+		}
+
+		// values are bound straight to the target columns rather than
+		// through the source table, so no casts are needed for null values
+		sql.append("MERGE INTO ").append(this.tableName).append(" T USING ").append(UPSERT_ORACLE.equals(upsert) ? "DUAL" : "(VALUES (1)) AS S (X)");
+		sql.append(" ON (T.").append(this.colGlobalKey).append(" = ? AND T.").append(this.colItemKey).append(" = ?) WHEN MATCHED THEN UPDATE SET ");
+
+		for (int i = 0; i < 6; i++) {
+			sql.append((i == 0) ? "" : ", ").append("T.").append(columns[i]).append(" = ?");
+		}
+
+		sql.append(" WHEN NOT MATCHED THEN INSERT (");
+
+		for (int i = 0; i < columns.length; i++) {
+			sql.append((i == 0) ? "" : ", ").append(columns[i]);
+		}
+
+		return sql.append(") VALUES (?, ?, ?, ?, ?, ?, ?, ?)").toString();
+	}
+
+	private int[] upsertParameters() {
+		return (UPSERT_MERGE.equals(upsert) || UPSERT_ORACLE.equals(upsert)) ? MERGE_PARAMETERS : INSERT_PARAMETERS;
+	}
+
+	private String updateSql() {
+		return "UPDATE " + this.tableName + " SET " + this.colString + " = ?, " + this.colDate + " = ?, " + this.colData + " = ?, " + this.colFloat + " = ?, " + this.colNumber + " = ?, "
+				+ this.colItemType + " = ? " + " WHERE " + this.colGlobalKey + " = ? AND " + this.colItemKey + " = ?";
+	}
+
 	private void setValues(PreparedStatement ps, int type, String key, Object value) throws SQLException, PropertyException {
-		ps.setNull(1, 12);
-		ps.setNull(2, 93);
-		ps.setNull(3, -3);
-		ps.setNull(4, 6);
-		ps.setNull(5, 2);
-		ps.setInt(6, type);
-		ps.setString(7, this.globalKey);
-		ps.setString(8, key);
+		setValues(ps, INSERT_PARAMETERS, type, key, value);
+	}
+
+	/**
+	 * Bind the column values of a property.
+	 *
+	 * @param parameters
+	 *            the column bound to each parameter, as an index into the
+	 *            column order of {@link #insertSql()}
+	 */
+	private void setValues(PreparedStatement ps, int[] parameters, int type, String key, Object value) throws SQLException, PropertyException {
+		Object[] values = new Object[8];
+		values[5] = new Integer(type);
+		values[6] = this.globalKey;
+		values[7] = key;
 
 		switch (type)
 		{
 		case 1:
 			Boolean boolVal = (Boolean) value;
-			ps.setInt(5, boolVal.booleanValue() ? 1 : 0);
+			values[4] = new Integer(boolVal.booleanValue() ? 1 : 0);
 
 			break;
 		case 10:
 			if ((value instanceof Data)) {
 				Data data = (Data) value;
-				ps.setBytes(3, data.getBytes());
+				values[2] = data.getBytes();
 			}
 
 			if ((value instanceof byte[]))
-				ps.setBytes(3, (byte[]) value);
+				values[2] = value;
 			break;
 		case 8:
 			if (!(value instanceof Serializable)) {
@@ -381,42 +839,54 @@ public class JDBCPropertySet extends AbstractPropertySet
 			{
 				ObjectOutputStream os = new ObjectOutputStream(bos);
 				os.writeObject(value);
-				ps.setBytes(3, bos.toByteArray());
+				values[2] = bos.toByteArray();
 			} catch (IOException e) {
 				throw new PropertyException("I/O Error when serializing object:" + e);
 			}
 
+			break;
 		case 7:
 			Date date = (Date) value;
-			ps.setTimestamp(2, new Timestamp(date.getTime()));
+			values[1] = new Timestamp(date.getTime());
 
 			break;
 		case 4:
-			Double d = (Double) value;
-			ps.setDouble(4, d.doubleValue());
-
-			break;
 		case 2:
-			Integer i = (Integer) value;
-			ps.setInt(5, i.intValue());
-
-			break;
 		case 3:
-			Long l = (Long) value;
-			ps.setLong(5, l.longValue());
+			values[(type == 4) ? 3 : 4] = value;
 
 			break;
 		case 5:
-			ps.setString(1, (String) value);
-
-			break;
 		case 6:
-			ps.setString(1, (String) value);
+			values[0] = value;
 
 			break;
 		case 9:
 		default:
 			throw new PropertyException("This type isn't supported!");
 		}
+
+		for (int i = 0; i < parameters.length; i++) {
+			Object v = values[parameters[i]];
+
+			if (v == null) {
+				ps.setNull(i + 1, SQL_TYPES[parameters[i]]);
+			} else if (v instanceof byte[]) {
+				ps.setBytes(i + 1, (byte[]) v);
+			} else {
+				ps.setObject(i + 1, v);
+			}
+		}
+	}
+
+	private static class Row
+	{
+		final Object value;
+		final int type;
+
+		Row(int type, Object value) {
+			this.type = type;
+			this.value = value;
+		}
 	}
-}
\ No newline at end of file
+}
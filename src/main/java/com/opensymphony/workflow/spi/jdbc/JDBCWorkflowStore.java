@@ -4,6 +4,7 @@
  */
 package com.opensymphony.workflow.spi.jdbc;
 
+import com.opensymphony.module.propertyset.PropertyException;
 import com.opensymphony.module.propertyset.PropertySet;
 import com.opensymphony.workflow.StoreException;
 import com.opensymphony.workflow.query.*;
@@ -52,19 +53,50 @@ import java.util.Date;
  * <li><b>step.previousId</b> - column name for step ID field (foreign key
  * relation to [history.table].[step.id] or [current.table].[step.id])</li>
  * </ul>
+ * <p/>
+ * The following properties are optional:
+ * <ul>
+ * <li><b>id.blockSize</b> - if greater than 1, entry and step ids are
+ * reserved in blocks of this size with a {@link HiLoIdAllocator}, so the
+ * sequences are read once per block instead of once per id. Defaults to 1.
+ * Note that ids allocated this way are multiples of the sequence values, so
+ * the block size must not be lowered once ids have been handed out.</li>
+ * <li><b>unitOfWork</b> - if <code>true</code>, each workflow operation
+ * performed by the engine uses a single connection and is committed or rolled
+ * back as a whole. Defaults to <code>false</code>, where every store method
+ * obtains its own connection. Within a unit of work, the property set of an
+ * entry is loaded in one query on first access, and its changes are written
+ * in batches just before the commit.</li>
+ * <li><b>propertySet.cache</b> - if <code>true</code>, property sets obtained
+ * outside of a unit of work also load all their properties on first access
+ * and serve reads from memory. Writes still go straight to the database.
+ * Defaults to <code>false</code>.</li>
+ * <li><b>propertySet.upsert</b> - the statement property sets use to write a
+ * property: <code>none</code> (an UPDATE followed by an INSERT when no row
+ * matched, the default), <code>merge</code>, <code>oracle</code>,
+ * <code>mysql</code> or <code>postgresql</code>. See {@link JDBCPropertySet}.</li>
+ * </ul>
  *
  * @author <a href="mailto:plightbo@hotmail.com">Pat Lightbody</a>
  */
-public class JDBCWorkflowStore implements WorkflowStore {
+public class JDBCWorkflowStore implements TransactionalWorkflowStore {
     // ~ Static fields/initializers
     // /////////////////////////////////////////////
 
     private static final Log log = LogFactory.getLog(JDBCWorkflowStore.class);
 
+    /**
+     * Maximum number of entry ids bound into a single IN list when loading
+     * the steps of several entries.
+     */
+    protected static final int MAX_IN_LIST = 100;
+
     // ~ Instance fields
     // ////////////////////////////////////////////////////////
 
     protected DataSource ds;
+    protected IdAllocator entryIdAllocator;
+    protected IdAllocator stepIdAllocator;
     protected String currentPrevTable;
     protected String currentTable;
     protected String entryId;
@@ -87,6 +119,14 @@ public class JDBCWorkflowStore implements WorkflowStore {
     protected String stepStatus;
     protected String stepStepId;
     protected boolean closeConnWhenDone = false;
+    protected String propertySetUpsert = JDBCPropertySet.UPSERT_NONE;
+    protected boolean propertySetCaching = false;
+    protected boolean unitOfWorkEnabled = false;
+
+    /**
+     * The {@link UnitOfWork} bound to the current thread, if any.
+     */
+    private final ThreadLocal unitOfWork = new ThreadLocal();
 
     public JDBCWorkflowStore() {
         try {
@@ -103,9 +143,33 @@ public class JDBCWorkflowStore implements WorkflowStore {
         return ds;
     }
 
+    public void setEntryIdAllocator(IdAllocator entryIdAllocator) {
+        this.entryIdAllocator = entryIdAllocator;
+    }
+
+    public IdAllocator getEntryIdAllocator() {
+        return entryIdAllocator;
+    }
+
+    public void setStepIdAllocator(IdAllocator stepIdAllocator) {
+        this.stepIdAllocator = stepIdAllocator;
+    }
+
+    public IdAllocator getStepIdAllocator() {
+        return stepIdAllocator;
+    }
+
     // ~ Methods
     // ////////////////////////////////////////////////////////////////
 
+    public void setRollbackOnly() {
+        UnitOfWork work = (UnitOfWork) unitOfWork.get();
+
+        if (work != null) {
+            work.rollbackOnly = true;
+        }
+    }
+
     public void setEntryState(long id, int state) throws StoreException {
         Connection conn = null;
         PreparedStatement ps = null;
@@ -126,12 +190,29 @@ public class JDBCWorkflowStore implements WorkflowStore {
     }
 
     public PropertySet getPropertySet(long entryId) {
+        UnitOfWork work = (UnitOfWork) unitOfWork.get();
+        Long key = new Long(entryId);
+
+        if ((work != null) && work.propertySets.containsKey(key)) {
+            return (PropertySet) work.propertySets.get(key);
+        }
+
         HashMap args = new HashMap(1);
         args.put("globalKey", "osff_" + entryId);
 
         JDBCPropertySet ps = new JDBCPropertySet();
         ps.setDs(getDs());
         ps.init(Collections.EMPTY_MAP, args);
+        ps.setCaching(propertySetCaching);
+        ps.setUpsert(propertySetUpsert);
+
+        if (work != null) {
+            // share one cached property set per entry for the unit of work,
+            // and write its changes out just before committing
+            ps.setConnection(work.connection);
+            ps.setWriteBehind(true);
+            work.propertySets.put(key, ps);
+        }
 
         return ps;
     }
@@ -164,6 +245,38 @@ public class JDBCWorkflowStore implements WorkflowStore {
         return false;
     }
 
+    public boolean beginUnitOfWork() throws StoreException {
+        if (!unitOfWorkEnabled || (unitOfWork.get() != null)) {
+            return false;
+        }
+
+        Connection conn = null;
+
+        try {
+            conn = ds.getConnection();
+
+            UnitOfWork work = new UnitOfWork(conn);
+
+            if (work.autoCommit) {
+                conn.setAutoCommit(false);
+            }
+
+            unitOfWork.set(work);
+
+            return true;
+        } catch (SQLException e) {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException ex) {
+                    log.error("Error closing connection", ex);
+                }
+            }
+
+            throw new StoreException("Unable to begin unit of work", e);
+        }
+    }
+
     public Step createCurrentStep(long entryId, int wfStepId, String owner, Date startDate, Date dueDate, String status, long[] previousIds) throws StoreException {
         Connection conn = null;
 
@@ -196,7 +309,7 @@ public class JDBCWorkflowStore implements WorkflowStore {
 
             stmt = conn.prepareStatement(sql);
 
-            long id = getNextEntrySequence(conn);
+            long id = entryIdAllocator.nextId(conn);
             stmt.setLong(1, id);
             stmt.setString(2, workflowName);
             stmt.setInt(3, WorkflowEntry.CREATED);
@@ -213,74 +326,38 @@ public class JDBCWorkflowStore implements WorkflowStore {
 
     public List findCurrentSteps(long entryId) throws StoreException {
         Connection conn = null;
-        PreparedStatement stmt = null;
-        ResultSet rset = null;
-        PreparedStatement stmt2 = null;
 
         try {
             conn = getConnection();
 
-            String sql = "SELECT " + stepId + ", " + stepStepId + ", " + stepActionId + ", " + stepOwner + ", " + stepStartDate + ", " + stepDueDate + ", " + stepFinishDate + ", " + stepStatus + ", "
-                    + stepCaller + " FROM " + currentTable + " WHERE " + stepEntryId + " = ?";
-            String sql2 = "SELECT " + stepPreviousId + " FROM " + currentPrevTable + " WHERE " + stepId + " = ?";
-
-            if (log.isDebugEnabled()) {
-                log.debug("Executing SQL statement: " + sql);
-            }
-
-            stmt = conn.prepareStatement(sql);
-
-            if (log.isDebugEnabled()) {
-                log.debug("Executing SQL statement: " + sql2);
-            }
-
-            stmt2 = conn.prepareStatement(sql2);
-            stmt.setLong(1, entryId);
-
-            rset = stmt.executeQuery();
-
-            ArrayList currentSteps = new ArrayList();
-
-            while (rset.next()) {
-                long id = rset.getLong(1);
-                int stepId = rset.getInt(2);
-                int actionId = rset.getInt(3);
-                String owner = rset.getString(4);
-                Date startDate = rset.getTimestamp(5);
-                Date dueDate = rset.getTimestamp(6);
-                Date finishDate = rset.getTimestamp(7);
-                String status = rset.getString(8);
-                String caller = rset.getString(9);
-
-                ArrayList prevIdsList = new ArrayList();
-                stmt2.setLong(1, id);
-
-                ResultSet rs = stmt2.executeQuery();
+            Map steps = findSteps(conn, currentTable, currentPrevTable, Collections.singletonList(new Long(entryId)), false);
 
-                while (rs.next()) {
-                    long prevId = rs.getLong(1);
-                    prevIdsList.add(new Long(prevId));
-                }
-
-                long[] prevIds = new long[prevIdsList.size()];
-                int i = 0;
+            return (List) steps.get(new Long(entryId));
+        } catch (SQLException e) {
+            throw new StoreException("Unable to locate current steps for workflow instance #" + entryId, e);
+        } finally {
+            cleanup(conn, null, null);
+        }
+    }
 
-                for (Iterator iterator = prevIdsList.iterator(); iterator.hasNext(); ) {
-                    Long aLong = (Long) iterator.next();
-                    prevIds[i] = aLong.longValue();
-                    i++;
-                }
+    /**
+     * Returns the current steps of several workflow instances, fetched
+     * together with their previous step IDs in as few queries as possible.
+     *
+     * @param entryIds the workflow instance ids, as Longs
+     * @return a Map of entry id (Long) to the List of its current Steps
+     */
+    public Map findCurrentSteps(Collection entryIds) throws StoreException {
+        Connection conn = null;
 
-                SimpleStep step = new SimpleStep(id, entryId, stepId, actionId, owner, startDate, dueDate, finishDate, status, prevIds, caller);
-                currentSteps.add(step);
-            }
+        try {
+            conn = getConnection();
 
-            return currentSteps;
+            return findSteps(conn, currentTable, currentPrevTable, entryIds, false);
         } catch (SQLException e) {
-            throw new StoreException("Unable to locate current steps for workflow instance #" + entryId, e);
+            throw new StoreException("Unable to locate current steps for workflow instances " + entryIds, e);
         } finally {
-            cleanup(null, stmt2, null);
-            cleanup(conn, stmt, rset);
+            cleanup(conn, null, null);
         }
     }
 
@@ -317,74 +394,39 @@ public class JDBCWorkflowStore implements WorkflowStore {
 
     public List findHistorySteps(long entryId) throws StoreException {
         Connection conn = null;
-        PreparedStatement stmt = null;
-        PreparedStatement stmt2 = null;
-        ResultSet rset = null;
 
         try {
             conn = getConnection();
 
-            String sql = "SELECT " + stepId + ", " + stepStepId + ", " + stepActionId + ", " + stepOwner + ", " + stepStartDate + ", " + stepDueDate + ", " + stepFinishDate + ", " + stepStatus + ", "
-                    + stepCaller + " FROM " + historyTable + " WHERE " + stepEntryId + " = ? ORDER BY " + stepId + " DESC";
-            String sql2 = "SELECT " + stepPreviousId + " FROM " + historyPrevTable + " WHERE " + stepId + " = ?";
-
-            if (log.isDebugEnabled()) {
-                log.debug("Executing SQL statement: " + sql);
-            }
+            Map steps = findSteps(conn, historyTable, historyPrevTable, Collections.singletonList(new Long(entryId)), true);
 
-            stmt = conn.prepareStatement(sql);
-
-            if (log.isDebugEnabled()) {
-                log.debug("Executing SQL statement: " + sql2);
-            }
-
-            stmt2 = conn.prepareStatement(sql2);
-            stmt.setLong(1, entryId);
-
-            rset = stmt.executeQuery();
-
-            ArrayList currentSteps = new ArrayList();
-
-            while (rset.next()) {
-                long id = rset.getLong(1);
-                int stepId = rset.getInt(2);
-                int actionId = rset.getInt(3);
-                String owner = rset.getString(4);
-                Date startDate = rset.getTimestamp(5);
-                Date dueDate = rset.getTimestamp(6);
-                Date finishDate = rset.getTimestamp(7);
-                String status = rset.getString(8);
-                String caller = rset.getString(9);
-
-                ArrayList prevIdsList = new ArrayList();
-                stmt2.setLong(1, id);
-
-                ResultSet rs = stmt2.executeQuery();
-
-                while (rs.next()) {
-                    long prevId = rs.getLong(1);
-                    prevIdsList.add(new Long(prevId));
-                }
-
-                long[] prevIds = new long[prevIdsList.size()];
-                int i = 0;
+            return (List) steps.get(new Long(entryId));
+        } catch (SQLException e) {
+            throw new StoreException("Unable to locate history steps for workflow instance #" + entryId, e);
+        } finally {
+            cleanup(conn, null, null);
+        }
+    }
 
-                for (Iterator iterator = prevIdsList.iterator(); iterator.hasNext(); ) {
-                    Long aLong = (Long) iterator.next();
-                    prevIds[i] = aLong.longValue();
-                    i++;
-                }
+    /**
+     * Returns the history steps of several workflow instances, fetched
+     * together with their previous step IDs in as few queries as possible.
+     *
+     * @param entryIds the workflow instance ids, as Longs
+     * @return a Map of entry id (Long) to the List of its history Steps, most
+     *         recent first
+     */
+    public Map findHistorySteps(Collection entryIds) throws StoreException {
+        Connection conn = null;
 
-                SimpleStep step = new SimpleStep(id, entryId, stepId, actionId, owner, startDate, dueDate, finishDate, status, prevIds, caller);
-                currentSteps.add(step);
-            }
+        try {
+            conn = getConnection();
 
-            return currentSteps;
+            return findSteps(conn, historyTable, historyPrevTable, entryIds, true);
         } catch (SQLException e) {
-            throw new StoreException("Unable to locate history steps for workflow instance #" + entryId, e);
+            throw new StoreException("Unable to locate history steps for workflow instances " + entryIds, e);
         } finally {
-            cleanup(null, stmt2, null);
-            cleanup(conn, stmt, rset);
+            cleanup(conn, null, null);
         }
     }
 
@@ -410,6 +452,83 @@ public class JDBCWorkflowStore implements WorkflowStore {
         stepDueDate = getInitProperty(props, "step.dueDate", "DUE_DATE");
         stepStatus = getInitProperty(props, "step.status", "STATUS");
         stepPreviousId = getInitProperty(props, "step.previousId", "PREVIOUS_ID");
+        unitOfWorkEnabled = "true".equalsIgnoreCase(getInitProperty(props, "unitOfWork", "false"));
+        propertySetCaching = "true".equalsIgnoreCase(getInitProperty(props, "propertySet.cache", "false"));
+        propertySetUpsert = getInitProperty(props, "propertySet.upsert", JDBCPropertySet.UPSERT_NONE);
+
+        if (!JDBCPropertySet.isUpsertDialect(propertySetUpsert)) {
+            throw new StoreException("Invalid propertySet.upsert: " + propertySetUpsert);
+        }
+
+        int blockSize;
+
+        try {
+            blockSize = Integer.parseInt(getInitProperty(props, "id.blockSize", "1"));
+        } catch (NumberFormatException e) {
+            throw new StoreException("Invalid id.blockSize: " + props.get("id.blockSize"), e);
+        }
+
+        if (blockSize > 1) {
+            entryIdAllocator = new HiLoIdAllocator(new SequenceIdAllocator(true, true), blockSize);
+            stepIdAllocator = new HiLoIdAllocator(new SequenceIdAllocator(false, true), blockSize);
+        } else {
+            entryIdAllocator = new SequenceIdAllocator(true, false);
+            stepIdAllocator = new SequenceIdAllocator(false, false);
+        }
+    }
+
+    public void endUnitOfWork() throws StoreException {
+        UnitOfWork work = (UnitOfWork) unitOfWork.get();
+
+        if (work == null) {
+            return;
+        }
+
+        unitOfWork.set(null);
+
+        Connection conn = work.connection;
+
+        try {
+            if (!work.rollbackOnly) {
+                try {
+                    for (Iterator iterator = work.propertySets.values().iterator(); iterator.hasNext(); ) {
+                        ((JDBCPropertySet) iterator.next()).flush();
+                    }
+                } catch (PropertyException e) {
+                    work.rollbackOnly = true;
+                    conn.rollback();
+                    throw new StoreException("Unable to write property sets, rolled back unit of work", e);
+                }
+            }
+
+            if (work.rollbackOnly) {
+                conn.rollback();
+            } else {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Unable to " + (work.rollbackOnly ? "roll back" : "commit") + " unit of work", e);
+        } finally {
+            // property sets handed out must not keep using the closed connection
+            for (Iterator iterator = work.propertySets.values().iterator(); iterator.hasNext(); ) {
+                JDBCPropertySet ps = (JDBCPropertySet) iterator.next();
+                ps.setWriteBehind(false);
+                ps.setConnection(null);
+                ps.setCaching(propertySetCaching);
+            }
+
+            work.propertySets.clear();
+
+            try {
+                if (work.autoCommit) {
+                    conn.setAutoCommit(true);
+                }
+
+                conn.close();
+            } catch (SQLException ex) {
+                log.error("Error closing connection", ex);
+            }
+        }
     }
 
     public Step markFinished(Step step, int actionId, Date finishDate, String status, String caller) throws StoreException {
@@ -448,8 +567,17 @@ public class JDBCWorkflowStore implements WorkflowStore {
     }
 
     public void moveToHistory(Step step) throws StoreException {
+        moveToHistory(Collections.singletonList(step));
+    }
+
+    public void moveToHistory(Collection steps) throws StoreException {
+        if (steps.isEmpty()) {
+            return;
+        }
+
         Connection conn = null;
         PreparedStatement stmt = null;
+        Step step = (Step) steps.iterator().next();
 
         try {
             conn = getConnection();
@@ -462,46 +590,36 @@ public class JDBCWorkflowStore implements WorkflowStore {
             }
 
             stmt = conn.prepareStatement(sql);
-            stmt.setLong(1, step.getId());
-            stmt.setLong(2, step.getEntryId());
-            stmt.setInt(3, step.getStepId());
-            stmt.setInt(4, step.getActionId());
-            stmt.setString(5, step.getOwner());
-            stmt.setTimestamp(6, new Timestamp(step.getStartDate().getTime()));
-
-            if (step.getDueDate() != null) {
-                stmt.setTimestamp(7, new Timestamp(step.getDueDate().getTime()));
-            } else {
-                stmt.setNull(7, Types.TIMESTAMP);
-            }
-
-            if (step.getFinishDate() != null) {
-                stmt.setTimestamp(8, new Timestamp(step.getFinishDate().getTime()));
-            } else {
-                stmt.setNull(8, Types.TIMESTAMP);
-            }
-
-            stmt.setString(9, step.getStatus());
-            stmt.setString(10, step.getCaller());
-            stmt.executeUpdate();
 
-            long[] previousIds = step.getPreviousStepIds();
+            for (Iterator iterator = steps.iterator(); iterator.hasNext(); ) {
+                step = (Step) iterator.next();
+                stmt.setLong(1, step.getId());
+                stmt.setLong(2, step.getEntryId());
+                stmt.setInt(3, step.getStepId());
+                stmt.setInt(4, step.getActionId());
+                stmt.setString(5, step.getOwner());
+                stmt.setTimestamp(6, new Timestamp(step.getStartDate().getTime()));
+
+                if (step.getFinishDate() != null) {
+                    stmt.setTimestamp(7, new Timestamp(step.getFinishDate().getTime()));
+                } else {
+                    stmt.setNull(7, Types.TIMESTAMP);
+                }
 
-            if ((previousIds != null) && (previousIds.length > 0)) {
-                sql = "INSERT INTO " + historyPrevTable + " (" + stepId + ", " + stepPreviousId + ") VALUES (?, ?)";
-                log.debug("Executing SQL statement: " + sql);
-                cleanup(null, stmt, null);
-                stmt = conn.prepareStatement(sql);
-
-                for (int i = 0; i < previousIds.length; i++) {
-                    long previousId = previousIds[i];
-                    stmt.setLong(1, step.getId());
-                    stmt.setLong(2, previousId);
-                    stmt.executeUpdate();
+                if (step.getDueDate() != null) {
+                    stmt.setTimestamp(8, new Timestamp(step.getDueDate().getTime()));
+                } else {
+                    stmt.setNull(8, Types.TIMESTAMP);
                 }
+
+                stmt.setString(9, step.getStatus());
+                stmt.setString(10, step.getCaller());
+                stmt.addBatch();
             }
 
-            sql = "DELETE FROM " + currentPrevTable + " WHERE " + stepId + " = ?";
+            stmt.executeBatch();
+
+            sql = "INSERT INTO " + historyPrevTable + " (" + stepId + ", " + stepPreviousId + ") VALUES (?, ?)";
 
             if (log.isDebugEnabled()) {
                 log.debug("Executing SQL statement: " + sql);
@@ -509,19 +627,30 @@ public class JDBCWorkflowStore implements WorkflowStore {
 
             cleanup(null, stmt, null);
             stmt = conn.prepareStatement(sql);
-            stmt.setLong(1, step.getId());
-            stmt.executeUpdate();
 
-            sql = "DELETE FROM " + currentTable + " WHERE " + stepId + " = ?";
+            int previousCount = 0;
 
-            if (log.isDebugEnabled()) {
-                log.debug("Executing SQL statement: " + sql);
+            for (Iterator iterator = steps.iterator(); iterator.hasNext(); ) {
+                step = (Step) iterator.next();
+
+                long[] previousIds = step.getPreviousStepIds();
+
+                if (previousIds != null) {
+                    for (int i = 0; i < previousIds.length; i++) {
+                        stmt.setLong(1, step.getId());
+                        stmt.setLong(2, previousIds[i]);
+                        stmt.addBatch();
+                        previousCount++;
+                    }
+                }
             }
 
-            cleanup(null, stmt, null);
-            stmt = conn.prepareStatement(sql);
-            stmt.setLong(1, step.getId());
-            stmt.executeUpdate();
+            if (previousCount > 0) {
+                stmt.executeBatch();
+            }
+
+            deleteSteps(conn, currentPrevTable, steps);
+            deleteSteps(conn, currentTable, steps);
         } catch (SQLException e) {
             throw new StoreException("Unable to move current step to history step for #" + step.getEntryId(), e);
         } finally {
@@ -735,6 +864,12 @@ public class JDBCWorkflowStore implements WorkflowStore {
     }
 
     protected Connection getConnection() throws SQLException {
+        UnitOfWork work = (UnitOfWork) unitOfWork.get();
+
+        if (work != null) {
+            return work.connection;
+        }
+
         closeConnWhenDone = true;
 
         return ds.getConnection();
@@ -790,16 +925,159 @@ public class JDBCWorkflowStore implements WorkflowStore {
 
                 PreparedStatement stmt = conn.prepareStatement(sql);
 
-                for (int i = 0; i < previousIds.length; i++) {
-                    long previousId = previousIds[i];
-                    stmt.setLong(1, id);
-                    stmt.setLong(2, previousId);
-                    stmt.executeUpdate();
+                try {
+                    for (int i = 0; i < previousIds.length; i++) {
+                        long previousId = previousIds[i];
+                        stmt.setLong(1, id);
+                        stmt.setLong(2, previousId);
+                        stmt.addBatch();
+                    }
+
+                    stmt.executeBatch();
+                } finally {
+                    cleanup(null, stmt, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the steps of the given entries from a step table, joined with the
+     * matching previous step table so that each step and its previous IDs come
+     * back in a single result set. Entry ids are sent as IN lists of at most
+     * {@link #MAX_IN_LIST} ids per query.
+     *
+     * @return a Map of entry id (Long) to a List of Steps, with an empty list
+     *         for entries that have no steps
+     */
+    protected Map findSteps(Connection conn, String table, String prevTable, Collection entryIds, boolean descending) throws SQLException {
+        Map result = new LinkedHashMap();
+
+        for (Iterator iterator = entryIds.iterator(); iterator.hasNext(); ) {
+            result.put(iterator.next(), new ArrayList());
+        }
+
+        List ids = new ArrayList(result.keySet());
+
+        for (int start = 0; start < ids.size(); start += MAX_IN_LIST) {
+            List chunk = ids.subList(start, Math.min(start + MAX_IN_LIST, ids.size()));
+            StringBuffer sql = new StringBuffer("SELECT s.");
+            sql.append(stepId).append(", s.").append(stepEntryId).append(", s.").append(stepStepId).append(", s.").append(stepActionId);
+            sql.append(", s.").append(stepOwner).append(", s.").append(stepStartDate).append(", s.").append(stepDueDate).append(", s.").append(stepFinishDate);
+            sql.append(", s.").append(stepStatus).append(", s.").append(stepCaller).append(", p.").append(stepPreviousId);
+            sql.append(" FROM ").append(table).append(" s LEFT OUTER JOIN ").append(prevTable).append(" p ON s.").append(stepId).append(" = p.").append(stepId);
+            sql.append(" WHERE s.").append(stepEntryId);
+
+            if (chunk.size() == 1) {
+                sql.append(" = ?");
+            } else {
+                sql.append(" IN (?");
+
+                for (int i = 1; i < chunk.size(); i++) {
+                    sql.append(", ?");
+                }
+
+                sql.append(')');
+            }
+
+            sql.append(" ORDER BY s.").append(stepId).append(descending ? " DESC" : "");
+
+            if (log.isDebugEnabled()) {
+                log.debug("Executing SQL statement: " + sql);
+            }
+
+            PreparedStatement stmt = null;
+            ResultSet rset = null;
+
+            try {
+                stmt = conn.prepareStatement(sql.toString());
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setLong(i + 1, ((Long) chunk.get(i)).longValue());
                 }
 
-                cleanup(null, stmt, null);
+                rset = stmt.executeQuery();
+                readSteps(rset, result);
+            } finally {
+                cleanup(null, stmt, rset);
             }
         }
+
+        return result;
+    }
+
+    private void readSteps(ResultSet rset, Map result) throws SQLException {
+        List prevIdsList = new ArrayList();
+        SimpleStep step = null;
+
+        while (rset.next()) {
+            long id = rset.getLong(1);
+
+            if ((step == null) || (step.getId() != id)) {
+                if (step != null) {
+                    step.setPreviousStepIds(toLongArray(prevIdsList));
+                }
+
+                long entryId = rset.getLong(2);
+                int stepId = rset.getInt(3);
+                int actionId = rset.getInt(4);
+                String owner = rset.getString(5);
+                Date startDate = rset.getTimestamp(6);
+                Date dueDate = rset.getTimestamp(7);
+                Date finishDate = rset.getTimestamp(8);
+                String status = rset.getString(9);
+                String caller = rset.getString(10);
+
+                step = new SimpleStep(id, entryId, stepId, actionId, owner, startDate, dueDate, finishDate, status, null, caller);
+                prevIdsList.clear();
+                ((List) result.get(new Long(entryId))).add(step);
+            }
+
+            long prevId = rset.getLong(11);
+
+            if (!rset.wasNull()) {
+                prevIdsList.add(new Long(prevId));
+            }
+        }
+
+        if (step != null) {
+            step.setPreviousStepIds(toLongArray(prevIdsList));
+        }
+    }
+
+    private static long[] toLongArray(List list) {
+        long[] array = new long[list.size()];
+
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Long) list.get(i)).longValue();
+        }
+
+        return array;
+    }
+
+    /**
+     * Delete the rows of the given steps from a step or previous step table,
+     * keyed on the step id column.
+     */
+    protected void deleteSteps(Connection conn, String table, Collection steps) throws SQLException {
+        String sql = "DELETE FROM " + table + " WHERE " + stepId + " = ?";
+
+        if (log.isDebugEnabled()) {
+            log.debug("Executing SQL statement: " + sql);
+        }
+
+        PreparedStatement stmt = conn.prepareStatement(sql);
+
+        try {
+            for (Iterator iterator = steps.iterator(); iterator.hasNext(); ) {
+                stmt.setLong(1, ((Step) iterator.next()).getId());
+                stmt.addBatch();
+            }
+
+            stmt.executeBatch();
+        } finally {
+            cleanup(null, stmt, null);
+        }
     }
 
     protected void cleanup(Connection connection, Statement statement, ResultSet result) {
@@ -819,7 +1097,7 @@ public class JDBCWorkflowStore implements WorkflowStore {
             }
         }
 
-        if ((connection != null) && closeConnWhenDone) {
+        if ((connection != null) && closeConnWhenDone && !isBound(connection)) {
             try {
                 connection.close();
             } catch (SQLException ex) {
@@ -838,7 +1116,7 @@ public class JDBCWorkflowStore implements WorkflowStore {
 
         PreparedStatement stmt = conn.prepareStatement(sql);
 
-        long id = getNextStepSequence(conn);
+        long id = stepIdAllocator.nextId(conn);
         stmt.setLong(1, id);
         stmt.setLong(2, entryId);
         stmt.setInt(3, wfStepId);
@@ -1105,6 +1383,12 @@ public class JDBCWorkflowStore implements WorkflowStore {
         }
     }
 
+    private boolean isBound(Connection connection) {
+        UnitOfWork work = (UnitOfWork) unitOfWork.get();
+
+        return (work != null) && (work.connection == connection);
+    }
+
     private String getInitProperty(Map props, String strName, String strDefault) {
         Object o = props.get(strName);
 
@@ -1445,4 +1729,61 @@ public class JDBCWorkflowStore implements WorkflowStore {
         return ""; // not sure if we should throw an exception or how this
         // should be handled
     }
+
+    // ~ Inner Classes
+    // //////////////////////////////////////////////////////////
+
+    /**
+     * Reads ids from the entry or step sequence of this store.
+     */
+    private class SequenceIdAllocator implements IdAllocator {
+        private final boolean entry;
+        private final boolean outsideUnitOfWork;
+
+        /**
+         * @param outsideUnitOfWork if true, the sequence is read with a
+         * separate connection when called within a unit of work, so that the
+         * read is neither held up by nor rolled back with the unit of work.
+         */
+        SequenceIdAllocator(boolean entry, boolean outsideUnitOfWork) {
+            this.entry = entry;
+            this.outsideUnitOfWork = outsideUnitOfWork;
+        }
+
+        public long nextId(Connection conn) throws SQLException {
+            if (!outsideUnitOfWork || !isBound(conn)) {
+                return entry ? getNextEntrySequence(conn) : getNextStepSequence(conn);
+            }
+
+            Connection own = ds.getConnection();
+
+            try {
+                long id = entry ? getNextEntrySequence(own) : getNextStepSequence(own);
+
+                if (!own.getAutoCommit()) {
+                    own.commit();
+                }
+
+                return id;
+            } finally {
+                try {
+                    own.close();
+                } catch (SQLException ex) {
+                    log.error("Error closing connection", ex);
+                }
+            }
+        }
+    }
+
+    private static class UnitOfWork {
+        private final Map propertySets = new LinkedHashMap();
+        private final Connection connection;
+        private final boolean autoCommit;
+        private boolean rollbackOnly;
+
+        UnitOfWork(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.autoCommit = connection.getAutoCommit();
+        }
+    }
 }
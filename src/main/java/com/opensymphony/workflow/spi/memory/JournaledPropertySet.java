@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.spi.memory;
+
+import com.opensymphony.module.propertyset.PropertyException;
+import com.opensymphony.module.propertyset.PropertySet;
+import com.opensymphony.module.propertyset.PropertySetManager;
+import com.opensymphony.module.propertyset.memory.SerializablePropertySet;
+
+import java.util.HashMap;
+
+/**
+ * The property set of an entry of {@link SerializableWorkflowStore}, which
+ * writes itself to the journal on every change. Changes are made under the
+ * lock of {@link SerializableCache}, so that a snapshot never sees one
+ * half-way.
+ */
+class JournaledPropertySet extends SerializablePropertySet {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final long serialVersionUID = 1L;
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final long entryId;
+	private transient boolean journaling = true;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	JournaledPropertySet(long entryId) {
+		this.entryId = entryId;
+		init(new HashMap(), new HashMap());
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return a journaled copy of the given property set, written to the
+	 *         journal once
+	 */
+	static JournaledPropertySet copyOf(long entryId, PropertySet ps) {
+		JournaledPropertySet copy = new JournaledPropertySet(entryId);
+		copy.journaling = false;
+		PropertySetManager.clone(ps, copy);
+		copy.journaling = true;
+		SerializableCache.logProperties(entryId, copy);
+
+		return copy;
+	}
+
+	public void remove(String key) throws PropertyException {
+		synchronized (SerializableCache.class) {
+			super.remove(key);
+			journal();
+		}
+	}
+
+	protected void setImpl(int type, String key, Object value) throws PropertyException {
+		synchronized (SerializableCache.class) {
+			super.setImpl(type, key, value);
+			journal();
+		}
+	}
+
+	private void journal() {
+		if (journaling) {
+			SerializableCache.logProperties(entryId, this);
+		}
+	}
+
+	private Object readResolve() {
+		journaling = true;
+
+		return this;
+	}
+}
@@ -25,9 +25,18 @@ import com.opensymphony.workflow.spi.WorkflowStore;
 import java.security.InvalidParameterException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simple memory implementation.
+ * <p>
+ * The store is safe for concurrent use: its maps are concurrent, ids come
+ * from atomic counters, and the steps of each entry are guarded by one of a
+ * fixed set of striped locks. By default all instances share the same static
+ * data; set the <b>shared</b> property to <code>false</code> (or use
+ * {@link #MemoryWorkflowStore(boolean)}) to give an instance its own data.
  * 
  * @author <a href="mailto:plightbo@hotmail.com">Pat Lightbody</a>
  */
@@ -35,54 +44,98 @@ public class MemoryWorkflowStore implements WorkflowStore {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
-	private static HashMap entryCache = new HashMap();
-	private static HashMap currentStepsCache = new HashMap();
-	private static HashMap historyStepsCache = new HashMap();
-	private static HashMap propertySetCache = new HashMap();
-	private static long globalEntryId = 1;
-	private static long globalStepId = 1;
+	private static final int LOCK_STRIPES = 64;
+	private static final ConcurrentMap sharedEntryCache = new ConcurrentHashMap();
+	private static final ConcurrentMap sharedCurrentStepsCache = new ConcurrentHashMap();
+	private static final ConcurrentMap sharedHistoryStepsCache = new ConcurrentHashMap();
+	private static final ConcurrentMap sharedPropertySetCache = new ConcurrentHashMap();
+	private static final AtomicLong sharedEntryId = new AtomicLong(1);
+	private static final AtomicLong sharedStepId = new AtomicLong(1);
+	private static final Object[] sharedLocks = createLocks();
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private AtomicLong globalEntryId = sharedEntryId;
+	private AtomicLong globalStepId = sharedStepId;
+	private ConcurrentMap currentStepsCache = sharedCurrentStepsCache;
+	private ConcurrentMap entryCache = sharedEntryCache;
+	private ConcurrentMap historyStepsCache = sharedHistoryStepsCache;
+	private ConcurrentMap propertySetCache = sharedPropertySetCache;
+	private Object[] locks = sharedLocks;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	public MemoryWorkflowStore() {
+	}
+
+	/**
+	 * @param shared
+	 *            if false, the store keeps its own data instead of sharing it
+	 *            with all other instances.
+	 */
+	public MemoryWorkflowStore(boolean shared) {
+		if (!shared) {
+			useOwnData();
+		}
+	}
 
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
 	public void setEntryState(long entryId, int state) throws StoreException {
 		SimpleWorkflowEntry theEntry = (SimpleWorkflowEntry) findEntry(entryId);
-		theEntry.setState(state);
+
+		synchronized (lockFor(entryId)) {
+			theEntry.setState(state);
+		}
 	}
 
 	public PropertySet getPropertySet(long entryId) {
-		PropertySet ps = (PropertySet) propertySetCache.get(new Long(entryId));
+		Long key = new Long(entryId);
+		PropertySet ps = (PropertySet) propertySetCache.get(key);
 
 		if (ps == null) {
 			ps = PropertySetManager.getInstance("memory", null);
-			propertySetCache.put(new Long(entryId), ps);
+
+			PropertySet existing = (PropertySet) propertySetCache.putIfAbsent(key, ps);
+
+			if (existing != null) {
+				ps = existing;
+			}
 		}
 
 		return ps;
 	}
 
 	public Step createCurrentStep(long entryId, int stepId, String owner, Date startDate, Date dueDate, String status, long[] previousIds) {
-		long id = globalStepId++;
+		long id = globalStepId.getAndIncrement();
 		SimpleStep step = new SimpleStep(id, entryId, stepId, 0, owner, startDate, dueDate, null, status, previousIds, null);
 
-		List currentSteps = (List) currentStepsCache.get(new Long(entryId));
-
-		if (currentSteps == null) {
-			currentSteps = new ArrayList();
-			currentStepsCache.put(new Long(entryId), currentSteps);
+		synchronized (lockFor(entryId)) {
+			getSteps(currentStepsCache, entryId).add(step);
 		}
 
-		currentSteps.add(step);
-
 		return step;
 	}
 
 	/**
 	 * Reset the MemoryWorkflowStore so it doesn't have any information. Useful
 	 * when testing and you don't want the MemoryWorkflowStore to have old data
-	 * in it.
+	 * in it. Only the data shared by all instances is cleared.
 	 */
 	public static void reset() {
+		sharedEntryCache.clear();
+		sharedCurrentStepsCache.clear();
+		sharedHistoryStepsCache.clear();
+		sharedPropertySetCache.clear();
+	}
+
+	/**
+	 * Remove all the data of this store.
+	 */
+	public void clear() {
 		entryCache.clear();
 		currentStepsCache.clear();
 		historyStepsCache.clear();
@@ -90,7 +143,7 @@ public class MemoryWorkflowStore implements WorkflowStore {
 	}
 
 	public WorkflowEntry createEntry(String workflowName) {
-		long id = globalEntryId++;
+		long id = globalEntryId.getAndIncrement();
 		SimpleWorkflowEntry entry = new SimpleWorkflowEntry(id, workflowName, WorkflowEntry.CREATED);
 		entryCache.put(new Long(id), entry);
 
@@ -98,14 +151,9 @@ public class MemoryWorkflowStore implements WorkflowStore {
 	}
 
 	public List findCurrentSteps(long entryId) {
-		List currentSteps = (List) currentStepsCache.get(new Long(entryId));
-
-		if (currentSteps == null) {
-			currentSteps = new ArrayList();
-			currentStepsCache.put(new Long(entryId), currentSteps);
+		synchronized (lockFor(entryId)) {
+			return new ArrayList(getSteps(currentStepsCache, entryId));
 		}
-
-		return new ArrayList(currentSteps);
 	}
 
 	public WorkflowEntry findEntry(long entryId) {
@@ -113,32 +161,32 @@ public class MemoryWorkflowStore implements WorkflowStore {
 	}
 
 	public List findHistorySteps(long entryId) {
-		List historySteps = (List) historyStepsCache.get(new Long(entryId));
-
-		if (historySteps == null) {
-			historySteps = new ArrayList();
-			historyStepsCache.put(new Long(entryId), historySteps);
+		synchronized (lockFor(entryId)) {
+			return new ArrayList(getSteps(historyStepsCache, entryId));
 		}
-
-		return new ArrayList(historySteps);
 	}
 
 	public void init(Map props) {
+		if ("false".equalsIgnoreCase((String) props.get("shared"))) {
+			useOwnData();
+		}
 	}
 
 	public Step markFinished(Step step, int actionId, Date finishDate, String status, String caller) {
-		List currentSteps = (List) currentStepsCache.get(new Long(step.getEntryId()));
+		synchronized (lockFor(step.getEntryId())) {
+			List currentSteps = (List) currentStepsCache.get(new Long(step.getEntryId()));
 
-		for (Iterator iterator = currentSteps.iterator(); iterator.hasNext();) {
-			SimpleStep theStep = (SimpleStep) iterator.next();
+			for (Iterator iterator = currentSteps.iterator(); iterator.hasNext();) {
+				SimpleStep theStep = (SimpleStep) iterator.next();
 
-			if (theStep.getId() == step.getId()) {
-				theStep.setStatus(status);
-				theStep.setActionId(actionId);
-				theStep.setFinishDate(finishDate);
-				theStep.setCaller(caller);
+				if (theStep.getId() == step.getId()) {
+					theStep.setStatus(status);
+					theStep.setActionId(actionId);
+					theStep.setFinishDate(finishDate);
+					theStep.setCaller(caller);
 
-				return theStep;
+					return theStep;
+				}
 			}
 		}
 
@@ -146,29 +194,30 @@ public class MemoryWorkflowStore implements WorkflowStore {
 	}
 
 	public void moveToHistory(Step step) {
-		List currentSteps = (List) currentStepsCache.get(new Long(step.getEntryId()));
-
-		List historySteps = (List) historyStepsCache.get(new Long(step.getEntryId()));
-
-		if (historySteps == null) {
-			historySteps = new ArrayList();
-			historyStepsCache.put(new Long(step.getEntryId()), historySteps);
-		}
+		synchronized (lockFor(step.getEntryId())) {
+			List currentSteps = (List) currentStepsCache.get(new Long(step.getEntryId()));
+			List historySteps = getSteps(historyStepsCache, step.getEntryId());
+			SimpleStep simpleStep = (SimpleStep) step;
 
-		SimpleStep simpleStep = (SimpleStep) step;
+			for (Iterator iterator = currentSteps.iterator(); iterator.hasNext();) {
+				Step currentStep = (Step) iterator.next();
 
-		for (Iterator iterator = currentSteps.iterator(); iterator.hasNext();) {
-			Step currentStep = (Step) iterator.next();
+				if (simpleStep.getId() == currentStep.getId()) {
+					iterator.remove();
+					historySteps.add(0, simpleStep);
 
-			if (simpleStep.getId() == currentStep.getId()) {
-				iterator.remove();
-				historySteps.add(0, simpleStep);
-
-				break;
+					break;
+				}
 			}
 		}
 	}
 
+	public void moveToHistory(Collection steps) {
+		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
+			moveToHistory((Step) iterator.next());
+		}
+	}
+
 	public List query(WorkflowQuery query) {
 		ArrayList results = new ArrayList();
 
@@ -176,8 +225,10 @@ public class MemoryWorkflowStore implements WorkflowStore {
 			Map.Entry mapEntry = (Map.Entry) iterator.next();
 			Long entryId = (Long) mapEntry.getKey();
 
-			if (query(entryId, query)) {
-				results.add(entryId);
+			synchronized (lockFor(entryId.longValue())) {
+				if (query(entryId, query)) {
+					results.add(entryId);
+				}
 			}
 		}
 
@@ -191,14 +242,58 @@ public class MemoryWorkflowStore implements WorkflowStore {
 			Map.Entry mapEntry = (Map.Entry) iterator.next();
 			Long entryId = (Long) mapEntry.getKey();
 
-			if (query(entryId.longValue(), query)) {
-				results.add(entryId);
+			synchronized (lockFor(entryId.longValue())) {
+				if (query(entryId.longValue(), query)) {
+					results.add(entryId);
+				}
 			}
 		}
 
 		return results;
 	}
 
+	private static Object[] createLocks() {
+		Object[] locks = new Object[LOCK_STRIPES];
+
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+
+		return locks;
+	}
+
+	/**
+	 * Get the list of steps of an entry from the given cache, creating it if
+	 * needed. The caller must hold the lock of the entry.
+	 */
+	private List getSteps(ConcurrentMap cache, long entryId) {
+		Long key = new Long(entryId);
+		List steps = (List) cache.get(key);
+
+		if (steps == null) {
+			steps = new ArrayList();
+			cache.put(key, steps);
+		}
+
+		return steps;
+	}
+
+	private Object lockFor(long entryId) {
+		int h = (int) (entryId ^ (entryId >>> 32));
+
+		return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+	}
+
+	private void useOwnData() {
+		globalEntryId = new AtomicLong(1);
+		globalStepId = new AtomicLong(1);
+		entryCache = new ConcurrentHashMap();
+		currentStepsCache = new ConcurrentHashMap();
+		historyStepsCache = new ConcurrentHashMap();
+		propertySetCache = new ConcurrentHashMap();
+		locks = createLocks();
+	}
+
 	private boolean checkExpression(long entryId, FieldExpression expression) {
 		Object value = expression.getValue();
 		int operator = expression.getOperator();
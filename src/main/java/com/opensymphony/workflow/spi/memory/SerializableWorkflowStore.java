@@ -5,7 +5,6 @@
 package com.opensymphony.workflow.spi.memory;
 
 import com.opensymphony.module.propertyset.PropertySet;
-import com.opensymphony.module.propertyset.PropertySetManager;
 
 import com.opensymphony.workflow.query.WorkflowQuery;
 import com.opensymphony.workflow.spi.*;
@@ -15,10 +14,29 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
 
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 import java.util.*;
 
 /**
  * Simple flat file implementation.
+ * <p>
+ * Changes are appended to a journal file next to the store file, so the cost
+ * of a write is proportional to the change rather than to the size of the
+ * store. Once the journal holds enough records, a snapshot of the whole store
+ * is written to the store file and the journal is cleared. On startup the
+ * snapshot is loaded and the journal replayed on top of it. Property sets
+ * are written to the journal as a whole on every change.
+ * <p>
+ * Every change is made and journaled while holding the lock of the store
+ * cache, which is also held while a snapshot is written, so a snapshot
+ * contains either both a change and its journal record or neither.
+ * <p>
+ * Each snapshot and journal carries a generation number. A journal older
+ * than the snapshot, left by a crash between writing a snapshot and clearing
+ * the journal, is already part of the snapshot and is not replayed.
  * 
  * Following properties are <b>required</b>:
  * <ul>
@@ -26,6 +44,15 @@ import java.util.*;
  * (<i>ex:c:\workflow.store</i>)</li>
  * </ul>
  * 
+ * Following properties are optional:
+ * <ul>
+ * <li><b>journal.sync</b> - <code>always</code> to force every journal
+ * record to disk before returning, or <code>never</code> (the default) to
+ * leave flushing to the operating system</li>
+ * <li><b>journal.compactThreshold</b> - the number of journal records after
+ * which a new snapshot is written (default 10000)</li>
+ * </ul>
+ * 
  * @author <a href="mailto:gbort@msn.com">Guillaume Bort</a>
  */
 public class SerializableWorkflowStore extends MemoryWorkflowStore {
@@ -39,14 +66,17 @@ public class SerializableWorkflowStore extends MemoryWorkflowStore {
 	// ////////////////////////////////////////////////////////////////
 
 	public PropertySet getPropertySet(long entryId) {
-		PropertySet ps = (PropertySet) SerializableCache.getInstance().propertySetCache.get(new Long(entryId));
+		synchronized (SerializableCache.class) {
+			PropertySet ps = (PropertySet) SerializableCache.getInstance().propertySetCache.get(new Long(entryId));
 
-		if (ps == null) {
-			ps = PropertySetManager.getInstance("serializable", null);
-			SerializableCache.getInstance().propertySetCache.put(new Long(entryId), ps);
-		}
+			if (!(ps instanceof JournaledPropertySet)) {
+				// property sets of older stores are not journaled yet
+				ps = (ps == null) ? new JournaledPropertySet(entryId) : JournaledPropertySet.copyOf(entryId, ps);
+				SerializableCache.getInstance().propertySetCache.put(new Long(entryId), ps);
+			}
 
-		return ps;
+			return ps;
+		}
 	}
 
 	public static void setStoreFile(String storeFile) {
@@ -57,56 +87,74 @@ public class SerializableWorkflowStore extends MemoryWorkflowStore {
 		return storeFile;
 	}
 
+	public void setEntryState(long entryId, int state) {
+		synchronized (SerializableCache.class) {
+			SimpleWorkflowEntry theEntry = (SimpleWorkflowEntry) findEntry(entryId);
+			theEntry.setState(state);
+			SerializableCache.logEntryState(entryId, state);
+		}
+	}
+
 	public Step createCurrentStep(long entryId, int stepId, String owner, Date startDate, Date dueDate, String status, long[] previousIds) {
-		long id = SerializableCache.getInstance().globalStepId++;
-		SimpleStep step = new SimpleStep(id, entryId, stepId, 0, owner, startDate, dueDate, null, status, previousIds, null);
+		synchronized (SerializableCache.class) {
+			long id = SerializableCache.getInstance().globalStepId++;
+			SimpleStep step = new SimpleStep(id, entryId, stepId, 0, owner, startDate, dueDate, null, status, previousIds, null);
 
-		List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(entryId));
+			List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(entryId));
 
-		if (currentSteps == null) {
-			currentSteps = new ArrayList();
-			SerializableCache.getInstance().currentStepsCache.put(new Long(entryId), currentSteps);
-		}
+			if (currentSteps == null) {
+				currentSteps = new ArrayList();
+				SerializableCache.getInstance().currentStepsCache.put(new Long(entryId), currentSteps);
+			}
 
-		currentSteps.add(step);
-		SerializableCache.store();
+			currentSteps.add(step);
+			SerializableCache.logCreateStep(step);
 
-		return step;
+			return step;
+		}
 	}
 
 	public WorkflowEntry createEntry(String workflowName) {
-		long id = SerializableCache.getInstance().globalEntryId++;
-		SimpleWorkflowEntry entry = new SimpleWorkflowEntry(id, workflowName, WorkflowEntry.CREATED);
-		SerializableCache.getInstance().entryCache.put(new Long(id), entry);
-		SerializableCache.store();
+		synchronized (SerializableCache.class) {
+			long id = SerializableCache.getInstance().globalEntryId++;
+			SimpleWorkflowEntry entry = new SimpleWorkflowEntry(id, workflowName, WorkflowEntry.CREATED);
+			SerializableCache.getInstance().entryCache.put(new Long(id), entry);
+			SerializableCache.logCreateEntry(entry);
 
-		return entry;
+			return entry;
+		}
 	}
 
 	public List findCurrentSteps(long entryId) {
-		List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(entryId));
+		synchronized (SerializableCache.class) {
+			List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(entryId));
 
-		if (currentSteps == null) {
-			currentSteps = new ArrayList();
-			SerializableCache.getInstance().currentStepsCache.put(new Long(entryId), currentSteps);
-		}
+			if (currentSteps == null) {
+				currentSteps = new ArrayList();
+				SerializableCache.getInstance().currentStepsCache.put(new Long(entryId), currentSteps);
+			}
 
-		return currentSteps;
+			return currentSteps;
+		}
 	}
 
 	public WorkflowEntry findEntry(long entryId) {
-		return (WorkflowEntry) SerializableCache.getInstance().entryCache.get(new Long(entryId));
+		synchronized (SerializableCache.class) {
+			return (WorkflowEntry) SerializableCache.getInstance().entryCache.get(new Long(entryId));
+		}
 	}
 
 	public List findHistorySteps(long entryId) {
-		List historySteps = (List) SerializableCache.getInstance().historyStepsCache.get(new Long(entryId));
+		synchronized (SerializableCache.class) {
+			List historySteps = (List) SerializableCache.getInstance().historyStepsCache.get(new Long(entryId));
 
-		if (historySteps == null) {
-			historySteps = new ArrayList();
-			SerializableCache.getInstance().historyStepsCache.put(new Long(entryId), historySteps);
-		}
+			if (historySteps == null) {
+				historySteps = new ArrayList();
+				SerializableCache.getInstance().historyStepsCache.put(new Long(entryId), historySteps);
+			}
 
-		return historySteps;
+			return historySteps;
+		}
 	}
 
 	public void init(Map props) {
@@ -122,30 +170,63 @@ public class SerializableWorkflowStore extends MemoryWorkflowStore {
 		if (!new File(storeFile).getParentFile().exists()) {
 			log.fatal("directory " + new File(storeFile).getParent() + " not found");
 		}
+
+		SerializableCache.syncAlways = "always".equalsIgnoreCase((String) props.get("journal.sync"));
+
+		String threshold = (String) props.get("journal.compactThreshold");
+
+		if (threshold != null) {
+			SerializableCache.compactThreshold = Integer.parseInt(threshold);
+		}
+
+		// fail now rather than on first use if the journal is damaged
+		SerializableCache.getInstance();
+	}
+
+	/**
+	 * Write a snapshot of the whole store and clear the journal.
+	 */
+	public static void compact() {
+		SerializableCache.compact();
 	}
 
 	public Step markFinished(Step step, int actionId, Date finishDate, String status, String caller) {
-		List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(step.getEntryId()));
+		synchronized (SerializableCache.class) {
+			List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(step.getEntryId()));
 
-		for (Iterator iterator = currentSteps.iterator(); iterator.hasNext();) {
-			SimpleStep theStep = (SimpleStep) iterator.next();
+			for (Iterator iterator = currentSteps.iterator(); iterator.hasNext();) {
+				SimpleStep theStep = (SimpleStep) iterator.next();
 
-			if (theStep.getId() == step.getId()) {
-				theStep.setStatus(status);
-				theStep.setActionId(actionId);
-				theStep.setFinishDate(finishDate);
-				theStep.setCaller(caller);
+				if (theStep.getId() == step.getId()) {
+					theStep.setStatus(status);
+					theStep.setActionId(actionId);
+					theStep.setFinishDate(finishDate);
+					theStep.setCaller(caller);
+					SerializableCache.logMarkFinished(theStep);
 
-				return theStep;
+					return theStep;
+				}
 			}
+
+			return null;
 		}
+	}
 
-		SerializableCache.store();
+	public void moveToHistory(Step step) {
+		synchronized (SerializableCache.class) {
+			if (moveToHistoryInCache(step)) {
+				SerializableCache.logMoveToHistory(step);
+			}
+		}
+	}
 
-		return null;
+	public void moveToHistory(Collection steps) {
+		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
+			moveToHistory((Step) iterator.next());
+		}
 	}
 
-	public void moveToHistory(Step step) {
+	private boolean moveToHistoryInCache(Step step) {
 		List currentSteps = (List) SerializableCache.getInstance().currentStepsCache.get(new Long(step.getEntryId()));
 
 		List historySteps = (List) SerializableCache.getInstance().historyStepsCache.get(new Long(step.getEntryId()));
@@ -164,11 +245,11 @@ public class SerializableWorkflowStore extends MemoryWorkflowStore {
 				iterator.remove();
 				historySteps.add(simpleStep);
 
-				break;
+				return true;
 			}
 		}
 
-		SerializableCache.store();
+		return false;
 	}
 }
 
@@ -176,7 +257,30 @@ class SerializableCache implements Serializable {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
+	private static final byte CREATE_ENTRY = 1;
+	private static final byte SET_ENTRY_STATE = 2;
+	private static final byte CREATE_STEP = 3;
+	private static final byte MARK_FINISHED = 4;
+	private static final byte MOVE_TO_HISTORY = 5;
+	private static final byte PROPERTIES = 6;
+	private static final byte JOURNAL_START = 7;
+
+	/**
+	 * The serialVersionUID computed for this class before the journal was
+	 * added, so that older snapshots can still be read.
+	 */
+	private static final long serialVersionUID = -4736102093030116162L;
 	private static transient SerializableCache instance;
+	private static FileOutputStream journal;
+	private static int journalRecords;
+
+	/**
+	 * Whether the journal must be cleared before it is written again, because
+	 * a snapshot was written but clearing the journal failed.
+	 */
+	private static boolean journalStale;
+	static boolean syncAlways = false;
+	static int compactThreshold = 10000;
 
 	// ~ Instance fields
 	// ////////////////////////////////////////////////////////
@@ -188,6 +292,12 @@ class SerializableCache implements Serializable {
 	long globalEntryId = 1;
 	long globalStepId = 1;
 
+	/**
+	 * The generation of the journal whose records this snapshot does not
+	 * include yet. 0 in snapshots written before generations were kept.
+	 */
+	long journalGeneration;
+
 	// ~ Constructors
 	// ///////////////////////////////////////////////////////////
 
@@ -206,9 +316,21 @@ class SerializableCache implements Serializable {
 		return Collections.EMPTY_LIST;
 	}
 
-	static SerializableCache getInstance() {
+	/**
+	 * @throws IllegalStateException
+	 *             if the journal cannot be replayed
+	 */
+	static synchronized SerializableCache getInstance() {
 		if (instance == null) {
-			instance = load();
+			SerializableCache cache = load();
+
+			try {
+				journalRecords = cache.replay(journalFile());
+			} catch (Exception e) {
+				throw new IllegalStateException("cannot replay journal " + journalFile() + ": " + e, e);
+			}
+
+			instance = cache;
 		}
 
 		return instance;
@@ -229,14 +351,449 @@ class SerializableCache implements Serializable {
 		return new SerializableCache();
 	}
 
-	static void store() {
+	static synchronized void logCreateEntry(WorkflowEntry entry) {
 		try {
-			FileOutputStream fos = new FileOutputStream(new File(SerializableWorkflowStore.storeFile));
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			oos.writeObject(getInstance());
-			fos.close();
-		} catch (Exception e) {
-			SerializableWorkflowStore.log.fatal("cannot store in file " + SerializableWorkflowStore.storeFile + ".");
+			Record out = record(CREATE_ENTRY);
+			out.writeLong(entry.getId());
+			out.writeUTF(entry.getWorkflowName());
+			out.writeInt(entry.getState());
+			append(out);
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot write journal of " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	static synchronized void logEntryState(long entryId, int state) {
+		try {
+			Record out = record(SET_ENTRY_STATE);
+			out.writeLong(entryId);
+			out.writeInt(state);
+			append(out);
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot write journal of " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	static synchronized void logCreateStep(Step step) {
+		try {
+			Record out = record(CREATE_STEP);
+			out.writeLong(step.getEntryId());
+			out.writeLong(step.getId());
+			out.writeInt(step.getStepId());
+			writeString(out, step.getOwner());
+			writeDate(out, step.getStartDate());
+			writeDate(out, step.getDueDate());
+			writeString(out, step.getStatus());
+
+			long[] previousIds = step.getPreviousStepIds();
+			out.writeInt((previousIds == null) ? (-1) : previousIds.length);
+
+			for (int i = 0; (previousIds != null) && (i < previousIds.length); i++) {
+				out.writeLong(previousIds[i]);
+			}
+
+			append(out);
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot write journal of " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	static synchronized void logMarkFinished(Step step) {
+		try {
+			Record out = record(MARK_FINISHED);
+			out.writeLong(step.getEntryId());
+			out.writeLong(step.getId());
+			out.writeInt(step.getActionId());
+			writeDate(out, step.getFinishDate());
+			writeString(out, step.getStatus());
+			writeString(out, step.getCaller());
+			append(out);
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot write journal of " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	static synchronized void logProperties(long entryId, PropertySet ps) {
+		try {
+			Record out = record(PROPERTIES);
+			out.writeLong(entryId);
+
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(ps);
+			oos.flush();
+			append(out);
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot write journal of " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	static synchronized void logMoveToHistory(Step step) {
+		try {
+			Record out = record(MOVE_TO_HISTORY);
+			out.writeLong(step.getEntryId());
+			out.writeLong(step.getId());
+			append(out);
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot write journal of " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	/**
+	 * Write a snapshot of the whole store to the store file, and clear the
+	 * journal once the snapshot is safely in place.
+	 */
+	static synchronized void compact() {
+		File file = new File(SerializableWorkflowStore.storeFile);
+		File temp = new File(SerializableWorkflowStore.storeFile + ".tmp");
+		SerializableCache cache = getInstance();
+
+		try {
+			// the snapshot covers the current journal, which is skipped on
+			// startup once the snapshot is in place, even if it is not cleared
+			cache.journalGeneration++;
+
+			FileOutputStream fos = new FileOutputStream(temp);
+
+			try {
+				ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+				oos.writeObject(cache);
+				oos.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+
+			try {
+				Files.move(temp.toPath(), file.toPath(), new StandardCopyOption[] {StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE});
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), new StandardCopyOption[] {StandardCopyOption.REPLACE_EXISTING});
+			}
+
+			journalStale = true;
+			openJournal();
+		} catch (IOException e) {
+			SerializableWorkflowStore.log.fatal("cannot store in file " + SerializableWorkflowStore.storeFile + ".", e);
+		}
+	}
+
+	/**
+	 * Append a record to the journal, and write a snapshot if the journal has
+	 * grown past the threshold.
+	 */
+	private static void append(Record record) throws IOException {
+		if ((journal == null) || journalStale) {
+			openJournal();
+		}
+
+		writeRecord(record);
+
+		if (syncAlways) {
+			journal.getFD().sync();
+		}
+
+		if ((compactThreshold > 0) && (journalRecords >= compactThreshold)) {
+			compact();
+		}
+	}
+
+	/**
+	 * Open the journal for appending, clearing it first if it is stale, and
+	 * start it with its generation if it is empty.
+	 */
+	private static void openJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+
+		File file = journalFile();
+		boolean clear = journalStale;
+		FileOutputStream out = new FileOutputStream(file, !clear);
+
+		try {
+			if (clear || (file.length() == 0)) {
+				Record start = record(JOURNAL_START);
+				start.writeLong(getInstance().journalGeneration);
+				start.writeTo(out);
+				out.getFD().sync();
+			}
+		} catch (IOException e) {
+			out.close();
+
+			throw e;
+		}
+
+		journal = out;
+		journalStale = false;
+
+		if (clear) {
+			journalRecords = 0;
+		}
+	}
+
+	private static File journalFile() {
+		return new File(SerializableWorkflowStore.storeFile + ".journal");
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException {
+		long time = in.readLong();
+
+		return (time == Long.MIN_VALUE) ? null : new Date(time);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static Record record(byte type) throws IOException {
+		Record out = new Record();
+		out.writeByte(type);
+
+		return out;
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeLong((date == null) ? Long.MIN_VALUE : date.getTime());
+	}
+
+	private static void writeRecord(Record record) throws IOException {
+		record.writeTo(journal);
+		journalRecords++;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private void apply(DataInputStream in) throws IOException, ClassNotFoundException {
+		byte type = in.readByte();
+		Long entryId = new Long(in.readLong());
+
+		switch (type) {
+		case CREATE_ENTRY:
+
+			String workflowName = in.readUTF();
+			int entryState = in.readInt();
+			entryCache.put(entryId, new SimpleWorkflowEntry(entryId.longValue(), workflowName, entryState));
+			globalEntryId = Math.max(globalEntryId, entryId.longValue() + 1);
+
+			break;
+
+		case SET_ENTRY_STATE:
+
+			SimpleWorkflowEntry entry = (SimpleWorkflowEntry) entryCache.get(entryId);
+
+			if (entry != null) {
+				entry.setState(in.readInt());
+			}
+
+			break;
+
+		case CREATE_STEP:
+
+			long id = in.readLong();
+			int stepId = in.readInt();
+			String owner = readString(in);
+			Date startDate = readDate(in);
+			Date dueDate = readDate(in);
+			String status = readString(in);
+			int count = in.readInt();
+			long[] previousIds = (count < 0) ? null : new long[count];
+
+			for (int i = 0; i < count; i++) {
+				previousIds[i] = in.readLong();
+			}
+
+			getSteps(currentStepsCache, entryId).add(new SimpleStep(id, entryId.longValue(), stepId, 0, owner, startDate, dueDate, null, status, previousIds, null));
+			globalStepId = Math.max(globalStepId, id + 1);
+
+			break;
+
+		case MARK_FINISHED:
+
+			SimpleStep step = findStep(getSteps(currentStepsCache, entryId), in.readLong(), false);
+
+			if (step != null) {
+				step.setActionId(in.readInt());
+				step.setFinishDate(readDate(in));
+				step.setStatus(readString(in));
+				step.setCaller(readString(in));
+			}
+
+			break;
+
+		case MOVE_TO_HISTORY:
+
+			SimpleStep finished = findStep(getSteps(currentStepsCache, entryId), in.readLong(), true);
+
+			if (finished != null) {
+				getSteps(historyStepsCache, entryId).add(finished);
+			}
+
+			break;
+
+		case JOURNAL_START:
+			break;
+
+		case PROPERTIES:
+			propertySetCache.put(entryId, new ObjectInputStream(in).readObject());
+
+			break;
+
+		default:
+			throw new IOException("unknown journal record type " + type);
+		}
+	}
+
+	private SimpleStep findStep(List steps, long id, boolean remove) {
+		for (Iterator iterator = steps.iterator(); iterator.hasNext();) {
+			SimpleStep step = (SimpleStep) iterator.next();
+
+			if (step.getId() == id) {
+				if (remove) {
+					iterator.remove();
+				}
+
+				return step;
+			}
+		}
+
+		return null;
+	}
+
+	private List getSteps(HashMap cache, Long entryId) {
+		List steps = (List) cache.get(entryId);
+
+		if (steps == null) {
+			steps = new ArrayList();
+			cache.put(entryId, steps);
+		}
+
+		return steps;
+	}
+
+	/**
+	 * Apply the records of the given journal to this cache. A last record
+	 * that was only partly written is dropped; any other damage is reported,
+	 * and the journal left as it is.
+	 *
+	 * @return the number of records applied
+	 */
+	private int replay(File file) throws IOException, ClassNotFoundException {
+		if (!file.exists()) {
+			return 0;
+		}
+
+		if (isStale(file)) {
+			// left by a crash after the last snapshot was written
+			journalStale = true;
+
+			return 0;
+		}
+
+		long size = file.length();
+		long valid = 0;
+		int records = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			while (valid < size) {
+				if ((size - valid) < 4) {
+					break;
+				}
+
+				int length = in.readInt();
+
+				if (length <= 0) {
+					throw new IOException("invalid record length " + length + " at offset " + valid);
+				}
+
+				if (length > (size - valid - 4)) {
+					break;
+				}
+
+				byte[] record = new byte[length];
+				in.readFully(record);
+				apply(new DataInputStream(new ByteArrayInputStream(record)));
+				valid += (4 + length);
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (valid < size) {
+			SerializableWorkflowStore.log.warn("journal " + file + " ends with a record cut short after " + records + " records, dropping it");
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * @return whether the given journal has a generation older than this
+	 *         snapshot
+	 */
+	private boolean isStale(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			try {
+				// journals written before generations were kept have none
+				long generation = 0;
+
+				if ((in.readInt() > 0) && (in.readByte() == JOURNAL_START)) {
+					generation = in.readLong();
+				}
+
+				return generation < journalGeneration;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// an empty or cut short journal has no generation
+		}
+
+		return false;
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * A journal record being built in memory.
+	 */
+	private static class Record extends DataOutputStream {
+		Record() {
+			super(new ByteArrayOutputStream());
+		}
+
+		/**
+		 * Write the record as its length followed by its bytes, in a single
+		 * write, so that a record cut short by a crash can be detected on
+		 * replay.
+		 */
+		void writeTo(OutputStream target) throws IOException {
+			flush();
+
+			ByteArrayOutputStream bytes = (ByteArrayOutputStream) out;
+			ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.size() + 4);
+			DataOutputStream header = new DataOutputStream(framed);
+			header.writeInt(bytes.size());
+			header.flush();
+			bytes.writeTo(framed);
+			target.write(framed.toByteArray());
 		}
 	}
 }
@@ -64,6 +64,44 @@ public class DefaultVariableResolver implements VariableResolver, Serializable {
 		return o;
 	}
 
+	Object getVariable(VariableTemplate.Reference reference, Map transientVars, PropertySet ps) {
+		Object o = transientVars.get(reference.name);
+
+		if (o == null) {
+			o = ps.getAsActualType(reference.name);
+		}
+
+		if (reference.path == null) {
+			return o;
+		}
+
+		// a custom bean provider may resolve properties differently
+		if ((beanProvider == null) || (beanProvider.getClass() == DefaultBeanProvider.class)) {
+			try {
+				return reference.getProperty(o);
+			} catch (Exception e) {
+				// fall back to the bean provider below
+			}
+		}
+
+		if (beanProvider == null) {
+			beanProvider = new DefaultBeanProvider();
+		}
+
+		return beanProvider.getProperty(o, reference.path);
+	}
+
+	/**
+	 * Render a template compiled through {@link VariableTemplate#compile(String)}.
+	 * The result is the same as calling
+	 * {@link #translateVariables(String, Map, PropertySet)} with the template's
+	 * source, but the string is not parsed again and dotted property paths use
+	 * accessors cached on the template.
+	 */
+	public Object translateVariables(VariableTemplate template, Map transientVars, PropertySet ps) {
+		return template.render(this, transientVars, ps);
+	}
+
 	/**
 	 * Parses a string for instances of "${foo}" and returns a string with all
 	 * instances replaced with the string value of the foo object
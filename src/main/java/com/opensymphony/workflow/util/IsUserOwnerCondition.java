@@ -7,6 +7,8 @@ package com.opensymphony.workflow.util;
 import com.opensymphony.module.propertyset.PropertySet;
 
 import com.opensymphony.workflow.Condition;
+import com.opensymphony.workflow.SideEffectFree;
+import com.opensymphony.workflow.Stateless;
 import com.opensymphony.workflow.StoreException;
 import com.opensymphony.workflow.WorkflowContext;
 import com.opensymphony.workflow.spi.Step;
@@ -41,7 +43,7 @@ import java.util.*;
  * @author <a href="mailto:adam@southtech.co.uk">Adam Southall </a> (refactored
  *         owner conditions to use this generic class.
  */
-public class IsUserOwnerCondition implements Condition {
+public class IsUserOwnerCondition implements Condition, SideEffectFree, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
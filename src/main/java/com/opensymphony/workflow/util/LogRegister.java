@@ -9,6 +9,7 @@ import com.opensymphony.module.propertyset.PropertySet;
 import com.opensymphony.util.TextUtils;
 
 import com.opensymphony.workflow.Register;
+import com.opensymphony.workflow.Stateless;
 import com.opensymphony.workflow.WorkflowContext;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 
@@ -41,7 +42,7 @@ import java.util.Map;
  * 
  * @author Zoltan Luspai
  */
-public class LogRegister implements Register {
+public class LogRegister implements Register, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
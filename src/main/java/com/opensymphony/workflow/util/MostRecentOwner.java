@@ -30,7 +30,7 @@ import java.util.*;
  * @author <a href="mailto:mischwar@cisco.com">Mike Schwartz</a>
  * @version $Revision: 1.3 $
  */
-public class MostRecentOwner implements FunctionProvider {
+public class MostRecentOwner implements FunctionProvider, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -18,7 +18,7 @@ import java.util.Map;
  * 
  * @author <a href="mailto:plightbo@hotmail.com">Pat Lightbody</a>
  */
-public class OSUserGroupCondition implements Condition {
+public class OSUserGroupCondition implements Condition, SideEffectFree, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
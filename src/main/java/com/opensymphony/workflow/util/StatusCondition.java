@@ -22,7 +22,7 @@ import java.util.*;
  * 
  * @author <a href="mailto:plightbo@hotmail.com">Pat Lightbody</a>
  */
-public class StatusCondition implements Condition {
+public class StatusCondition implements Condition, SideEffectFree, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
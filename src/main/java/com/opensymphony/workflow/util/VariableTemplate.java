@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import java.util.*;
+
+/**
+ * A string containing <code>${foo}</code> variable references, parsed once
+ * into literal and variable segments so it can be rendered by
+ * {@link DefaultVariableResolver} without re-parsing. Rendering produces the
+ * same result as {@link DefaultVariableResolver#translateVariables(String, Map, PropertySet)}
+ * on the source string.
+ */
+public class VariableTemplate {
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	/**
+	 * Literal Strings and {@link Reference}s in order of appearance.
+	 */
+	private final Object[] segments;
+	private final Reference single;
+	private final String source;
+	private final int literalLength;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	private VariableTemplate(String source, Reference single, Object[] segments, int literalLength) {
+		this.source = source;
+		this.single = single;
+		this.segments = segments;
+		this.literalLength = literalLength;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public static VariableTemplate compile(String s) {
+		String temp = s.trim();
+
+		if (temp.startsWith("${") && temp.endsWith("}") && (temp.indexOf('$', 1) == -1)) {
+			return new VariableTemplate(s, new Reference(temp.substring(2, temp.length() - 1)), null, 0);
+		}
+
+		List segments = new ArrayList();
+		int literalLength = 0;
+		int pos = 0;
+
+		while (true) {
+			int x = s.indexOf("${", pos);
+			int y = (x == -1) ? (-1) : s.indexOf('}', x);
+
+			if ((x == -1) || (y == -1)) {
+				break;
+			}
+
+			if ((x > 0) && (s.charAt(x - 1) == '$')) {
+				// "$${" can form a new reference once substituted, which
+				// only the iterative translation handles
+				return new VariableTemplate(s, null, null, -1);
+			}
+
+			if (x > pos) {
+				segments.add(s.substring(pos, x));
+				literalLength += (x - pos);
+			}
+
+			segments.add(new Reference(s.substring(x + 2, y)));
+			pos = y + 1;
+		}
+
+		if (segments.isEmpty()) {
+			return new VariableTemplate(s, null, null, s.length());
+		}
+
+		if (pos < s.length()) {
+			segments.add(s.substring(pos));
+			literalLength += (s.length() - pos);
+		}
+
+		return new VariableTemplate(s, null, segments.toArray(), literalLength);
+	}
+
+	/**
+	 * Compile every String value of the given map.
+	 *
+	 * @return a map with the same keys and {@link VariableTemplate} values;
+	 *         non-String values are kept as they are.
+	 */
+	public static Map compileAll(Map args) {
+		Map compiled = new HashMap(args.size() * 2);
+
+		for (Iterator iterator = args.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry entry = (Map.Entry) iterator.next();
+			Object value = entry.getValue();
+			compiled.put(entry.getKey(), (value instanceof String) ? compile((String) value) : value);
+		}
+
+		return Collections.unmodifiableMap(compiled);
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public boolean isConstant() {
+		return (single == null) && (segments == null) && (literalLength >= 0);
+	}
+
+	public String toString() {
+		return source;
+	}
+
+	Object render(DefaultVariableResolver resolver, Map transientVars, PropertySet ps) {
+		if (single != null) {
+			return resolver.getVariable(single, transientVars, ps);
+		}
+
+		if (segments == null) {
+			return (literalLength < 0) ? resolver.translateVariables(source, transientVars, ps) : source;
+		}
+
+		StringBuilder sb = new StringBuilder(literalLength + 16);
+
+		for (int i = 0; i < segments.length; i++) {
+			Object segment = segments[i];
+
+			if (segment instanceof String) {
+				sb.append((String) segment);
+			} else {
+				Object o = resolver.getVariable((Reference) segment, transientVars, ps);
+
+				if (o != null) {
+					String t = o.toString();
+
+					// translateVariables re-scans substituted values, so
+					// values that may form new references take the slow path
+					if ((t.indexOf('$') != -1) || (t.indexOf('{') != -1)) {
+						return resolver.translateVariables(source, transientVars, ps);
+					}
+
+					sb.append(t);
+				}
+			}
+		}
+
+		return sb.toString();
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * A single variable reference such as <code>foo</code> or
+	 * <code>foo.bar.baz</code>. The accessor used for each property in the path
+	 * is cached against the class it was last resolved for.
+	 */
+	static class Reference {
+		final String name;
+		final String path;
+		final String variable;
+		private final Accessor[] accessors;
+
+		Reference(String variable) {
+			this.variable = variable;
+
+			int firstDot = variable.indexOf('.');
+
+			if (firstDot == -1) {
+				name = variable;
+				path = null;
+				accessors = null;
+			} else {
+				name = variable.substring(0, firstDot);
+				path = variable.substring(firstDot + 1);
+
+				StringTokenizer st = new StringTokenizer(path, ".");
+				accessors = new Accessor[st.countTokens()];
+
+				for (int i = 0; i < accessors.length; i++) {
+					accessors[i] = new Accessor(st.nextToken());
+				}
+			}
+		}
+
+		/**
+		 * Walk the property path from the given root object, mirroring the
+		 * lookup order of
+		 * {@link com.opensymphony.provider.bean.DefaultBeanProvider}.
+		 *
+		 * @throws Exception
+		 *             if a cached accessor could not be invoked, in which case
+		 *             the caller should fall back to the bean provider
+		 */
+		Object getProperty(Object o) throws Exception {
+			if (accessors.length == 0) {
+				return null;
+			}
+
+			for (int i = 0; (i < accessors.length) && (o != null); i++) {
+				o = accessors[i].get(o);
+			}
+
+			return o;
+		}
+	}
+
+	static class Accessor {
+		private final String property;
+		private final String capitalized;
+		private volatile Object[] cached; // {Class, Member}
+
+		Accessor(String property) {
+			this.property = property;
+			this.capitalized = property.toUpperCase().charAt(0) + property.substring(1);
+		}
+
+		Object get(Object target) throws Exception {
+			Class type = target.getClass();
+			Object[] entry = cached;
+
+			if ((entry == null) || (entry[0] != type)) {
+				entry = new Object[] {type, lookup(type)};
+				cached = entry;
+			}
+
+			Member member = (Member) entry[1];
+
+			if (member == null) {
+				return null;
+			}
+
+			if (member instanceof Method) {
+				return ((Method) member).invoke(target, (Object[]) null);
+			}
+
+			return ((Field) member).get(target);
+		}
+
+		private Member lookup(Class type) {
+			try {
+				return type.getMethod("get" + capitalized, (Class[]) null);
+			} catch (NoSuchMethodException e) {
+			}
+
+			try {
+				return type.getMethod("is" + capitalized, (Class[]) null);
+			} catch (NoSuchMethodException e) {
+			}
+
+			try {
+				return type.getMethod(property, (Class[]) null);
+			} catch (NoSuchMethodException e) {
+			}
+
+			try {
+				return type.getField(property);
+			} catch (NoSuchFieldException e) {
+			}
+
+			return null;
+		}
+	}
+}
@@ -34,7 +34,7 @@ import java.util.*;
  * <li><b>action.name</b> - the actionName to ask from the ActionFactory</li>
  * </ul>
  */
-public class WebWorkExecutor implements FunctionProvider {
+public class WebWorkExecutor implements FunctionProvider, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
@@ -26,7 +26,7 @@ import java.util.*;
  * @author $author$
  * @version $Revision: 1.2 $
  */
-public class WebWorkValidator implements Validator {
+public class WebWorkValidator implements Validator, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -7,6 +7,7 @@ package com.opensymphony.workflow.util;
 import com.opensymphony.module.propertyset.PropertySet;
 
 import com.opensymphony.workflow.FunctionProvider;
+import com.opensymphony.workflow.Stateless;
 import com.opensymphony.workflow.WorkflowException;
 
 import com.opensymphony.xwork.ActionContext;
@@ -32,7 +33,7 @@ import java.util.Map;
  * <li><b>namespace</b> - the namespace to ask from the ActionProxy</li>
  * </ul>
  */
-public class XWorkExecutor implements FunctionProvider {
+public class XWorkExecutor implements FunctionProvider, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.beanshell;
+
+import com.opensymphony.workflow.Condition;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles BeanShell condition scripts that are also valid Java into
+ * classes extending {@link CompiledBeanShellCondition}, so that they run as
+ * bytecode instead of being interpreted.
+ * <p>
+ * A script is compiled as the body of a method that returns the value of its
+ * last expression, or of its <code>return</code> statement. The variables of
+ * {@link BeanShellCondition} are the parameters of that method, with their
+ * declared types, and the packages BeanShell imports by default are
+ * imported. Loosely typed scripts, such as scripts that assign undeclared
+ * variables or call methods the declared type does not have, do not compile
+ * and are left to the interpreter.
+ * <p>
+ * Compiled classes are cached by script text, and each is defined by a class
+ * loader of its own, whose parent is the context class loader of the thread
+ * that compiled it. Compiling needs the system Java compiler, so scripts are
+ * only compiled when running on a JDK.
+ */
+public final class BeanShellCompiler {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final Log log = LogFactory.getLog(BeanShellCompiler.class);
+
+	/**
+	 * Marks scripts that could not be compiled in {@link #conditions}.
+	 */
+	private static final Object FAILED = new Object();
+
+	/**
+	 * Maximum number of scripts compiled, to bound the classes defined.
+	 */
+	private static final int MAX_SCRIPTS = 1024;
+
+	private static final String PACKAGE = "com.opensymphony.workflow.util.beanshell";
+
+	/**
+	 * Keywords that cannot start the last expression of a script.
+	 */
+	private static final Set STATEMENT_KEYWORDS = new HashSet(Arrays.asList(new String[] {
+				"break", "continue", "do", "else", "for", "if", "return", "switch", "synchronized", "throw", "try", "while"
+			}));
+	private static final Pattern IMPORT = Pattern.compile("\\s*import\\s+(static\\s+)?[\\w.]+(\\.\\*)?\\s*;");
+	private static final Pattern KEYWORD = Pattern.compile("^[A-Za-z]+");
+
+	/**
+	 * Script text to its {@link CompiledBeanShellCondition}, or to
+	 * {@link #FAILED}.
+	 */
+	private static final Map conditions = new ConcurrentHashMap();
+	private static int classes;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	private BeanShellCompiler() {
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the condition compiled from the given script, or null if the
+	 *         script cannot be compiled
+	 */
+	public static Condition getCondition(String script) {
+		if (script == null) {
+			return null;
+		}
+
+		Object condition = conditions.get(script);
+
+		if (condition == null) {
+			synchronized (BeanShellCompiler.class) {
+				condition = conditions.get(script);
+
+				if (condition == null) {
+					if (conditions.size() >= MAX_SCRIPTS) {
+						return null;
+					}
+
+					condition = compile(script);
+					conditions.put(script, (condition != null) ? condition : FAILED);
+				}
+			}
+		}
+
+		return (condition != FAILED) ? (Condition) condition : null;
+	}
+
+	/**
+	 * Discard all compiled scripts. Conditions already handed out keep
+	 * working.
+	 */
+	public static void clearCache() {
+		conditions.clear();
+	}
+
+	private static Condition compile(String script) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+		if (compiler == null) {
+			log.debug("No Java compiler available, BeanShell script is interpreted");
+
+			return null;
+		}
+
+		ClassLoader parent = Thread.currentThread().getContextClassLoader();
+
+		if (parent == null) {
+			parent = BeanShellCompiler.class.getClassLoader();
+		}
+
+		String className = PACKAGE + ".CompiledCondition" + (++classes);
+		String source = toSource(script, className.substring(PACKAGE.length() + 1));
+
+		if (source == null) {
+			return null;
+		}
+
+		MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+		StringWriter output = new StringWriter();
+
+		try {
+			JavaFileObject unit = new SourceFile(className, source);
+			Boolean compiled = compiler.getTask(output, fileManager, null, Arrays.asList(new String[] {"-classpath", getClassPath(parent), "-proc:none", "-g:source,lines"}), null, Collections.singletonList(unit)).call();
+
+			if (!Boolean.TRUE.equals(compiled)) {
+				if (log.isDebugEnabled()) {
+					log.debug("BeanShell script is interpreted, as it is not valid Java: " + script + "\n" + output);
+				}
+
+				return null;
+			}
+
+			Class type = new MemoryClassLoader(parent, fileManager.classes).loadClass(className);
+			Object condition = type.getConstructor(new Class[] {String.class}).newInstance(new Object[] {script});
+
+			return (Condition) condition;
+		} catch (Exception e) {
+			log.warn("Could not compile BeanShell script, it is interpreted instead: " + script, e);
+		} catch (LinkageError e) {
+			log.warn("Could not compile BeanShell script, it is interpreted instead: " + script, e);
+		} finally {
+			try {
+				fileManager.close();
+			} catch (IOException e) {
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * The class path of the given class loader and of the application.
+	 */
+	private static String getClassPath(ClassLoader loader) {
+		Set entries = new LinkedHashSet();
+
+		for (; loader != null; loader = loader.getParent()) {
+			if (loader instanceof URLClassLoader) {
+				URL[] urls = ((URLClassLoader) loader).getURLs();
+
+				for (int i = 0; i < urls.length; i++) {
+					if ("file".equals(urls[i].getProtocol())) {
+						try {
+							entries.add(new File(urls[i].toURI()).getPath());
+						} catch (Exception e) {
+							entries.add(urls[i].getPath());
+						}
+					}
+				}
+			}
+		}
+
+		entries.addAll(Arrays.asList(System.getProperty("java.class.path", "").split(File.pathSeparator)));
+
+		StringBuilder classPath = new StringBuilder();
+
+		for (Iterator iterator = entries.iterator(); iterator.hasNext();) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparatorChar);
+			}
+
+			classPath.append(iterator.next());
+		}
+
+		return classPath.toString();
+	}
+
+	/**
+	 * @return the Java source of a condition class for the script, or null
+	 *         if the script cannot be a method body
+	 */
+	private static String toSource(String script, String simpleName) {
+		StringBuilder imports = new StringBuilder("import java.io.*;\nimport java.net.*;\nimport java.util.*;\n");
+		Matcher matcher = IMPORT.matcher(script);
+		int start = 0;
+
+		// leading imports of the script become imports of the class
+		while (matcher.find(start) && (matcher.start() == start)) {
+			imports.append(matcher.group().trim()).append('\n');
+			start = matcher.end();
+		}
+
+		String body = toBody(script.substring(start));
+
+		if (body == null) {
+			return null;
+		}
+
+		return "package " + PACKAGE + ";\n" + imports + "public final class " + simpleName + " extends " + PACKAGE + ".CompiledBeanShellCondition {\n" + "public " + simpleName + "(String script) {\nsuper(script);\n}\n"
+				+ "protected Object eval(com.opensymphony.workflow.spi.WorkflowEntry entry, com.opensymphony.workflow.WorkflowContext context, java.util.Map transientVars, com.opensymphony.module.propertyset.PropertySet propertySet, com.opensymphony.workflow.JoinNodes jn) throws Exception {\n" + body + "\n}\n}\n";
+	}
+
+	/**
+	 * Turn a script into a method body, returning the value of its last
+	 * expression unless it ends with a statement.
+	 */
+	private static String toBody(String script) {
+		String statements = script.trim();
+
+		while (statements.endsWith(";")) {
+			statements = statements.substring(0, statements.length() - 1).trim();
+		}
+
+		if (statements.length() == 0) {
+			return null;
+		}
+
+		int end = findLastStatementEnd(statements);
+
+		if (end == -2) {
+			// unbalanced quotes or comments
+			return null;
+		}
+
+		String last = statements.substring(end + 1).trim();
+		Matcher keyword = KEYWORD.matcher(last);
+
+		if ((last.length() == 0) || last.endsWith("}")) {
+			return statements.endsWith("}") ? statements : (statements + ";");
+		}
+
+		if (keyword.find() && STATEMENT_KEYWORDS.contains(keyword.group())) {
+			return statements + ";";
+		}
+
+		// the expression may end with a line comment
+		return statements.substring(0, end + 1) + "\nreturn (" + last + "\n);";
+	}
+
+	/**
+	 * @return the index of the last ';' or '}' outside of any bracket, string
+	 *         or comment, -1 if there is none, or -2 if a string or comment
+	 *         is not closed
+	 */
+	private static int findLastStatementEnd(String script) {
+		int depth = 0;
+		int end = -1;
+
+		for (int i = 0; i < script.length(); i++) {
+			char c = script.charAt(i);
+
+			if ((c == '"') || (c == '\'')) {
+				for (i++; (i < script.length()) && (script.charAt(i) != c); i++) {
+					if (script.charAt(i) == '\\') {
+						i++;
+					}
+				}
+
+				if (i >= script.length()) {
+					return -2;
+				}
+			} else if (script.startsWith("//", i)) {
+				i = script.indexOf('\n', i);
+
+				if (i == -1) {
+					return end;
+				}
+			} else if (script.startsWith("/*", i)) {
+				i = script.indexOf("*/", i + 2);
+
+				if (i == -1) {
+					return -2;
+				}
+
+				i++;
+			} else if ((c == '(') || (c == '[') || (c == '{')) {
+				depth++;
+			} else if ((c == ')') || (c == ']') || (c == '}')) {
+				depth--;
+
+				if ((c == '}') && (depth == 0)) {
+					end = i;
+				}
+			} else if ((c == ';') && (depth == 0)) {
+				end = i;
+			}
+		}
+
+		return end;
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * Defines the compiled classes of one script.
+	 */
+	private static class MemoryClassLoader extends ClassLoader {
+		private final Map classes;
+
+		MemoryClassLoader(ClassLoader parent, Map classes) {
+			super(parent);
+			this.classes = classes;
+		}
+
+		protected Class findClass(String name) throws ClassNotFoundException {
+			ByteArrayOutputStream bytes = (ByteArrayOutputStream) classes.get(name);
+
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+
+			byte[] code = bytes.toByteArray();
+
+			return defineClass(name, code, 0, code.length);
+		}
+	}
+
+	/**
+	 * Keeps the compiled classes in memory.
+	 */
+	private static class MemoryFileManager extends ForwardingJavaFileManager {
+		final Map classes = new HashMap();
+
+		MemoryFileManager(JavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, final String className, JavaFileObject.Kind kind, FileObject sibling) {
+			return new SimpleJavaFileObject(URI.create("memory:///" + className.replace('.', '/') + kind.extension), kind) {
+				public OutputStream openOutputStream() {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					classes.put(className, bytes);
+
+					return bytes;
+				}
+			};
+		}
+	}
+
+	/**
+	 * The source of a generated class.
+	 */
+	private static class SourceFile extends SimpleJavaFileObject {
+		private final String source;
+
+		SourceFile(String className, String source) {
+			super(URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE);
+			this.source = source;
+		}
+
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return source;
+		}
+	}
+}
@@ -5,7 +5,6 @@
 package com.opensymphony.workflow.util.beanshell;
 
 import bsh.EvalError;
-import bsh.Interpreter;
 import bsh.TargetError;
 
 import com.opensymphony.module.propertyset.PropertySet;
@@ -18,13 +17,14 @@ import com.opensymphony.workflow.spi.WorkflowEntry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
  * 
  * @author Hani
  */
-public class BeanShellCondition implements Condition {
+public class BeanShellCondition implements Condition, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
@@ -39,21 +39,15 @@ public class BeanShellCondition implements Condition {
 		WorkflowContext context = (WorkflowContext) transientVars.get("context");
 		WorkflowEntry entry = (WorkflowEntry) transientVars.get("entry");
 
-		Interpreter i = new Interpreter();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		Map variables = new HashMap();
+		variables.put("entry", entry);
+		variables.put("context", context);
+		variables.put("transientVars", transientVars);
+		variables.put("propertySet", ps);
+		variables.put("jn", transientVars.get("jn"));
 
 		try {
-			if (loader != null) {
-				i.setClassLoader(loader);
-			}
-
-			i.set("entry", entry);
-			i.set("context", context);
-			i.set("transientVars", transientVars);
-			i.set("propertySet", ps);
-			i.set("jn", transientVars.get("jn"));
-
-			Object o = i.eval(script);
+			Object o = BeanShellScripts.eval(script, variables);
 
 			if (o == null) {
 				return false;
@@ -71,10 +65,6 @@ public class BeanShellCondition implements Condition {
 			String message = "Could not execute BeanShell script";
 			log.error(message, e);
 			throw new WorkflowException(message, e);
-		} finally {
-			if (loader != null) {
-				i.setClassLoader(null);
-			}
 		}
 	}
 }
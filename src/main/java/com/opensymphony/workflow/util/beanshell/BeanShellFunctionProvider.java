@@ -5,7 +5,6 @@
 package com.opensymphony.workflow.util.beanshell;
 
 import bsh.EvalError;
-import bsh.Interpreter;
 import bsh.TargetError;
 
 import com.opensymphony.module.propertyset.PropertySet;
@@ -16,6 +15,7 @@ import com.opensymphony.workflow.spi.WorkflowEntry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -23,7 +23,7 @@ import java.util.Map;
  * 
  * @author Hani
  */
-public class BeanShellFunctionProvider implements FunctionProvider {
+public class BeanShellFunctionProvider implements FunctionProvider, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
@@ -34,31 +34,16 @@ public class BeanShellFunctionProvider implements FunctionProvider {
 
 	public void execute(Map transientVars, Map args, PropertySet ps) throws WorkflowException {
 		String script = (String) args.get(AbstractWorkflow.BSH_SCRIPT);
-		Interpreter i = null;
-		ClassLoader loader = null;
 		WorkflowContext context = (WorkflowContext) transientVars.get("context");
 		WorkflowEntry entry = (WorkflowEntry) transientVars.get("entry");
-		loader = Thread.currentThread().getContextClassLoader();
+		Map variables = new HashMap();
+		variables.put("entry", entry);
+		variables.put("context", context);
+		variables.put("transientVars", transientVars);
+		variables.put("propertySet", ps);
 
 		try {
-			i = new Interpreter();
-
-			if (loader != null) {
-				i.setClassLoader(loader);
-			}
-
-			i.set("entry", entry);
-			i.set("context", context);
-			i.set("transientVars", transientVars);
-			i.set("propertySet", ps);
-		} catch (EvalError evalError) {
-			String message = "Could not set values for BSH script";
-			log.error(message, evalError);
-			throw new WorkflowException(message, evalError);
-		}
-
-		try {
-			i.eval(script);
+			BeanShellScripts.eval(script, variables);
 		} catch (TargetError targetError) {
 			if (targetError.getTarget() instanceof WorkflowException) {
 				throw (WorkflowException) targetError.getTarget();
@@ -70,10 +55,6 @@ public class BeanShellFunctionProvider implements FunctionProvider {
 			String message = "Evaluation error while running BSH function script";
 			log.error(message, evalError);
 			throw new WorkflowException(message, evalError);
-		} finally {
-			if (loader != null) {
-				i.setClassLoader(null);
-			}
 		}
 	}
 }
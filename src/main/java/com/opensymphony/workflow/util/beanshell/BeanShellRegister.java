@@ -5,7 +5,6 @@
 package com.opensymphony.workflow.util.beanshell;
 
 import bsh.EvalError;
-import bsh.Interpreter;
 import bsh.TargetError;
 
 import com.opensymphony.module.propertyset.PropertySet;
@@ -13,6 +12,7 @@ import com.opensymphony.module.propertyset.PropertySet;
 import com.opensymphony.workflow.*;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -20,26 +20,20 @@ import java.util.Map;
  * 
  * @author Hani
  */
-public class BeanShellRegister implements Register {
+public class BeanShellRegister implements Register, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
 	public Object registerVariable(WorkflowContext context, WorkflowEntry entry, Map args, PropertySet ps) throws WorkflowException {
 		String script = (String) args.get(AbstractWorkflow.BSH_SCRIPT);
 
-		Interpreter i = new Interpreter();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		Map variables = new HashMap();
+		variables.put("entry", entry);
+		variables.put("context", context);
+		variables.put("propertySet", ps);
 
 		try {
-			if (loader != null) {
-				i.setClassLoader(loader);
-			}
-
-			i.set("entry", entry);
-			i.set("context", context);
-			i.set("propertySet", ps);
-
-			return i.eval(script);
+			return BeanShellScripts.eval(script, variables);
 		} catch (TargetError targetError) {
 			if (targetError.getTarget() instanceof WorkflowException) {
 				throw (WorkflowException) targetError.getTarget();
@@ -50,10 +44,6 @@ public class BeanShellRegister implements Register {
 		} catch (EvalError e) {
 			String message = "Could not get object registered in to variable map";
 			throw new WorkflowException(message, e);
-		} finally {
-			if (loader != null) {
-				i.setClassLoader(null);
-			}
 		}
 	}
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.beanshell;
+
+import bsh.CallStack;
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.Parser;
+import bsh.Primitive;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.StringReader;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates the scripts of the BeanShell condition, function, validator and
+ * register. Each script is parsed once and its syntax tree cached by script
+ * text, and scripts run on interpreters taken from a bounded pool. Every call
+ * gets a fresh namespace, so no variable survives from one call to the next.
+ * <p>
+ * BeanShell syntax trees keep state while they are evaluated, so a parsed
+ * script is only used by one thread at a time, and a script run by several
+ * threads at once is parsed once for each of them. If the BeanShell version
+ * in use cannot run parsed scripts, scripts are evaluated from their source
+ * on the pooled interpreters.
+ */
+public final class BeanShellScripts {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final Log log = LogFactory.getLog(BeanShellScripts.class);
+
+	/**
+	 * Maximum number of scripts kept in the cache.
+	 */
+	private static final int MAX_SCRIPTS = 1024;
+
+	/**
+	 * Maximum number of idle parsed copies kept for each script.
+	 */
+	private static final int MAX_COPIES = 8;
+
+	/**
+	 * Maximum number of idle interpreters kept in the pool.
+	 */
+	private static final int MAX_INTERPRETERS = 16;
+
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
+	private static final BlockingQueue interpreters = new ArrayBlockingQueue(MAX_INTERPRETERS);
+	private static final Map scripts = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_SCRIPTS;
+		}
+	};
+
+	/**
+	 * <code>bsh.SimpleNode.eval(CallStack, Interpreter)</code> and
+	 * <code>bsh.ReturnControl.value</code>, which BeanShell does not make
+	 * public. Null if they are not available.
+	 */
+	private static final Method evalNode;
+	private static final Field returnValue;
+
+	/**
+	 * The class loader last given to BeanShell, or null. BeanShell keeps a
+	 * single class loader for all interpreters, and replacing it is not
+	 * thread-safe. Only referenced weakly, so that the loader of a redeployed
+	 * application is not kept by this class.
+	 */
+	private static WeakReference classLoader;
+
+	static {
+		Method method = null;
+		Field field = null;
+
+		try {
+			method = Class.forName("bsh.SimpleNode").getMethod("eval", new Class[] {CallStack.class, Interpreter.class});
+			method.setAccessible(true);
+			field = Class.forName("bsh.ReturnControl").getField("value");
+			field.setAccessible(true);
+		} catch (Exception e) {
+			log.warn("BeanShell scripts cannot be cached and will be parsed on every call", e);
+			method = null;
+		}
+
+		evalNode = method;
+		returnValue = field;
+	}
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	private BeanShellScripts() {
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the number of calls that reused a parsed script
+	 */
+	public static long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return the fraction of calls that reused a parsed script
+	 */
+	public static double getCacheHitRate() {
+		long hits = cacheHits.get();
+		long total = hits + cacheMisses.get();
+
+		return (total == 0) ? 0 : ((double) hits / total);
+	}
+
+	/**
+	 * @return the number of calls that had to parse their script
+	 */
+	public static long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Discard all parsed scripts and pooled interpreters, reset the class
+	 * loader of BeanShell, and reset the hit/miss counters.
+	 */
+	public static void clearCache() {
+		synchronized (scripts) {
+			scripts.clear();
+		}
+
+		interpreters.clear();
+		setClassLoader(new Interpreter(), null);
+		cacheHits.set(0);
+		cacheMisses.set(0);
+	}
+
+	/**
+	 * Evaluate a script with the given variables, with the context class
+	 * loader of the current thread as BeanShell class loader.
+	 *
+	 * @return the value of the script, as by {@link Interpreter#eval(String)}
+	 */
+	public static Object eval(String script, Map variables) throws EvalError {
+		Interpreter interpreter = (Interpreter) interpreters.poll();
+
+		if (interpreter == null) {
+			interpreter = new Interpreter();
+		}
+
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		NameSpace global = interpreter.getNameSpace();
+		NameSpace nameSpace = new NameSpace(global, "osworkflow");
+
+		try {
+			setClassLoader(interpreter, loader);
+
+			for (Iterator iterator = variables.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+				nameSpace.setVariable((String) entry.getKey(), (entry.getValue() != null) ? entry.getValue() : Primitive.NULL);
+			}
+
+			if (evalNode == null) {
+				return interpreter.eval(script, nameSpace);
+			}
+
+			return eval(script, interpreter, nameSpace);
+		} finally {
+			interpreter.setNameSpace(global);
+			interpreters.offer(interpreter);
+		}
+	}
+
+	private static Object eval(String script, Interpreter interpreter, NameSpace nameSpace) throws EvalError {
+		Script cached;
+
+		synchronized (scripts) {
+			cached = (Script) scripts.get(script);
+
+			if (cached == null) {
+				cached = new Script();
+				scripts.put(script, cached);
+			}
+		}
+
+		Object[] nodes = cached.take();
+
+		if (nodes != null) {
+			cacheHits.incrementAndGet();
+		} else {
+			cacheMisses.incrementAndGet();
+			nodes = parse(script);
+		}
+
+		CallStack callStack = new CallStack();
+		callStack.push(nameSpace);
+		interpreter.setNameSpace(nameSpace);
+
+		Object value = null;
+
+		try {
+			for (int i = 0; i < nodes.length; i++) {
+				value = evalNode.invoke(nodes[i], new Object[] {callStack, interpreter});
+
+				if ((value != null) && (value.getClass() == returnValue.getDeclaringClass())) {
+					value = returnValue.get(value);
+
+					break;
+				}
+			}
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof EvalError) {
+				throw (EvalError) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new EvalError("Error evaluating BeanShell script: " + cause);
+		} catch (IllegalAccessException e) {
+			throw new EvalError("Error evaluating BeanShell script: " + e);
+		}
+
+		// only reused after a successful run, a failed one may have left
+		// state in its nodes
+		cached.give(nodes);
+
+		return Primitive.unwrap(value);
+	}
+
+	/**
+	 * Give BeanShell the given class loader, or none if it is null.
+	 */
+	private static synchronized void setClassLoader(Interpreter interpreter, ClassLoader loader) {
+		ClassLoader current = (classLoader != null) ? (ClassLoader) classLoader.get() : null;
+
+		// replacing the loader clears the class caches of BeanShell, so only
+		// do it when the loader actually changes
+		if ((loader != current) || ((loader == null) && (classLoader != null))) {
+			interpreter.setClassLoader(loader);
+			classLoader = (loader != null) ? new WeakReference(loader) : null;
+		}
+	}
+
+	private static Object[] parse(String script) throws EvalError {
+		Parser parser = new Parser(new StringReader(script.endsWith(";") ? script : (script + ';')));
+		List nodes = new ArrayList();
+
+		try {
+			while (!parser.Line()) {
+				Object node = parser.popNode();
+
+				if (node != null) {
+					nodes.add(node);
+				}
+			}
+		} catch (Error e) {
+			// bsh.TokenMgrError is not public
+			if (!e.getClass().getName().startsWith("bsh.")) {
+				throw e;
+			}
+
+			throw new EvalError("Error parsing BeanShell script: " + e.getMessage());
+		}
+
+		return nodes.toArray();
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * The idle parsed copies of one script.
+	 */
+	private static class Script {
+		private final List copies = new ArrayList(1);
+
+		synchronized void give(Object[] nodes) {
+			if (copies.size() < MAX_COPIES) {
+				copies.add(nodes);
+			}
+		}
+
+		synchronized Object[] take() {
+			return copies.isEmpty() ? null : (Object[]) copies.remove(copies.size() - 1);
+		}
+	}
+}
@@ -4,7 +4,6 @@
  */
 package com.opensymphony.workflow.util.beanshell;
 
-import bsh.Interpreter;
 import bsh.TargetError;
 
 import com.opensymphony.module.propertyset.PropertySet;
@@ -15,13 +14,14 @@ import com.opensymphony.workflow.spi.WorkflowEntry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Beanshell inline script validator. The input is determined to be invalid of
  * the script throws a {@link InvalidInputException}.
  */
-public class BeanShellValidator implements Validator {
+public class BeanShellValidator implements Validator, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
@@ -31,25 +31,19 @@ public class BeanShellValidator implements Validator {
 	// ////////////////////////////////////////////////////////////////
 
 	public void validate(Map transientVars, Map args, PropertySet ps) throws WorkflowException {
-		Interpreter i = new Interpreter();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-
 		try {
 			String contents = (String) args.get(AbstractWorkflow.BSH_SCRIPT);
 
 			WorkflowContext context = (WorkflowContext) transientVars.get("context");
 			WorkflowEntry entry = (WorkflowEntry) transientVars.get("entry");
 
-			if (loader != null) {
-				i.setClassLoader(loader);
-			}
-
-			i.set("entry", entry);
-			i.set("context", context);
-			i.set("transientVars", transientVars);
-			i.set("propertySet", ps);
+			Map variables = new HashMap();
+			variables.put("entry", entry);
+			variables.put("context", context);
+			variables.put("transientVars", transientVars);
+			variables.put("propertySet", ps);
 
-			Object o = i.eval(contents);
+			Object o = BeanShellScripts.eval(contents, variables);
 
 			if (o != null) {
 				throw new InvalidInputException(o);
@@ -63,10 +57,6 @@ public class BeanShellValidator implements Validator {
 		} catch (Exception e) {
 			String message = "Error executing beanshell validator";
 			throw new WorkflowException(message, e);
-		} finally {
-			if (loader != null) {
-				i.setClassLoader(null);
-			}
 		}
 	}
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.beanshell;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.util.TextUtils;
+
+import com.opensymphony.workflow.*;
+import com.opensymphony.workflow.spi.WorkflowEntry;
+
+import java.util.Map;
+
+/**
+ * Base class of the conditions generated by {@link BeanShellCompiler} from
+ * a BeanShell script. Checks the script as Java code with the same variables
+ * as {@link BeanShellCondition}, and hands any other script, or variables of
+ * unexpected types, to a {@link BeanShellCondition}.
+ */
+public abstract class CompiledBeanShellCondition implements Condition, Stateless {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	private static final Condition interpreter = new BeanShellCondition();
+
+	// ~ Instance fields
+	// ////////////////////////////////////////////////////////
+
+	private final String script;
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	protected CompiledBeanShellCondition(String script) {
+		this.script = script;
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public String getScript() {
+		return script;
+	}
+
+	public boolean passesCondition(Map transientVars, Map args, PropertySet ps) throws WorkflowException {
+		Object script = args.get(AbstractWorkflow.BSH_SCRIPT);
+		Object entry = transientVars.get("entry");
+		Object context = transientVars.get("context");
+		Object jn = transientVars.get("jn");
+
+		if (((script != this.script) && !this.script.equals(script)) || ((entry != null) && !(entry instanceof WorkflowEntry)) || ((context != null) && !(context instanceof WorkflowContext)) || ((jn != null) && !(jn instanceof JoinNodes))) {
+			return interpreter.passesCondition(transientVars, args, ps);
+		}
+
+		Object o;
+
+		try {
+			o = eval((WorkflowEntry) entry, (WorkflowContext) context, transientVars, ps, (JoinNodes) jn);
+		} catch (WorkflowException e) {
+			throw e;
+		} catch (Exception e) {
+			String message = "Could not execute BeanShell script";
+			throw new WorkflowException(message, e);
+		}
+
+		if (o instanceof Boolean) {
+			return ((Boolean) o).booleanValue();
+		}
+
+		return (o != null) && TextUtils.parseBoolean(o.toString());
+	}
+
+	public String toString() {
+		return "BeanShell condition compiled from: " + script;
+	}
+
+	/**
+	 * @return the value of the script
+	 */
+	protected abstract Object eval(WorkflowEntry entry, WorkflowContext context, Map transientVars, PropertySet propertySet, JoinNodes jn) throws Exception;
+}
@@ -11,16 +11,15 @@ import com.opensymphony.util.TextUtils;
 import com.opensymphony.workflow.*;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 
-import org.apache.bsf.BSFEngine;
 import org.apache.bsf.BSFException;
-import org.apache.bsf.BSFManager;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
  * @author Hani
  */
-public class BSFCondition implements Condition {
+public class BSFCondition implements Condition, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -34,22 +33,15 @@ public class BSFCondition implements Condition {
 		WorkflowContext context = (WorkflowContext) transientVars.get("context");
 		WorkflowEntry entry = (WorkflowEntry) transientVars.get("entry");
 
-		BSFManager mgr = new BSFManager();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-
-		if (loader != null) {
-			mgr.setClassLoader(loader);
-		}
-
-		mgr.registerBean("entry", entry);
-		mgr.registerBean("context", context);
-		mgr.registerBean("transientVars", transientVars);
-		mgr.registerBean("propertySet", ps);
-		mgr.registerBean("jn", transientVars.get("jn"));
+		Map beans = new HashMap();
+		beans.put("entry", entry);
+		beans.put("context", context);
+		beans.put("transientVars", transientVars);
+		beans.put("propertySet", ps);
+		beans.put("jn", transientVars.get("jn"));
 
 		try {
-			BSFEngine engine = mgr.loadScriptingEngine(language);
-			Object o = engine.eval(source, row, col, script);
+			Object o = BSFScripts.eval(language, source, row, col, script, beans);
 
 			if (o == null) {
 				return false;
@@ -11,10 +11,9 @@ import com.opensymphony.util.TextUtils;
 import com.opensymphony.workflow.*;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 
-import org.apache.bsf.BSFEngine;
 import org.apache.bsf.BSFException;
-import org.apache.bsf.BSFManager;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -23,7 +22,7 @@ import java.util.Map;
  * @author $Author: hani $
  * @version $Revision: 1.3 $
  */
-public class BSFFunctionProvider implements FunctionProvider {
+public class BSFFunctionProvider implements FunctionProvider, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -37,31 +36,23 @@ public class BSFFunctionProvider implements FunctionProvider {
 		WorkflowContext context = (WorkflowContext) transientVars.get("context");
 		WorkflowEntry entry = (WorkflowEntry) transientVars.get("entry");
 
-		BSFManager mgr = new BSFManager();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-
-		if (loader != null) {
-			mgr.setClassLoader(loader);
-		}
-
-		mgr.registerBean("entry", entry);
-		mgr.registerBean("context", context);
-		mgr.registerBean("transientVars", transientVars);
-		mgr.registerBean("propertySet", ps);
-
-		BSFEngine engine;
+		Map beans = new HashMap();
+		beans.put("entry", entry);
+		beans.put("context", context);
+		beans.put("transientVars", transientVars);
+		beans.put("propertySet", ps);
 
 		try {
-			engine = mgr.loadScriptingEngine(language);
+			BSFScripts.eval(language, source, row, col, script, beans);
 		} catch (BSFException e) {
-			String message = "Could not load scripting engine for BSF language: " + language;
-			throw new WorkflowException(message, e);
-		}
+			String message;
+
+			if (e.getReason() == BSFException.REASON_UNKNOWN_LANGUAGE) {
+				message = "Could not load scripting engine for BSF language: " + language;
+			} else {
+				message = "BSF script/function could not run";
+			}
 
-		try {
-			engine.eval(source, row, col, script);
-		} catch (BSFException e) {
-			String message = "BSF script/function could not run";
 			throw new WorkflowException(message, e);
 		}
 	}
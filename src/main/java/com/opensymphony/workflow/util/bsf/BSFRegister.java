@@ -11,10 +11,9 @@ import com.opensymphony.util.TextUtils;
 import com.opensymphony.workflow.*;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 
-import org.apache.bsf.BSFEngine;
 import org.apache.bsf.BSFException;
-import org.apache.bsf.BSFManager;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -29,7 +28,7 @@ import java.util.Map;
  * @author $Author: hani $
  * @version $Revision: 1.4 $
  */
-public class BSFRegister implements Register {
+public class BSFRegister implements Register, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -40,21 +39,13 @@ public class BSFRegister implements Register {
 		int col = TextUtils.parseInt((String) args.get(AbstractWorkflow.BSF_COL));
 		String script = (String) args.get(AbstractWorkflow.BSF_SCRIPT);
 
-		BSFManager mgr = new BSFManager();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-
-		if (loader != null) {
-			mgr.setClassLoader(loader);
-		}
-
-		mgr.registerBean("propertySet", ps);
-		mgr.registerBean("entry", entry);
-		mgr.registerBean("context", context);
+		Map beans = new HashMap();
+		beans.put("propertySet", ps);
+		beans.put("entry", entry);
+		beans.put("context", context);
 
 		try {
-			BSFEngine engine = mgr.loadScriptingEngine(language);
-
-			return engine.eval(source, row, col, script);
+			return BSFScripts.eval(language, source, row, col, script, beans);
 		} catch (BSFException e) {
 			String message = "Could not get object registered in to variable map";
 			throw new WorkflowException(message, e);
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.bsf;
+
+import org.apache.bsf.BSFEngine;
+import org.apache.bsf.BSFException;
+import org.apache.bsf.BSFManager;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Evaluates the scripts of the BSF condition, function, validator and
+ * register on pooled managers, so that a scripting engine is only started
+ * the first time its language is used, and not on every call. Each pooled
+ * manager is used by one thread at a time, and the beans of a call are
+ * unregistered when it ends.
+ * <p>
+ * Unlike beans, anything a script defines in its engine, such as global
+ * variables, may still be visible to later scripts run on the same engine.
+ */
+final class BSFScripts {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	/**
+	 * Maximum number of idle engines kept for each language.
+	 */
+	private static final int MAX_ENGINES = 16;
+
+	private static final ConcurrentMap engines = new ConcurrentHashMap();
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	private BSFScripts() {
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Evaluate a script with the given beans registered, with the context
+	 * class loader of the current thread as BSF class loader.
+	 *
+	 * @return the value of the script, as by
+	 *         {@link BSFEngine#eval(String, int, int, Object)}
+	 * @throws BSFException if the engine of the language cannot be loaded or
+	 *             the script fails
+	 */
+	static Object eval(String language, String source, int row, int col, String script, Map beans) throws BSFException {
+		BlockingQueue pool = getPool(language);
+		Engine engine = (Engine) pool.poll();
+
+		if (engine == null) {
+			engine = new Engine(language);
+		}
+
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+		if ((loader != null) && (loader != engine.manager.getClassLoader())) {
+			engine.manager.setClassLoader(loader);
+		}
+
+		Object value;
+
+		try {
+			for (Iterator iterator = beans.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry entry = (Map.Entry) iterator.next();
+				engine.manager.registerBean((String) entry.getKey(), entry.getValue());
+			}
+
+			value = engine.engine.eval(source, row, col, script);
+		} finally {
+			for (Iterator iterator = beans.keySet().iterator(); iterator.hasNext();) {
+				engine.manager.unregisterBean((String) iterator.next());
+			}
+		}
+
+		// only reused after a successful run, a failed one may have left the
+		// engine in an unknown state
+		pool.offer(engine);
+
+		return value;
+	}
+
+	private static BlockingQueue getPool(String language) {
+		BlockingQueue pool = (BlockingQueue) engines.get(language);
+
+		if (pool == null) {
+			pool = new ArrayBlockingQueue(MAX_ENGINES);
+
+			BlockingQueue existing = (BlockingQueue) engines.putIfAbsent(language, pool);
+
+			if (existing != null) {
+				pool = existing;
+			}
+		}
+
+		return pool;
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * A manager and the engine it loaded for one language.
+	 */
+	private static class Engine {
+		final BSFEngine engine;
+		final BSFManager manager = new BSFManager();
+
+		Engine(String language) throws BSFException {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+			if (loader != null) {
+				manager.setClassLoader(loader);
+			}
+
+			engine = manager.loadScriptingEngine(language);
+		}
+	}
+}
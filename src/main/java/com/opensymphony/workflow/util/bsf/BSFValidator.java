@@ -10,14 +10,14 @@ import com.opensymphony.util.TextUtils;
 
 import com.opensymphony.workflow.AbstractWorkflow;
 import com.opensymphony.workflow.InvalidInputException;
+import com.opensymphony.workflow.Stateless;
 import com.opensymphony.workflow.Validator;
 import com.opensymphony.workflow.WorkflowContext;
 import com.opensymphony.workflow.WorkflowException;
 import com.opensymphony.workflow.spi.WorkflowEntry;
 
-import org.apache.bsf.BSFEngine;
-import org.apache.bsf.BSFManager;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -26,7 +26,7 @@ import java.util.Map;
  * @author $Author: hani $
  * @version $Revision: 1.5 $
  */
-public class BSFValidator implements Validator {
+public class BSFValidator implements Validator, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
@@ -40,21 +40,14 @@ public class BSFValidator implements Validator {
 		WorkflowContext context = (WorkflowContext) transientVars.get("context");
 		WorkflowEntry entry = (WorkflowEntry) transientVars.get("entry");
 
-		BSFManager mgr = new BSFManager();
-		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-
-		if (loader != null) {
-			mgr.setClassLoader(loader);
-		}
-
-		mgr.registerBean("entry", entry);
-		mgr.registerBean("context", context);
-		mgr.registerBean("transientVars", transientVars);
-		mgr.registerBean("propertySet", ps);
+		Map beans = new HashMap();
+		beans.put("entry", entry);
+		beans.put("context", context);
+		beans.put("transientVars", transientVars);
+		beans.put("propertySet", ps);
 
 		try {
-			BSFEngine engine = mgr.loadScriptingEngine(language);
-			Object o = engine.eval(source, row, col, script);
+			Object o = BSFScripts.eval(language, source, row, col, script, beans);
 
 			if (o != null) {
 				throw new InvalidInputException(o);
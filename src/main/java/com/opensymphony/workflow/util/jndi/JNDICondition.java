@@ -22,7 +22,7 @@ import javax.naming.NamingException;
  * @author $Author: hani $
  * @version $Revision: 1.3 $
  */
-public class JNDICondition implements Condition {
+public class JNDICondition implements Condition, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
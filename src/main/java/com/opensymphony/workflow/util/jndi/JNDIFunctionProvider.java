@@ -22,7 +22,7 @@ import javax.naming.NamingException;
  * @author $Author: hani $
  * @version $Revision: 1.4 $
  */
-public class JNDIFunctionProvider implements FunctionProvider {
+public class JNDIFunctionProvider implements FunctionProvider, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
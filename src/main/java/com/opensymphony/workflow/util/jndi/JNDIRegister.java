@@ -21,7 +21,7 @@ import javax.naming.NamingException;
  * @author $Author: hani $
  * @version $Revision: 1.5 $
  */
-public class JNDIRegister implements Register {
+public class JNDIRegister implements Register, Stateless {
 	// ~ Methods
 	// ////////////////////////////////////////////////////////////////
 
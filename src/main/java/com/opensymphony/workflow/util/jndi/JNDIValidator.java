@@ -22,7 +22,7 @@ import javax.naming.NamingException;
  * @author $Author: hani $
  * @version $Revision: 1.4 $
  */
-public class JNDIValidator implements Validator {
+public class JNDIValidator implements Validator, Stateless {
 	// ~ Static fields/initializers
 	// /////////////////////////////////////////////
 
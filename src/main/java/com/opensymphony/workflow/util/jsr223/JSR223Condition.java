@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.jsr223;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.util.TextUtils;
+
+import com.opensymphony.workflow.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+/**
+ * Condition that evaluates a JSR-223 script. args parameter is expected to
+ * contain the following arguments:
+ * 
+ * <li>{@link AbstractWorkflow#JSR223_LANGUAGE}: The name of the script engine
+ * <li>{@link AbstractWorkflow#JSR223_SCRIPT}: The script
+ * <p>
+ * The condition passes if the script returns <code>true</code> or
+ * <code>"true"</code>.
+ */
+public class JSR223Condition implements Condition, Stateless {
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public boolean passesCondition(Map transientVars, Map args, PropertySet ps) throws WorkflowException {
+		String language = (String) args.get(AbstractWorkflow.JSR223_LANGUAGE);
+		String script = (String) args.get(AbstractWorkflow.JSR223_SCRIPT);
+
+		Map variables = new HashMap();
+		variables.put("entry", transientVars.get("entry"));
+		variables.put("context", transientVars.get("context"));
+		variables.put("transientVars", transientVars);
+		variables.put("propertySet", ps);
+		variables.put("jn", transientVars.get("jn"));
+
+		try {
+			Object o = JSR223Scripts.eval(language, script, variables);
+
+			if (o == null) {
+				return false;
+			} else {
+				return TextUtils.parseBoolean(o.toString());
+			}
+		} catch (ScriptException e) {
+			if (e.getCause() instanceof WorkflowException) {
+				throw (WorkflowException) e.getCause();
+			}
+
+			String message = "Could not execute JSR-223 script";
+			throw new WorkflowException(message, e);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.jsr223;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.workflow.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+/**
+ * Function that runs a JSR-223 script. args parameter is expected to contain
+ * the following arguments:
+ * 
+ * <li>{@link AbstractWorkflow#JSR223_LANGUAGE}: The name of the script engine
+ * <li>{@link AbstractWorkflow#JSR223_SCRIPT}: The script
+ */
+public class JSR223FunctionProvider implements FunctionProvider, Stateless {
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public void execute(Map transientVars, Map args, PropertySet ps) throws WorkflowException {
+		String language = (String) args.get(AbstractWorkflow.JSR223_LANGUAGE);
+		String script = (String) args.get(AbstractWorkflow.JSR223_SCRIPT);
+
+		Map variables = new HashMap();
+		variables.put("entry", transientVars.get("entry"));
+		variables.put("context", transientVars.get("context"));
+		variables.put("transientVars", transientVars);
+		variables.put("propertySet", ps);
+
+		try {
+			JSR223Scripts.eval(language, script, variables);
+		} catch (ScriptException e) {
+			if (e.getCause() instanceof WorkflowException) {
+				throw (WorkflowException) e.getCause();
+			}
+
+			String message = "JSR-223 script/function could not run";
+			throw new WorkflowException(message, e);
+		}
+	}
+}
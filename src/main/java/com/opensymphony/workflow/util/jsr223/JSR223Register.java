@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.jsr223;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.workflow.*;
+import com.opensymphony.workflow.spi.WorkflowEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+/**
+ * Register that invokes a JSR-223 script and registers its value. args
+ * parameter is expected to contain the following arguments:
+ * 
+ * <li>{@link AbstractWorkflow#JSR223_LANGUAGE}: The name of the script engine
+ * <li>{@link AbstractWorkflow#JSR223_SCRIPT}: The script
+ */
+public class JSR223Register implements Register, Stateless {
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public Object registerVariable(WorkflowContext context, WorkflowEntry entry, Map args, PropertySet ps) throws WorkflowException {
+		String language = (String) args.get(AbstractWorkflow.JSR223_LANGUAGE);
+		String script = (String) args.get(AbstractWorkflow.JSR223_SCRIPT);
+
+		Map variables = new HashMap();
+		variables.put("entry", entry);
+		variables.put("context", context);
+		variables.put("propertySet", ps);
+
+		try {
+			return JSR223Scripts.eval(language, script, variables);
+		} catch (ScriptException e) {
+			if (e.getCause() instanceof WorkflowException) {
+				throw (WorkflowException) e.getCause();
+			}
+
+			String message = "Could not get object registered in to variable map";
+			throw new WorkflowException(message, e);
+		}
+	}
+}
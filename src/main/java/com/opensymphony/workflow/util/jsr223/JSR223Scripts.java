@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.jsr223;
+
+import com.opensymphony.workflow.WorkflowException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * Evaluates the scripts of the JSR-223 condition, function, validator and
+ * register. If the engine of a language implements {@link Compilable}, each
+ * script is compiled once and the compiled script is reused by later calls.
+ * <p>
+ * Engines that declare themselves thread-safe through their
+ * <code>THREADING</code> parameter are shared by all threads, together with
+ * their compiled scripts; other engines get an instance per thread. Every
+ * thread reuses one {@link Bindings} per language, from which the variables
+ * of a call are removed when it ends. Anything else a script defines in its
+ * bindings may still be visible to later scripts of the same thread.
+ */
+final class JSR223Scripts {
+	// ~ Static fields/initializers
+	// /////////////////////////////////////////////
+
+	/**
+	 * Maximum number of compiled scripts kept for each engine. Once reached,
+	 * an arbitrary compiled script is dropped for each new one.
+	 */
+	private static final int MAX_SCRIPTS = 1024;
+
+	/**
+	 * Language to the {@link Engine} shared by all threads.
+	 */
+	private static final ConcurrentMap sharedEngines = new ConcurrentHashMap();
+
+	/**
+	 * Language to the {@link Local} of the current thread.
+	 */
+	private static final ThreadLocal locals = new ThreadLocal() {
+		protected Object initialValue() {
+			return new HashMap();
+		}
+	};
+
+	// ~ Constructors
+	// ///////////////////////////////////////////////////////////
+
+	private JSR223Scripts() {
+	}
+
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Evaluate a script with the given variables bound in its engine scope.
+	 *
+	 * @return the value of the script
+	 * @throws WorkflowException if there is no engine for the language
+	 * @throws ScriptException if the script cannot be compiled or fails
+	 */
+	static Object eval(String language, String script, Map variables) throws WorkflowException, ScriptException {
+		Local local = getLocal(language);
+		Bindings bindings = local.bindings;
+
+		try {
+			bindings.putAll(variables);
+
+			CompiledScript compiled = local.engine.getCompiled(script);
+
+			if (compiled != null) {
+				return compiled.eval(bindings);
+			}
+
+			return local.engine.engine.eval(script, bindings);
+		} finally {
+			for (Iterator iterator = variables.keySet().iterator(); iterator.hasNext();) {
+				bindings.remove(iterator.next());
+			}
+		}
+	}
+
+	private static Local getLocal(String language) throws WorkflowException {
+		if (language == null) {
+			throw new WorkflowException("No JSR-223 script language given");
+		}
+
+		Map locals = (Map) JSR223Scripts.locals.get();
+		Local local = (Local) locals.get(language);
+
+		if (local == null) {
+			Engine engine = (Engine) sharedEngines.get(language);
+
+			if (engine == null) {
+				engine = new Engine(language);
+
+				if (engine.engine.getFactory().getParameter("THREADING") != null) {
+					Engine existing = (Engine) sharedEngines.putIfAbsent(language, engine);
+
+					if (existing != null) {
+						engine = existing;
+					}
+				}
+			}
+
+			local = new Local(engine);
+			locals.put(language, local);
+		}
+
+		return local;
+	}
+
+	// ~ Inner Classes
+	// //////////////////////////////////////////////////////////
+
+	/**
+	 * An engine and the scripts compiled with it.
+	 */
+	private static class Engine {
+		final ScriptEngine engine;
+		private final ConcurrentMap compiled;
+
+		Engine(String language) throws WorkflowException {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			ScriptEngineManager manager = (loader != null) ? new ScriptEngineManager(loader) : new ScriptEngineManager();
+			engine = manager.getEngineByName(language);
+
+			if (engine == null) {
+				throw new WorkflowException("No JSR-223 script engine for language: " + language);
+			}
+
+			compiled = (engine instanceof Compilable) ? new ConcurrentHashMap() : null;
+		}
+
+		/**
+		 * @return the compiled script, or null if the engine cannot compile
+		 */
+		CompiledScript getCompiled(String script) throws ScriptException {
+			if (compiled == null) {
+				return null;
+			}
+
+			CompiledScript compiledScript = (CompiledScript) compiled.get(script);
+
+			if (compiledScript != null) {
+				return compiledScript;
+			}
+
+			// threads compiling the same script at once each compile it, and
+			// the first one to finish is kept
+			compiledScript = ((Compilable) engine).compile(script);
+
+			if (compiled.size() >= MAX_SCRIPTS) {
+				Iterator iterator = compiled.keySet().iterator();
+
+				if (iterator.hasNext()) {
+					compiled.remove(iterator.next());
+				}
+			}
+
+			CompiledScript existing = (CompiledScript) compiled.putIfAbsent(script, compiledScript);
+
+			return (existing != null) ? existing : compiledScript;
+		}
+	}
+
+	/**
+	 * The engine and bindings one thread uses for a language.
+	 */
+	private static class Local {
+		final Bindings bindings;
+		final Engine engine;
+
+		Local(Engine engine) {
+			this.engine = engine;
+			bindings = engine.engine.createBindings();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.workflow.util.jsr223;
+
+import com.opensymphony.module.propertyset.PropertySet;
+
+import com.opensymphony.workflow.AbstractWorkflow;
+import com.opensymphony.workflow.InvalidInputException;
+import com.opensymphony.workflow.Stateless;
+import com.opensymphony.workflow.Validator;
+import com.opensymphony.workflow.WorkflowException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+/**
+ * Validates a step using a JSR-223 script. The input is invalid if the script
+ * returns anything other than null, which is then passed to the
+ * {@link InvalidInputException}.
+ */
+public class JSR223Validator implements Validator, Stateless {
+	// ~ Methods
+	// ////////////////////////////////////////////////////////////////
+
+	public void validate(Map transientVars, Map args, PropertySet ps) throws WorkflowException {
+		String language = (String) args.get(AbstractWorkflow.JSR223_LANGUAGE);
+		String script = (String) args.get(AbstractWorkflow.JSR223_SCRIPT);
+
+		Map variables = new HashMap();
+		variables.put("entry", transientVars.get("entry"));
+		variables.put("context", transientVars.get("context"));
+		variables.put("transientVars", transientVars);
+		variables.put("propertySet", ps);
+
+		Object o;
+
+		try {
+			o = JSR223Scripts.eval(language, script, variables);
+		} catch (ScriptException e) {
+			if (e.getCause() instanceof WorkflowException) {
+				throw (WorkflowException) e.getCause();
+			}
+
+			String message = "Could not execute JSR-223 validator";
+			throw new WorkflowException(message, e);
+		}
+
+		if (o != null) {
+			throw new InvalidInputException(o);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package osw;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.opensymphony.workflow.spi.jdbc.JDBCPropertySet;
+
+/**
+ * Measures the write throughput of {@link JDBCPropertySet} with the default
+ * update-then-insert against a single-statement upsert.
+ * <p>
+ * Usage: <code>PropertySetWriteBenchmark jdbcUrl [user password]</code>, with
+ * the JDBC driver on the classpath and an empty OS_PROPERTYENTRY table. The
+ * upsert dialect to compare is given with <code>-Dupsert=merge</code> (or
+ * oracle, mysql, postgresql), the number of entries with
+ * <code>-Dentries=</code> and the number of keys per entry with
+ * <code>-Dkeys=</code>.
+ */
+public class PropertySetWriteBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("usage: PropertySetWriteBenchmark jdbcUrl [user password]");
+
+			return;
+		}
+
+		Connection conn = (args.length > 2) ? DriverManager.getConnection(args[0], args[1], args[2]) : DriverManager.getConnection(args[0]);
+		String upsert = System.getProperty("upsert", JDBCPropertySet.UPSERT_MERGE);
+		int entries = Integer.getInteger("entries", 200).intValue();
+		int keys = Integer.getInteger("keys", 20).intValue();
+
+		try {
+			// warm up, then measure each mode on its own key space
+			for (int round = 0; round < 2; round++) {
+				String prefix = (round == 0) ? "warmup_" : "bench_";
+				run(conn, JDBCPropertySet.UPSERT_NONE, false, prefix + "a", entries, keys, round == 1);
+				run(conn, upsert, false, prefix + "b", entries, keys, round == 1);
+				run(conn, JDBCPropertySet.UPSERT_NONE, true, prefix + "c", entries, keys, round == 1);
+				run(conn, upsert, true, prefix + "d", entries, keys, round == 1);
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Write every key of every entry twice, once as an insert and once as an
+	 * update, and print the number of writes per second.
+	 */
+	private static void run(Connection conn, String upsert, boolean writeBehind, String prefix, int entries, int keys, boolean print) {
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int e = 0; e < entries; e++) {
+				Map args = new HashMap();
+				args.put("globalKey", prefix + "_" + e);
+				args.put("upsert", upsert);
+
+				JDBCPropertySet ps = new JDBCPropertySet();
+				ps.init(new HashMap(), args);
+				ps.setConnection(conn);
+				ps.setWriteBehind(writeBehind);
+
+				for (int k = 0; k < keys; k++) {
+					if ((k % 2) == 0) {
+						ps.setString("key" + k, "value" + pass);
+					} else {
+						ps.setLong("key" + k, pass);
+					}
+				}
+
+				if (writeBehind) {
+					ps.flush();
+				}
+			}
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		if (print) {
+			long writes = 2L * entries * keys;
+			System.out.println(upsert + (writeBehind ? " (write-behind)" : "") + ": " + writes + " writes, " + ((writes * 1000000000L) / elapsed) + " writes/s");
+		}
+	}
+}